@@ -0,0 +1,38 @@
+/**************************************************************************
+ *
+ * Gluewine Database Authentication Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.dbauth;
+
+/**
+ * Listener notified by the DBAuthenticator when a credential has been changed or
+ * removed. Services caching verified credentials use it to invalidate them.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public interface CredentialListener
+{
+    // ===========================================================================
+    /**
+     * Invoked when the password of the given user has been changed, or when the
+     * user has been deleted.
+     *
+     * @param user The user whose credential changed.
+     */
+    void credentialChanged(String user);
+}
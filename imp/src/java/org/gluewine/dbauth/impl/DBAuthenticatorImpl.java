@@ -20,6 +20,7 @@ package org.gluewine.dbauth.impl;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.log4j.Logger;
 import org.gluewine.authentication.AuthenticationException;
@@ -28,7 +29,9 @@ import org.gluewine.console.CLIOption;
 import org.gluewine.console.CommandContext;
 import org.gluewine.console.CommandProvider;
 import org.gluewine.core.Glue;
+import org.gluewine.core.RepositoryListener;
 import org.gluewine.core.RunOnActivate;
+import org.gluewine.dbauth.CredentialListener;
 import org.gluewine.dbauth.DBAuthenticator;
 import org.gluewine.dbauth.DBCredential;
 import org.gluewine.persistence.PersistenceException;
@@ -43,7 +46,7 @@ import org.gluewine.sessions.Unsecured;
  * @author fks/Serge de Schaetzen
  *
  */
-public class DBAuthenticatorImpl implements DBAuthenticator, CommandProvider
+public class DBAuthenticatorImpl implements DBAuthenticator, CommandProvider, RepositoryListener<CredentialListener>
 {
     // ===========================================================================
     /**
@@ -58,6 +61,11 @@ public class DBAuthenticatorImpl implements DBAuthenticator, CommandProvider
     @Glue
     private SessionManager sessionManager = null;
 
+    /**
+     * The listeners to notify when a credential changes.
+     */
+    private List<CredentialListener> listeners = new CopyOnWriteArrayList<CredentialListener>();
+
     /**
      * The logger to use.
      */
@@ -139,6 +147,7 @@ public class DBAuthenticatorImpl implements DBAuthenticator, CommandProvider
                 cred.setPassword(password);
                 provider.getSession().update(cred);
                 provider.commitCurrentSession();
+                notifyCredentialChanged(user);
             }
             else
             {
@@ -266,6 +275,7 @@ public class DBAuthenticatorImpl implements DBAuthenticator, CommandProvider
             {
                 provider.getSession().delete(dbc);
                 provider.commitCurrentSession();
+                notifyCredentialChanged(user);
             }
             else
             {
@@ -293,4 +303,30 @@ public class DBAuthenticatorImpl implements DBAuthenticator, CommandProvider
     {
         return "org.gluewine.dbauth.DBAuthenticator";
     }
+
+    // ===========================================================================
+    /**
+     * Notifies all listeners that the credential of the given user has changed.
+     *
+     * @param user The user whose credential changed.
+     */
+    private void notifyCredentialChanged(String user)
+    {
+        for (CredentialListener listener : listeners)
+            listener.credentialChanged(user);
+    }
+
+    // ===========================================================================
+    @Override
+    public void registered(CredentialListener t)
+    {
+        listeners.add(t);
+    }
+
+    // ===========================================================================
+    @Override
+    public void unregistered(CredentialListener t)
+    {
+        listeners.remove(t);
+    }
 }
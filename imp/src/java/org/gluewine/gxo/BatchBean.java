@@ -0,0 +1,98 @@
+/**************************************************************************
+ *
+ * Gluewine GXO Protocol Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.gxo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Bean used to transport an ordered list of method invocation requests
+ * that are to be executed in one go.
+ *
+ * The server replies with a list containing the result of every ExecBean,
+ * in the same order. A call that failed is represented by a GxoException.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public class BatchBean extends GxoBean
+{
+    // ===========================================================================
+    /**
+     * The serial uid.
+     */
+    private static final long serialVersionUID = -2412306693170588212L;
+
+    /**
+     * The requests to execute.
+     */
+    private List<ExecBean> beans = new ArrayList<ExecBean>();
+
+    /**
+     * Flag indicating that all requests should be executed in one transaction.
+     */
+    private boolean transactional = false;
+
+    // ===========================================================================
+    /**
+     * Adds a request to the batch.
+     *
+     * @param bean The request to add.
+     */
+    public void addBean(ExecBean bean)
+    {
+        beans.add(bean);
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the list of requests.
+     *
+     * @return The requests.
+     */
+    @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "EI_EXPOSE_REP")
+    public List<ExecBean> getBeans()
+    {
+        return beans;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if all requests are to be executed in one transaction.
+     * If one of them fails, the whole batch is rolled back.
+     *
+     * @return True if transactional.
+     */
+    public boolean isTransactional()
+    {
+        return transactional;
+    }
+
+    // ===========================================================================
+    /**
+     * Sets the transactional flag.
+     *
+     * @param transactional True to execute all requests in one transaction.
+     */
+    public void setTransactional(boolean transactional)
+    {
+        this.transactional = transactional;
+    }
+}
@@ -0,0 +1,81 @@
+/**************************************************************************
+ *
+ * Gluewine GXO Protocol Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.gxo;
+
+
+/**
+ * Bean used to request the next chunk of a server side iterator, or
+ * to release it when the client no longer needs it.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public class FetchBean extends GxoBean
+{
+    // ===========================================================================
+    /**
+     * The serial uid.
+     */
+    private static final long serialVersionUID = -6318541225807735390L;
+
+    /**
+     * The id of the iterator.
+     */
+    private String id = null;
+
+    /**
+     * Flag indicating that the iterator should be released.
+     */
+    private boolean close = false;
+
+    // ===========================================================================
+    /**
+     * Creates an instance.
+     *
+     * @param id The id of the iterator.
+     * @param close True to release the iterator instead of fetching the next chunk.
+     */
+    public FetchBean(String id, boolean close)
+    {
+        this.id = id;
+        this.close = close;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the id of the iterator.
+     *
+     * @return The id.
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if the iterator should be released.
+     *
+     * @return True to release the iterator.
+     */
+    public boolean isClose()
+    {
+        return close;
+    }
+}
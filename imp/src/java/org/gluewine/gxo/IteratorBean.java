@@ -0,0 +1,113 @@
+/**************************************************************************
+ *
+ * Gluewine GXO Protocol Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.gxo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Bean used to transport a chunk of the elements of an Iterator returned by
+ * a service method.
+ *
+ * The iterator itself remains on the server, where it is registered with the
+ * given id. The next chunk can be requested by sending a FetchBean with that id.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public class IteratorBean extends GxoBean
+{
+    // ===========================================================================
+    /**
+     * The serial uid.
+     */
+    private static final long serialVersionUID = 6236717896398707395L;
+
+    /**
+     * The id of the iterator on the server.
+     */
+    private String id = null;
+
+    /**
+     * The elements in this chunk.
+     */
+    private List<Object> elements = new ArrayList<Object>();
+
+    /**
+     * Flag indicating that more elements are available on the server.
+     */
+    private boolean more = false;
+
+    // ===========================================================================
+    /**
+     * Creates an instance.
+     *
+     * @param id The id of the iterator on the server.
+     */
+    public IteratorBean(String id)
+    {
+        this.id = id;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the id of the iterator.
+     *
+     * @return The id.
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the elements of this chunk.
+     *
+     * @return The elements.
+     */
+    @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "EI_EXPOSE_REP")
+    public List<Object> getElements()
+    {
+        return elements;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if more elements are available on the server.
+     *
+     * @return True if more elements are available.
+     */
+    public boolean hasMore()
+    {
+        return more;
+    }
+
+    // ===========================================================================
+    /**
+     * Sets the flag indicating that more elements are available.
+     *
+     * @param more True if more elements are available.
+     */
+    public void setMore(boolean more)
+    {
+        this.more = more;
+    }
+}
@@ -0,0 +1,234 @@
+/**************************************************************************
+ *
+ * Gluewine GXO Client Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.gxo_client;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gluewine.gxo.BatchBean;
+import org.gluewine.gxo.ExecBean;
+import org.gluewine.gxo.GxoException;
+import org.gluewine.gxo.ProxyAlias;
+
+/**
+ * Collects method invocations on proxies and sends them to the server in one
+ * request, when flush() is invoked.
+ *
+ * The proxies returned by this class do not return the actual result of a method;
+ * they return null (or the default value for primitive return types). The results
+ * are returned by flush(), in the order the methods were invoked.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public class GxoBatch
+{
+    // ===========================================================================
+    /**
+     * The handler used in the generated proxies. Every invocation is added to
+     * the pending batch.
+     */
+    private class Handler implements InvocationHandler
+    {
+        /**
+         * The ip address.
+         */
+        private String ipAddress = null;
+
+        /**
+         * The unqualified service name.
+         */
+        private String service = null;
+
+        /**
+         * The current session id.
+         */
+        private String sessionId = null;
+
+        // ===========================================================================
+        /**
+         * Creates an instance.
+         *
+         * @param name The name of the service.
+         * @param sessionid The current session id.
+         * @param address The up address of the invoker.
+         */
+        Handler(String name, String sessionid, String address)
+        {
+            service = name;
+            this.sessionId = sessionid;
+            this.ipAddress = address;
+        }
+
+        // ===========================================================================
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            ProxyAlias pa = method.getAnnotation(ProxyAlias.class);
+            if (pa != null)
+                return client.getInstantiatable(method.getReturnType(), sessionId, ipAddress, args);
+
+            ExecBean exec = new ExecBean();
+            exec.setSessionId(sessionId);
+            exec.setService(service);
+            exec.setMethod(method.getName());
+            exec.setIpAddress(ipAddress);
+            exec.setParamTypes(method.getParameterTypes());
+            exec.setParams(args);
+
+            synchronized (GxoBatch.this)
+            {
+                batch.addBean(exec);
+            }
+
+            return getDefaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * The client used to send the batch.
+     */
+    private GxoClient client = null;
+
+    /**
+     * The pending batch.
+     */
+    private BatchBean batch = new BatchBean();
+
+    /**
+     * Flag indicating that the batch should be executed in one transaction.
+     */
+    private boolean transactional = false;
+
+    // ===========================================================================
+    /**
+     * Creates an instance.
+     *
+     * @param client The client to use.
+     * @param transactional True to execute every batch in one transaction.
+     */
+    GxoBatch(GxoClient client, boolean transactional)
+    {
+        this.client = client;
+        this.transactional = transactional;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the default value for the given return type.
+     *
+     * @param type The type to process.
+     * @return The (possibly null) default value.
+     */
+    private static Object getDefaultValue(Class<?> type)
+    {
+        if (!type.isPrimitive() || type == Void.TYPE) return null;
+        else if (type == Boolean.TYPE) return Boolean.FALSE;
+        else if (type == Character.TYPE) return Character.valueOf((char) 0);
+        else if (type == Byte.TYPE) return Byte.valueOf((byte) 0);
+        else if (type == Short.TYPE) return Short.valueOf((short) 0);
+        else if (type == Integer.TYPE) return Integer.valueOf(0);
+        else if (type == Long.TYPE) return Long.valueOf(0);
+        else if (type == Float.TYPE) return Float.valueOf(0);
+        else return Double.valueOf(0);
+    }
+
+    // ===========================================================================
+    /**
+     * Creates and returns a proxy to the service specified by the given interface.
+     * Invocations on the proxy are added to this batch.
+     *
+     * @param <T> The class to return.
+     * @param t The interface to be proxied.
+     * @param sessionid The current session id.
+     * @param ip The ip address of the invoker.
+     * @return The Proxy to the interface.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getService(Class<T> t, String sessionid, String ip)
+    {
+        return (T) Proxy.newProxyInstance(t.getClassLoader(), new Class<?>[] {t}, new Handler(t.getName(), sessionid, ip));
+    }
+
+    // ===========================================================================
+    /**
+     * Creates and returns a proxy to the service specified by the given name.
+     * Invocations on the proxy are added to this batch.
+     *
+     * @param <T> The class to return.
+     * @param t The interface to be proxied.
+     * @param name The name the service has been bound with.
+     * @param sessionid The current session id.
+     * @param ip The ip address of the invoker.
+     * @return The Proxy to the interface.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getNamedService(Class<T> t, String name, String sessionid, String ip)
+    {
+        return (T) Proxy.newProxyInstance(t.getClassLoader(), new Class<?>[] {t}, new Handler(name, sessionid, ip));
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the number of pending invocations.
+     *
+     * @return The number of invocations.
+     */
+    public synchronized int size()
+    {
+        return batch.getBeans().size();
+    }
+
+    // ===========================================================================
+    /**
+     * Sends all pending invocations to the server and returns their results, in
+     * the order they were invoked. If an invocation failed, the exception it threw
+     * is returned in its place. The batch is empty after this method returns.
+     *
+     * @return The list of results.
+     * @throws Throwable If the batch could not be sent.
+     */
+    public List<Object> flush() throws Throwable
+    {
+        BatchBean toSend = null;
+        synchronized (this)
+        {
+            toSend = batch;
+            toSend.setTransactional(transactional);
+            batch = new BatchBean();
+        }
+
+        if (toSend.getBeans().isEmpty()) return new ArrayList<Object>(0);
+
+        List<?> response = (List<?>) client.write(toSend);
+        List<Object> results = new ArrayList<Object>(response.size());
+        for (Object o : response)
+        {
+            if (o instanceof GxoException && ((Throwable) o).getCause() != null)
+                results.add(((Throwable) o).getCause());
+            else
+                results.add(client.toResult(o));
+        }
+
+        return results;
+    }
+}
@@ -26,6 +26,8 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import org.apache.log4j.Logger;
 import org.gluewine.gxo.CompressedBlockInputStream;
@@ -33,7 +35,9 @@ import org.gluewine.gxo.CompressedBlockOutputStream;
 import org.gluewine.gxo.ExecBean;
 import org.gluewine.gxo.GxoException;
 import org.gluewine.gxo.InitBean;
+import org.gluewine.gxo.IteratorBean;
 import org.gluewine.gxo.LocalAccess;
+import org.gluewine.gxo.PingBean;
 import org.gluewine.gxo.ProxyAlias;
 
 import com.thoughtworks.xstream.XStream;
@@ -111,7 +115,7 @@ public class GxoClient
                     exec.setParamTypes(method.getParameterTypes());
                     exec.setParams(args);
                     logger.debug("Sending EXEC request for " + service + ":" + method.getName());
-                    return write(exec);
+                    return toResult(write(exec));
                 }
                 catch (InvocationTargetException e)
                 {
@@ -166,6 +170,16 @@ public class GxoClient
      */
     private boolean local = false;
 
+    /**
+     * The time the connection was last used.
+     */
+    private volatile long lastUse = 0;
+
+    /**
+     * The timer sending the heartbeats.
+     */
+    private Timer heartbeat = null;
+
     // ===========================================================================
     /**
      * Creates an instance that connects locally.
@@ -193,9 +207,24 @@ public class GxoClient
 
     // ===========================================================================
     /**
-     * Closes the connection.
+     * Closes the connection and stops the heartbeat.
      */
     public synchronized void close()
+    {
+        if (heartbeat != null)
+        {
+            heartbeat.cancel();
+            heartbeat = null;
+        }
+
+        disconnect();
+    }
+
+    // ===========================================================================
+    /**
+     * Closes the connection. It is reopened by the next request.
+     */
+    private synchronized void disconnect()
     {
         if (connected)
         {
@@ -240,7 +269,7 @@ public class GxoClient
             if (!local)
             {
                 if (socket != null && socket.isInputShutdown())
-                    close();
+                    disconnect();
 
                 if (!connected)
                 {
@@ -331,6 +360,87 @@ public class GxoClient
         return (T) Proxy.newProxyInstance(t.getClassLoader(), new Class<?>[] {t}, new Handler(t.getName(), sessionid, ip));
     }
 
+    // ===========================================================================
+    /**
+     * Creates a new batch. Invocations on proxies obtained from the batch are
+     * collected and sent to the server in one request when the batch is flushed.
+     *
+     * @param transactional True to execute every flush of the batch in one transaction.
+     * @return The new batch.
+     */
+    public GxoBatch createBatch(boolean transactional)
+    {
+        return new GxoBatch(this, transactional);
+    }
+
+    // ===========================================================================
+    /**
+     * Converts the response of the server to the result returned to the invoker.
+     * Iterator chunks are wrapped in a GxoIterator that fetches the remaining chunks.
+     *
+     * @param response The response received.
+     * @return The result.
+     */
+    Object toResult(Object response)
+    {
+        if (response instanceof IteratorBean)
+            return new GxoIterator<Object>(this, (IteratorBean) response);
+
+        return response;
+    }
+
+    // ===========================================================================
+    /**
+     * Sends a heartbeat to the server. This keeps the connection from being closed
+     * by the server for being idle, and detects a broken connection early.
+     *
+     * @throws Throwable If the server could not be reached.
+     */
+    public void ping() throws Throwable
+    {
+        write(new PingBean());
+    }
+
+    // ===========================================================================
+    /**
+     * Sets the heartbeat interval. If the connection has not been used for the
+     * given number of milliseconds, a heartbeat is sent to the server.
+     * A value of 0 disables the heartbeat.
+     *
+     * @param interval The interval in milliseconds.
+     */
+    public synchronized void setHeartbeat(final long interval)
+    {
+        if (heartbeat != null)
+        {
+            heartbeat.cancel();
+            heartbeat = null;
+        }
+
+        if (interval > 0 && !local)
+        {
+            heartbeat = new Timer("GXO Heartbeat", true);
+            heartbeat.schedule(new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    if (connected && System.currentTimeMillis() - lastUse >= interval)
+                    {
+                        try
+                        {
+                            ping();
+                        }
+                        catch (Throwable e)
+                        {
+                            logger.warn("Heartbeat failed: " + e.getMessage());
+                        }
+                    }
+                }
+            }, interval, interval);
+        }
+    }
+
     // ===========================================================================
     /**
      * Returns the xstream stream.
@@ -349,7 +459,7 @@ public class GxoClient
      * @return The result.
      * @throws Throwable If the connections failed, or the returned value is
      */
-    private Object write(Object o) throws Throwable
+    Object write(Object o) throws Throwable
     {
         Object result = null;
         int retries = 3;
@@ -365,12 +475,13 @@ public class GxoClient
                         stream.toXML(o, out);
                         out.flush();
                         result = stream.fromXML(in);
+                        lastUse = System.currentTimeMillis();
 
                         break;
                     }
                     catch (StreamException e)
                     {
-                        close();
+                        disconnect();
                     }
                     catch (Throwable e)
                     {
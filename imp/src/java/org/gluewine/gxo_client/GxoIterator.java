@@ -0,0 +1,143 @@
+/**************************************************************************
+ *
+ * Gluewine GXO Client Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.gxo_client;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.gluewine.gxo.FetchBean;
+import org.gluewine.gxo.IteratorBean;
+
+/**
+ * Iterator returned by proxies for service methods returning an Iterator.
+ *
+ * The elements are fetched from the server one chunk at a time, when the
+ * previous chunk has been consumed. Only one chunk is kept in memory.
+ * If the iterator is not consumed completely, it should be closed to release
+ * the iterator on the server.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ * @param <E> The type of the elements.
+ */
+public class GxoIterator<E> implements Iterator<E>, Closeable
+{
+    // ===========================================================================
+    /**
+     * The client used to fetch the chunks.
+     */
+    private GxoClient client = null;
+
+    /**
+     * The id of the iterator on the server.
+     */
+    private String id = null;
+
+    /**
+     * The current chunk.
+     */
+    private List<Object> elements = null;
+
+    /**
+     * Index of the next element in the current chunk.
+     */
+    private int index = 0;
+
+    /**
+     * Flag indicating that more elements are available on the server.
+     */
+    private boolean more = false;
+
+    // ===========================================================================
+    /**
+     * Creates an instance.
+     *
+     * @param client The client to use.
+     * @param first The first chunk.
+     */
+    GxoIterator(GxoClient client, IteratorBean first)
+    {
+        this.client = client;
+        this.id = first.getId();
+        this.elements = first.getElements();
+        this.more = first.hasMore();
+    }
+
+    // ===========================================================================
+    @Override
+    public boolean hasNext()
+    {
+        while (index >= elements.size() && more)
+        {
+            try
+            {
+                IteratorBean chunk = (IteratorBean) client.write(new FetchBean(id, false));
+                elements = chunk.getElements();
+                more = chunk.hasMore();
+                index = 0;
+            }
+            catch (RuntimeException e)
+            {
+                throw e;
+            }
+            catch (Throwable e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return index < elements.size();
+    }
+
+    // ===========================================================================
+    @Override
+    @SuppressWarnings("unchecked")
+    public E next()
+    {
+        if (!hasNext()) throw new NoSuchElementException();
+        return (E) elements.get(index++);
+    }
+
+    // ===========================================================================
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException("Elements cannot be removed from a remote iterator");
+    }
+
+    // ===========================================================================
+    @Override
+    public void close()
+    {
+        if (more)
+        {
+            more = false;
+            try
+            {
+                client.write(new FetchBean(id, true));
+            }
+            catch (Throwable e)
+            {
+                // The server closes its open iterators when the connection ends.
+            }
+        }
+    }
+}
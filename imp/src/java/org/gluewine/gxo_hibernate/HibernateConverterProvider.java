@@ -18,8 +18,8 @@
  ***************************************************************************/
 package org.gluewine.gxo_hibernate;
 
-import org.gluewine.gxo_server.XStreamConverterProvider;
-import org.gluewine.gxo_server.XStreamProvider;
+import org.gluewine.xstream.XStreamConverterProvider;
+import org.gluewine.xstream.XStreamProvider;
 
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.hibernate.converter.HibernatePersistentCollectionConverter;
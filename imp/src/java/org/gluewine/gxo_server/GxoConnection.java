@@ -0,0 +1,288 @@
+/**************************************************************************
+ *
+ * Gluewine GXO Server Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.gxo_server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A GXO connection, with the objects that have been instantiated through it.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+final class GxoConnection
+{
+    // ===========================================================================
+    /**
+     * Map of instantiated objects, in access order. When the maximum size is exceeded
+     * the least recently used object is removed.
+     */
+    static final class InstantiatedMap extends LinkedHashMap<String, Object>
+    {
+        /**
+         * The serial uid.
+         */
+        private static final long serialVersionUID = -1937462771618497620L;
+
+        /**
+         * The maximum number of objects. (0 = unlimited)
+         */
+        private final int maxSize;
+
+        /**
+         * The counter to increase when an object is evicted.
+         */
+        private final transient AtomicLong evicted;
+
+        // ===========================================================================
+        /**
+         * Creates an instance.
+         *
+         * @param maxSize The maximum number of objects. (0 = unlimited)
+         * @param evicted The counter to increase when an object is evicted.
+         */
+        InstantiatedMap(int maxSize, AtomicLong evicted)
+        {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+            this.evicted = evicted;
+        }
+
+        // ===========================================================================
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest)
+        {
+            if (maxSize <= 0 || size() <= maxSize) return false;
+
+            close(eldest.getValue());
+            evicted.incrementAndGet();
+            return true;
+        }
+
+        // ===========================================================================
+        /**
+         * Removes all objects, closing those that are closeable, like the open
+         * iterators.
+         */
+        void closeAll()
+        {
+            for (Object o : values())
+                close(o);
+
+            clear();
+        }
+
+        // ===========================================================================
+        /**
+         * Closes the given object if it is closeable.
+         *
+         * @param o The object to close.
+         */
+        private static void close(Object o)
+        {
+            if (o instanceof AutoCloseable)
+            {
+                try
+                {
+                    ((AutoCloseable) o).close();
+                }
+                catch (Throwable e)
+                {
+                    Logger.getLogger(GxoConnection.class).warn(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The socket.
+     */
+    private final Socket socket;
+
+    /**
+     * The objects instantiated through this connection.
+     */
+    private final InstantiatedMap instantiated;
+
+    /**
+     * Creation timestamp.
+     */
+    private final long created = System.currentTimeMillis();
+
+    /**
+     * Timestamp of the last activity.
+     */
+    private volatile long lastActivity = created;
+
+    /**
+     * True while a request is being processed.
+     */
+    private volatile boolean busy = false;
+
+    /**
+     * Number of requests processed.
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    // ===========================================================================
+    /**
+     * Creates an instance.
+     *
+     * @param socket The socket.
+     * @param maxInstantiated The maximum number of instantiated objects. (0 = unlimited)
+     * @param evicted The counter to increase when an instantiated object is evicted.
+     */
+    GxoConnection(Socket socket, int maxInstantiated, AtomicLong evicted)
+    {
+        this.socket = socket;
+        this.instantiated = new InstantiatedMap(maxInstantiated, evicted);
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the socket.
+     *
+     * @return The socket.
+     */
+    Socket getSocket()
+    {
+        return socket;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the map of instantiated objects. Only to be used by the thread
+     * processing the connection.
+     *
+     * @return The map.
+     */
+    Map<String, Object> getInstantiated()
+    {
+        return instantiated;
+    }
+
+    // ===========================================================================
+    /**
+     * Releases the instantiated objects, closing the iterators that are still open.
+     * Only to be used by the thread processing the connection, once it has ended.
+     */
+    void release()
+    {
+        instantiated.closeAll();
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the number of instantiated objects.
+     *
+     * @return The number of objects.
+     */
+    int getInstantiatedCount()
+    {
+        return instantiated.size();
+    }
+
+    // ===========================================================================
+    /**
+     * Marks the start of a request.
+     */
+    void requestStarted()
+    {
+        busy = true;
+        requests.incrementAndGet();
+        lastActivity = System.currentTimeMillis();
+    }
+
+    // ===========================================================================
+    /**
+     * Marks the end of a request.
+     */
+    void requestFinished()
+    {
+        lastActivity = System.currentTimeMillis();
+        busy = false;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if a request is being processed.
+     *
+     * @return True if busy.
+     */
+    boolean isBusy()
+    {
+        return busy;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the creation timestamp.
+     *
+     * @return The timestamp.
+     */
+    long getCreated()
+    {
+        return created;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the timestamp of the last activity.
+     *
+     * @return The timestamp.
+     */
+    long getLastActivity()
+    {
+        return lastActivity;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the number of requests processed.
+     *
+     * @return The number of requests.
+     */
+    long getRequests()
+    {
+        return requests.get();
+    }
+
+    // ===========================================================================
+    /**
+     * Closes the socket. The thread processing the connection will stop
+     * as soon as it tries to read the next request.
+     */
+    void close()
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (IOException e)
+        {
+            Logger.getLogger(getClass()).warn(e);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/**************************************************************************
+ *
+ * Gluewine GXO Server Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.gxo_server;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps track of the open GXO connections.
+ *
+ * <p>Connections that have been idle for longer than the max idle time are closed by
+ * a reaper task. When the maximum number of connections is reached, the least recently
+ * used idle connection is closed to make room for a new one. If all connections are
+ * busy, the new connection is refused.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+final class GxoConnectionManager
+{
+    // ===========================================================================
+    /**
+     * The open connections.
+     */
+    private Set<GxoConnection> connections = new HashSet<GxoConnection>();
+
+    /**
+     * Max number of millis that a connection is allowed to be idle. (0 = unlimited)
+     */
+    private final long maxIdle;
+
+    /**
+     * Max number of open connections. (0 = unlimited)
+     */
+    private final int maxConnections;
+
+    /**
+     * Max number of instantiated objects per connection. (0 = unlimited)
+     */
+    private final int maxInstantiated;
+
+    /**
+     * The timer running the reaper.
+     */
+    private Timer timer = null;
+
+    /**
+     * Number of accepted connections.
+     */
+    private final AtomicLong accepted = new AtomicLong();
+
+    /**
+     * Number of refused connections.
+     */
+    private final AtomicLong refused = new AtomicLong();
+
+    /**
+     * Number of connections closed because they were idle for too long.
+     */
+    private final AtomicLong reaped = new AtomicLong();
+
+    /**
+     * Number of connections closed to make room for a new one.
+     */
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * Number of instantiated objects removed because a connection had too many.
+     */
+    private final AtomicLong evictedObjects = new AtomicLong();
+
+    /**
+     * Number of heartbeats received.
+     */
+    private final AtomicLong heartbeats = new AtomicLong();
+
+    /**
+     * The logger instance to use.
+     */
+    private Logger logger = Logger.getLogger(getClass());
+
+    // ===========================================================================
+    /**
+     * Creates an instance.
+     *
+     * @param maxIdle Max number of millis a connection can be idle. (0 = unlimited)
+     * @param maxConnections Max number of open connections. (0 = unlimited)
+     * @param maxInstantiated Max number of instantiated objects per connection. (0 = unlimited)
+     */
+    GxoConnectionManager(long maxIdle, int maxConnections, int maxInstantiated)
+    {
+        this.maxIdle = maxIdle;
+        this.maxConnections = maxConnections;
+        this.maxInstantiated = maxInstantiated;
+    }
+
+    // ===========================================================================
+    /**
+     * Starts the reaper.
+     */
+    synchronized void start()
+    {
+        if (maxIdle > 0 && timer == null)
+        {
+            long period = Math.max(1000, Math.min(maxIdle / 4, 30000));
+            timer = new Timer("GXO Connection Reaper", true);
+            timer.schedule(new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    reap();
+                }
+            }, period, period);
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Stops the reaper and closes all connections.
+     */
+    void stop()
+    {
+        List<GxoConnection> toClose = null;
+        synchronized (this)
+        {
+            if (timer != null)
+            {
+                timer.cancel();
+                timer = null;
+            }
+            toClose = new ArrayList<GxoConnection>(connections);
+            connections.clear();
+        }
+
+        for (GxoConnection c : toClose)
+            c.close();
+    }
+
+    // ===========================================================================
+    /**
+     * Registers a new connection for the given socket. If the maximum number of connections
+     * is reached, the least recently used idle connection is closed. If there is none, the
+     * socket is closed and null is returned.
+     *
+     * @param socket The socket to register.
+     * @return The (possibly null) connection.
+     */
+    GxoConnection open(Socket socket)
+    {
+        GxoConnection lru = null;
+        GxoConnection connection = null;
+        synchronized (this)
+        {
+            if (maxConnections > 0 && connections.size() >= maxConnections)
+            {
+                for (GxoConnection c : connections)
+                    if (!c.isBusy() && (lru == null || c.getLastActivity() < lru.getLastActivity())) lru = c;
+
+                if (lru != null) connections.remove(lru);
+            }
+
+            if (maxConnections <= 0 || connections.size() < maxConnections)
+            {
+                connection = new GxoConnection(socket, maxInstantiated, evictedObjects);
+                connections.add(connection);
+                accepted.incrementAndGet();
+            }
+        }
+
+        if (lru != null)
+        {
+            logger.info("Closing least recently used GXO connection from " + lru.getSocket().getRemoteSocketAddress());
+            evicted.incrementAndGet();
+            lru.close();
+        }
+
+        if (connection == null)
+        {
+            logger.warn("Refusing GXO connection from " + socket.getRemoteSocketAddress() + ": too many connections");
+            refused.incrementAndGet();
+            try
+            {
+                socket.close();
+            }
+            catch (Throwable e)
+            {
+                logger.warn(e);
+            }
+        }
+
+        return connection;
+    }
+
+    // ===========================================================================
+    /**
+     * Removes the given connection.
+     *
+     * @param connection The connection to remove.
+     */
+    synchronized void closed(GxoConnection connection)
+    {
+        connections.remove(connection);
+    }
+
+    // ===========================================================================
+    /**
+     * Registers a heartbeat.
+     */
+    void heartbeat()
+    {
+        heartbeats.incrementAndGet();
+    }
+
+    // ===========================================================================
+    /**
+     * Closes all connections that have been idle for longer than the max idle time.
+     */
+    void reap()
+    {
+        long now = System.currentTimeMillis();
+        List<GxoConnection> toClose = new ArrayList<GxoConnection>();
+        synchronized (this)
+        {
+            for (GxoConnection c : connections)
+                if (!c.isBusy() && now - c.getLastActivity() > maxIdle) toClose.add(c);
+
+            connections.removeAll(toClose);
+        }
+
+        for (GxoConnection c : toClose)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Closing idle GXO connection from " + c.getSocket().getRemoteSocketAddress());
+            reaped.incrementAndGet();
+            c.close();
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Returns a snapshot of the open connections.
+     *
+     * @return The connections.
+     */
+    synchronized List<GxoConnection> getConnections()
+    {
+        return new ArrayList<GxoConnection>(connections);
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the max number of instantiated objects per connection.
+     *
+     * @return The max number of objects. (0 = unlimited)
+     */
+    int getMaxInstantiated()
+    {
+        return maxInstantiated;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the max number of open connections.
+     *
+     * @return The max number of connections. (0 = unlimited)
+     */
+    int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the max idle time.
+     *
+     * @return The max idle time in millis. (0 = unlimited)
+     */
+    long getMaxIdle()
+    {
+        return maxIdle;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the number of accepted connections.
+     *
+     * @return The number of connections.
+     */
+    long getAccepted()
+    {
+        return accepted.get();
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the number of refused connections.
+     *
+     * @return The number of connections.
+     */
+    long getRefused()
+    {
+        return refused.get();
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the number of connections closed because they were idle.
+     *
+     * @return The number of connections.
+     */
+    long getReaped()
+    {
+        return reaped.get();
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the number of connections closed to make room for a new one.
+     *
+     * @return The number of connections.
+     */
+    long getEvicted()
+    {
+        return evicted.get();
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the number of instantiated objects that have been evicted.
+     *
+     * @return The number of objects.
+     */
+    long getEvictedObjects()
+    {
+        return evictedObjects.get();
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the number of heartbeats received.
+     *
+     * @return The number of heartbeats.
+     */
+    long getHeartbeats()
+    {
+        return heartbeats.get();
+    }
+}
@@ -18,47 +18,60 @@
  ***************************************************************************/
 package org.gluewine.gxo_server;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
+import org.gluewine.console.CLICommand;
+import org.gluewine.console.CommandContext;
+import org.gluewine.console.CommandProvider;
 import org.gluewine.core.ContextInitializer;
 import org.gluewine.core.Glue;
 import org.gluewine.core.RepositoryListener;
 import org.gluewine.core.RunOnActivate;
 import org.gluewine.core.RunOnDeactivate;
 import org.gluewine.core.RemoteCallValidator;
+import org.gluewine.gxo.BatchBean;
 import org.gluewine.gxo.CloseBean;
 import org.gluewine.gxo.CompressedBlockInputStream;
 import org.gluewine.gxo.CompressedBlockOutputStream;
 import org.gluewine.gxo.ExecBean;
+import org.gluewine.gxo.FetchBean;
 import org.gluewine.gxo.GxoException;
 import org.gluewine.gxo.InitBean;
+import org.gluewine.gxo.IteratorBean;
 import org.gluewine.gxo.LocalAccess;
+import org.gluewine.gxo.PingBean;
+import org.gluewine.persistence.Transactional;
 import org.gluewine.sessions.SessionExpiredException;
 import org.gluewine.sessions.SessionManager;
-import org.gluewine.sessions.Unsecured;
-import org.gluewine.utils.AnnotationUtility;
 import org.gluewine.utils.ErrorLogger;
+import org.gluewine.xstream.XStreamConverterProvider;
+import org.gluewine.xstream.XStreamFactory;
 
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.converters.basic.DateConverter;
 import com.thoughtworks.xstream.converters.reflection.ReflectionConverter;
-import com.thoughtworks.xstream.io.xml.StaxDriver;
 
 /**
  * Default implementation of the GxoServer.
@@ -66,7 +79,7 @@ import com.thoughtworks.xstream.io.xml.StaxDriver;
  * @author fks/Serge de Schaetzen
  *
  */
-public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Object>, XStreamConverterProvider
+public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Object>, XStreamConverterProvider, CommandProvider
 {
     // ===========================================================================
     /**
@@ -102,11 +115,6 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
      */
     private Set<RemoteCallValidator> validators = new HashSet<RemoteCallValidator>();
 
-    /**
-     * The set of registered xsteam converter providers.
-     */
-    private Set<XStreamConverterProvider> providers = new HashSet<XStreamConverterProvider>();
-
     /**
      * The logger instance to use.
      */
@@ -118,9 +126,24 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
     private int maxIdle = 300000;
 
     /**
-     * The set of open sockets.
+     * Max number of elements of an iterator that are sent in one chunk.
+     */
+    private int chunkSize = 100;
+
+    /**
+     * Max number of open connections. (0 = unlimited)
      */
-    private Set<Socket> openSockets = new HashSet<Socket>();
+    private int maxConnections = 0;
+
+    /**
+     * Max number of objects that can be instantiated per connection. (0 = unlimited)
+     */
+    private int maxInstantiated = 1000;
+
+    /**
+     * The manager of the open connections.
+     */
+    private GxoConnectionManager connections = null;
 
     /**
      * The port the server is listening to.
@@ -138,15 +161,28 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
      */
     private Map<String, Object> services = new HashMap<String, Object>();
 
+    /**
+     * The dispatch tables of the registered services, indexed on the same names
+     * as the services map. Each table contains the public methods of the service
+     * indexed on their name.
+     */
+    private Map<String, Map<String, List<ServiceMethod>>> dispatchTables = new ConcurrentHashMap<String, Map<String, List<ServiceMethod>>>();
+
     /**
      * Flag indicating that the server should stop.
      */
     private boolean stopRequested = false;
 
     /**
-     * The XStream serializer/deserializer.
+     * The factory providing the XStream serializer/deserializer.
      */
-    private XStream stream = null;
+    @Glue
+    private XStreamFactory factory = null;
+
+    /**
+     * The XStream borrowed for the request processed by the current thread.
+     */
+    private final ThreadLocal<XStream> requestStreams = new ThreadLocal<XStream>();
 
     /**
      * The session manager.
@@ -168,7 +204,6 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
     @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "SIC_INNER_SHOULD_BE_STATIC_ANON")
     public GxoServerImpl() throws Throwable
     {
-        stream = new XStream(new StaxDriver());
     }
 
     // ===========================================================================
@@ -194,20 +229,7 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
         }
         logger.debug("GXO Server stop requested.");
 
-        synchronized (openSockets)
-        {
-            for (Socket s : openSockets)
-            {
-                try
-                {
-                    s.close();
-                }
-                catch (Throwable e)
-                {
-                    logger.warn(e);
-                }
-            }
-        }
+        if (connections != null) connections.stop();
 
         try
         {
@@ -256,9 +278,55 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
     @Override
     public XStream getXStream()
     {
+        XStream stream = requestStreams.get();
+        if (stream != null) return stream;
+
+        // Outside a request. XStream is thread safe once configured, so the instance
+        // may be used even though it is given back to the pool.
+        stream = factory.borrowXStream();
+        factory.releaseXStream(stream);
         return stream;
     }
 
+    // ===========================================================================
+    /**
+     * Borrows an XStream for the request processed by the current thread.
+     */
+    private void bindXStream()
+    {
+        requestStreams.set(factory.borrowXStream());
+    }
+
+    // ===========================================================================
+    /**
+     * Gives back the XStream borrowed for the request processed by the current thread.
+     */
+    private void unbindXStream()
+    {
+        XStream stream = requestStreams.get();
+        requestStreams.remove();
+        factory.releaseXStream(stream);
+    }
+
+    // ===========================================================================
+    /**
+     * Blocks until the next request arrives, without consuming it.
+     *
+     * @param in The reader the request is read from.
+     * @param bin The stream the reader reads from, supporting mark and reset.
+     * @return False if the connection has been closed.
+     * @throws IOException If reading fails.
+     */
+    private static boolean awaitRequest(InputStreamReader in, InputStream bin) throws IOException
+    {
+        if (in.ready()) return true;
+
+        bin.mark(1);
+        if (bin.read() < 0) return false;
+        bin.reset();
+        return true;
+    }
+
     // ===========================================================================
     /**
      * Initializes the server.
@@ -272,6 +340,11 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
         stopRequested = false;
         port = Integer.parseInt(properties.getProperty("port", "1966"));
         maxIdle = Integer.parseInt(properties.getProperty("maxidle", "300")) * 1000;
+        chunkSize = Integer.parseInt(properties.getProperty("chunksize", "100"));
+        maxConnections = Integer.parseInt(properties.getProperty("maxconnections", "0"));
+        maxInstantiated = Integer.parseInt(properties.getProperty("maxinstantiated", "1000"));
+        connections = new GxoConnectionManager(maxIdle, maxConnections, maxInstantiated);
+        connections.start();
         Thread th = new Thread(this, "GXO Server Thread");
         th.start();
     }
@@ -284,7 +357,8 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
     public void processLocalRequests()
     {
         // The map containing the instantiated services.
-        Map<String, Object> instantiated = new HashMap<String, Object>();
+        int max = Integer.parseInt(properties.getProperty("maxinstantiated", "1000"));
+        GxoConnection.InstantiatedMap instantiated = new GxoConnection.InstantiatedMap(max, new AtomicLong());
 
         try
         {
@@ -294,17 +368,18 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
 
             while (!stopRequested)
             {
+                bindXStream();
                 try
                 {
-                    Object ob = stream.fromXML(in);
-
-                    if (ob instanceof ExecBean) processExecBean(out, instantiated, (ExecBean) ob);
-                    else if (ob instanceof InitBean) processInitBean(out, instantiated, (InitBean) ob);
+                    Object ob = getXStream().fromXML(in);
+                    processBean(out, instantiated, ob);
                 }
                 catch (Throwable e)
                 {
                     if (la.isClosed())
                     {
+                        // A new client connects: release everything the previous one left open.
+                        instantiated.closeAll();
                         in = new InputStreamReader(la.getClientInputStream(), "UTF-8");
                         out = new OutputStreamWriter(la.getClientOutputStream(), "UTF-8");
                     }
@@ -312,12 +387,46 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
                     else if (!stopRequested)
                         la.close();
                 }
+                finally
+                {
+                    unbindXStream();
+                }
             }
         }
         catch (Throwable e)
         {
             ErrorLogger.log(getClass(), e);
         }
+        finally
+        {
+            instantiated.closeAll();
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Dispatches the bean given to the method processing it.
+     *
+     * @param out The output stream to write to.
+     * @param instantiated The map of instantiated objects.
+     * @param ob The bean to process.
+     * @throws IOException Thrown if an error occurs writing back to the caller.
+     */
+    private void processBean(OutputStreamWriter out, Map<String, Object> instantiated, Object ob) throws IOException
+    {
+        if (ob instanceof ExecBean) processExecBean(out, instantiated, (ExecBean) ob);
+
+        else if (ob instanceof BatchBean) processBatchBean(out, instantiated, (BatchBean) ob);
+
+        else if (ob instanceof FetchBean) processFetchBean(out, instantiated, (FetchBean) ob);
+
+        else if (ob instanceof InitBean) processInitBean(out, instantiated, (InitBean) ob);
+
+        else if (ob instanceof PingBean)
+        {
+            getXStream().toXML(Boolean.TRUE, out);
+            out.flush();
+        }
     }
 
     // ===========================================================================
@@ -339,13 +448,13 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
         catch (SessionExpiredException e)
         {
             GxoException ge = new GxoException(e);
-            stream.toXML(ge, out);
+            getXStream().toXML(ge, out);
         }
         catch (Throwable e)
         {
             ErrorLogger.log(getClass(), e);
             GxoException ge = new GxoException(toRegularException(e));
-            stream.toXML(ge, out);
+            getXStream().toXML(ge, out);
         }
         out.flush();
     }
@@ -366,26 +475,29 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
         try
         {
             Object result = processInitBean(instantiated, bean);
-            stream.toXML(result, out);
+            getXStream().toXML(result, out);
         }
         catch (Throwable e)
         {
             ErrorLogger.log(getClass(), e);
             GxoException ge = new GxoException(toRegularException(e));
-            stream.toXML(ge, out);
+            getXStream().toXML(ge, out);
         }
         out.flush();
     }
 
     // ===========================================================================
     /**
-     * Processes a socket. This will read ExecBeans and dispatch them
+     * Processes a connection. This will read ExecBeans and dispatch them
      * to the right service, until a CloseBean is received or the socket is closed.
+     * Idle connections are closed by the connection manager.
      *
-     * @param socket The socket to process.
+     * @param connection The connection to process.
+     * @param manager The manager owning the connection.
      */
-    private void process(Socket socket)
+    private void process(GxoConnection connection, GxoConnectionManager manager)
     {
+        Socket socket = connection.getSocket();
         CompressedBlockInputStream cin = null;
         CompressedBlockOutputStream cout = null;
         try
@@ -393,35 +505,53 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
             socket.setKeepAlive(true);
             cin = new CompressedBlockInputStream(socket.getInputStream());
             cout = new CompressedBlockOutputStream(socket.getOutputStream(), 1024);
-            InputStreamReader in = new InputStreamReader(cin, "UTF-8");
+            InputStream bin = new BufferedInputStream(cin);
+            InputStreamReader in = new InputStreamReader(bin, "UTF-8");
             OutputStreamWriter out = new OutputStreamWriter(cout, "UTF-8");
 
             // The map containing the instantiated services.
-            Map<String, Object> instantiated = new HashMap<String, Object>();
-            if (maxIdle > 0) socket.setSoTimeout(maxIdle);
+            Map<String, Object> instantiated = connection.getInstantiated();
 
-            while (true)
+            // The XStream is only borrowed once a request has arrived, so that idle
+            // connections do not hold on to one.
+            while (awaitRequest(in, bin))
             {
-                Object ob = stream.fromXML(in);
+                bindXStream();
+                try
+                {
+                    Object ob = getXStream().fromXML(in);
 
-                if (ob instanceof ExecBean) processExecBean(out, instantiated, (ExecBean) ob);
+                    if (ob instanceof CloseBean)
+                    {
+                        if (logger.isDebugEnabled())
+                            logger.debug("Closing socket");
 
-                else if (ob instanceof InitBean) processInitBean(out, instantiated, (InitBean) ob);
+                        socket.close();
+                        socket = null;
+                        return;
+                    }
 
-                else if (ob instanceof CloseBean)
-                {
-                    if (logger.isDebugEnabled())
-                        logger.debug("Closing socket");
+                    if (ob instanceof PingBean) manager.heartbeat();
 
-                    socket.close();
-                    socket = null;
-                    return;
+                    connection.requestStarted();
+                    try
+                    {
+                        processBean(out, instantiated, ob);
+                    }
+                    finally
+                    {
+                        connection.requestFinished();
+                    }
+                }
+                finally
+                {
+                    unbindXStream();
                 }
             }
         }
         catch (Throwable e)
         {
-            if (e.getMessage() == null || (e.getMessage().indexOf("Read timed out") < 0 && e.getMessage().indexOf("Connection reset") < 0) && e.getMessage().indexOf("ParseError at [row,col]:[1,1]") < 0)
+            if (!socket.isClosed() && (e.getMessage() == null || (e.getMessage().indexOf("Read timed out") < 0 && e.getMessage().indexOf("Connection reset") < 0) && e.getMessage().indexOf("ParseError at [row,col]:[1,1]") < 0))
                 ErrorLogger.log(getClass(), e);
         }
 
@@ -437,11 +567,9 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
                 {
                     logger.warn(e);
                 }
-                synchronized (openSockets)
-                {
-                    openSockets.remove(socket);
-                }
             }
+            connection.release();
+            manager.closed(connection);
         }
     }
 
@@ -458,16 +586,16 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
         if (logger.isDebugEnabled())
             logger.debug("Executing " + bean.getService() + ":" + bean.getMethod());
 
-        Object o = instantiated.get(bean.getService());
-        if (o == null) o = services.get(bean.getService());
+        boolean registered = !instantiated.containsKey(bean.getService());
+        Object o = registered ? services.get(bean.getService()) : instantiated.get(bean.getService());
 
         if (o != null)
         {
             try
             {
-                Method m = o.getClass().getMethod(bean.getMethod(), bean.getParamTypes());
+                ServiceMethod m = getServiceMethod(o, registered, bean);
 
-                if (AnnotationUtility.getAnnotation(Unsecured.class, m, o) == null)
+                if (!m.isUnsecured())
                 {
                     if (sessionManager != null)
                     {
@@ -477,9 +605,9 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
                 }
 
                 for (RemoteCallValidator validator : validators)
-                    validator.validateCall("GXO", o, m, bean.getParams());
+                    validator.validateCall("GXO", o, m.getMethod(), bean.getParams());
 
-                invokeMethod(out, m, o, bean.getParams());
+                invokeMethod(out, instantiated, m, o, bean.getParams());
                 if (logger.isTraceEnabled())
                     logger.trace(bean.getService() + ":" + bean.getMethod() + " finished");
             }
@@ -492,26 +620,205 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
             {
                 ErrorLogger.log(getClass(), e);
                 GxoException ge = new GxoException(toRegularException(e.getCause()));
-                stream.toXML(ge, out);
+                getXStream().toXML(ge, out);
             }
             catch (Throwable e)
             {
                 ErrorLogger.log(getClass(), e);
                 GxoException ge = new GxoException(toRegularException(e));
-                stream.toXML(ge, out);
+                getXStream().toXML(ge, out);
+            }
+            finally
+            {
+                // The thread is reused for the next request of the connection.
+                if (sessionManager != null) sessionManager.clearCurrentSessionId();
             }
         }
         else
         {
             logger.warn("Undefined service " + bean.getService());
             GxoException ge = new GxoException("Undefined service " + bean.getService());
-            stream.toXML(ge, out);
+            getXStream().toXML(ge, out);
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the method to invoke for the given bean. If the object is a registered
+     * service, the method is taken from its dispatch table.
+     *
+     * @param o The object to invoke the method on.
+     * @param registered True if the object is a registered service.
+     * @param bean The bean being processed.
+     * @return The method.
+     * @throws NoSuchMethodException If the object has no such method.
+     */
+    private ServiceMethod getServiceMethod(Object o, boolean registered, ExecBean bean) throws NoSuchMethodException
+    {
+        ServiceMethod m = null;
+        if (registered)
+        {
+            Map<String, List<ServiceMethod>> table = dispatchTables.get(bean.getService());
+            if (table != null) m = ServiceMethod.lookup(table, bean.getMethod(), bean.getParamTypes());
+        }
+
+        if (m == null) m = new ServiceMethod(o.getClass().getMethod(bean.getMethod(), bean.getParamTypes()), o, false);
+        return m;
+    }
+
+    // ===========================================================================
+    /**
+     * Processes the given batch bean and writes the list of results on the given output
+     * stream. All requests are executed in the same context, and every session is only
+     * checked once.
+     *
+     * @param out The output stream to write to.
+     * @param instantiated The map of instantiated objects.
+     * @param bean The bean to process.
+     * @throws IOException Thrown if an error occurs writing back to the caller.
+     */
+    @ContextInitializer
+    public void processBatchBean(OutputStreamWriter out, Map<String, Object> instantiated, BatchBean bean) throws IOException
+    {
+        if (logger.isDebugEnabled())
+            logger.debug("Executing batch of " + bean.getBeans().size() + " requests");
+
+        List<Object> results = new ArrayList<Object>(bean.getBeans().size());
+        try
+        {
+            if (bean.isTransactional()) executeTransactionalBatch(instantiated, bean, results);
+            else executeBatch(instantiated, bean, results, false);
+        }
+        catch (Throwable e)
+        {
+            // The transaction has been rolled back, so none of the requests have succeeded.
+            // The iterators they returned are never sent to the client, so they are closed.
+            GxoException rolledBack = new GxoException("Batch rolled back");
+            for (int i = 0; i < bean.getBeans().size(); i++)
+            {
+                if (i >= results.size()) results.add(rolledBack);
+                else if (!(results.get(i) instanceof GxoException))
+                {
+                    Object result = results.set(i, rolledBack);
+                    if (result instanceof IteratorBean && ((IteratorBean) result).hasMore())
+                        closeIterator(instantiated, ((IteratorBean) result).getId());
+                }
+            }
+        }
+
+        getXStream().toXML(results, out);
+        out.flush();
+    }
+
+    // ===========================================================================
+    /**
+     * Executes all requests of the batch in one transaction. Execution stops at the first
+     * failing request, in which case an exception is thrown to roll back the transaction.
+     *
+     * @param instantiated The map of instantiated objects.
+     * @param bean The bean to process.
+     * @param results The list to update with the results.
+     * @throws GxoException If one of the requests failed.
+     */
+    @Transactional
+    public void executeTransactionalBatch(Map<String, Object> instantiated, BatchBean bean, List<Object> results) throws GxoException
+    {
+        if (!executeBatch(instantiated, bean, results, true))
+            throw new GxoException("Batch request " + results.size() + " failed");
+    }
+
+    // ===========================================================================
+    /**
+     * Executes the requests of the batch and adds their results to the given list.
+     * A failed request is added as a GxoException.
+     *
+     * @param instantiated The map of instantiated objects.
+     * @param bean The bean to process.
+     * @param results The list to update with the results.
+     * @param stopOnFailure If true, execution stops at the first failing request.
+     * @return True if all requests succeeded.
+     */
+    private boolean executeBatch(Map<String, Object> instantiated, BatchBean bean, List<Object> results, boolean stopOnFailure)
+    {
+        boolean success = true;
+        Map<String, SessionExpiredException> checkedSessions = new HashMap<String, SessionExpiredException>();
+
+        for (ExecBean exec : bean.getBeans())
+        {
+            Object result = null;
+            boolean registered = !instantiated.containsKey(exec.getService());
+            Object o = registered ? services.get(exec.getService()) : instantiated.get(exec.getService());
+
+            if (o != null)
+            {
+                try
+                {
+                    ServiceMethod m = getServiceMethod(o, registered, exec);
+
+                    if (!m.isUnsecured() && sessionManager != null)
+                    {
+                        sessionManager.setCurrentSessionId(exec.getSessionId());
+                        if (!checkedSessions.containsKey(exec.getSessionId()))
+                        {
+                            try
+                            {
+                                sessionManager.checkAndTickSession(exec.getSessionId());
+                                checkedSessions.put(exec.getSessionId(), null);
+                            }
+                            catch (SessionExpiredException e)
+                            {
+                                checkedSessions.put(exec.getSessionId(), e);
+                            }
+                        }
+                        if (checkedSessions.get(exec.getSessionId()) != null)
+                            throw checkedSessions.get(exec.getSessionId());
+                    }
+
+                    for (RemoteCallValidator validator : validators)
+                        validator.validateCall("GXO", o, m.getMethod(), exec.getParams());
+
+                    result = toTransferable(instantiated, m, m.invoke(o, exec.getParams()));
+                }
+                catch (SessionExpiredException e)
+                {
+                    result = new GxoException(e);
+                }
+                catch (InvocationTargetException e)
+                {
+                    ErrorLogger.log(getClass(), e);
+                    result = new GxoException(toRegularException(e.getCause()));
+                }
+                catch (Throwable e)
+                {
+                    ErrorLogger.log(getClass(), e);
+                    result = new GxoException(toRegularException(e));
+                }
+                finally
+                {
+                    if (sessionManager != null) sessionManager.clearCurrentSessionId();
+                }
+            }
+            else
+            {
+                logger.warn("Undefined service " + exec.getService());
+                result = new GxoException("Undefined service " + exec.getService());
+            }
+
+            results.add(result);
+            if (result instanceof GxoException)
+            {
+                success = false;
+                if (stopOnFailure) break;
+            }
         }
+
+        return success;
     }
 
     /**
      * Calls a method and serialises the output.
      * @param out the stream to write to.
+     * @param instantiated the map of instantiated objects.
      * @param m the method to call.
      * @param o the object to call the method on.
      * @param params the method parameters.
@@ -519,10 +826,122 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
      * @throws IllegalAccessException if the call fails.
      */
     @ContextInitializer
-    public void invokeMethod(OutputStreamWriter out, Method m, Object o, Object[] params) throws InvocationTargetException, IllegalAccessException
+    public void invokeMethod(OutputStreamWriter out, Map<String, Object> instantiated, ServiceMethod m, Object o, Object[] params) throws InvocationTargetException, IllegalAccessException
     {
         Object result = m.invoke(o, params);
-        stream.toXML(result, out);
+        getXStream().toXML(toTransferable(instantiated, m, result), out);
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the object to send to the client for the given result. If the method
+     * is declared to return an Iterator, the iterator is kept in the map of instantiated
+     * objects and only its first chunk is returned. The client fetches the remaining
+     * chunks one by one, so that the result never has to be fully materialized.
+     *
+     * @param instantiated The map of instantiated objects.
+     * @param m The method that was invoked.
+     * @param result The result of the invocation.
+     * @return The object to send.
+     */
+    private Object toTransferable(Map<String, Object> instantiated, ServiceMethod m, Object result)
+    {
+        if (result instanceof Iterator && m.getMethod().getReturnType() == Iterator.class)
+        {
+            String id = UUID.randomUUID().toString();
+            instantiated.put(id, result);
+            return nextChunk(instantiated, id, (Iterator<?>) result);
+        }
+        return result;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the next chunk of elements of the given iterator. When the iterator is
+     * exhausted, it is removed from the map of instantiated objects.
+     *
+     * @param instantiated The map of instantiated objects.
+     * @param id The id of the iterator.
+     * @param it The iterator to process.
+     * @return The chunk.
+     */
+    private IteratorBean nextChunk(Map<String, Object> instantiated, String id, Iterator<?> it)
+    {
+        IteratorBean chunk = new IteratorBean(id);
+        for (int i = 0; i < chunkSize && it.hasNext(); i++)
+            chunk.getElements().add(it.next());
+
+        chunk.setMore(it.hasNext());
+        if (!chunk.hasMore()) closeIterator(instantiated, id);
+
+        return chunk;
+    }
+
+    // ===========================================================================
+    /**
+     * Removes the iterator with the given id from the map of instantiated objects
+     * and closes it if it is closeable.
+     *
+     * @param instantiated The map of instantiated objects.
+     * @param id The id of the iterator.
+     */
+    private void closeIterator(Map<String, Object> instantiated, String id)
+    {
+        Object it = instantiated.remove(id);
+        if (it instanceof AutoCloseable)
+        {
+            try
+            {
+                ((AutoCloseable) it).close();
+            }
+            catch (Throwable e)
+            {
+                logger.warn(e);
+            }
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Processes the given fetch bean and writes the next chunk of the requested iterator
+     * on the given output stream.
+     *
+     * @param out The output stream to write to.
+     * @param instantiated The map of instantiated objects.
+     * @param bean The bean to process.
+     * @throws IOException Thrown if an error occurs writing back to the caller.
+     */
+    @ContextInitializer
+    public void processFetchBean(OutputStreamWriter out, Map<String, Object> instantiated, FetchBean bean) throws IOException
+    {
+        Object result = null;
+        Object it = instantiated.get(bean.getId());
+
+        if (!(it instanceof Iterator))
+            result = new GxoException("Undefined iterator " + bean.getId());
+
+        else if (bean.isClose())
+        {
+            closeIterator(instantiated, bean.getId());
+            result = new IteratorBean(bean.getId());
+        }
+
+        else
+        {
+            try
+            {
+                result = nextChunk(instantiated, bean.getId(), (Iterator<?>) it);
+            }
+            catch (Throwable e)
+            {
+                ErrorLogger.log(getClass(), e);
+                closeIterator(instantiated, bean.getId());
+                result = new GxoException(toRegularException(e));
+            }
+        }
+
+        getXStream().toXML(result, out);
+        out.flush();
     }
 
     // ===========================================================================
@@ -586,20 +1005,15 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
     @Override
     public void registered(Object o)
     {
-        if (o instanceof XStreamProvider)
-            initializeStream((XStreamProvider) o);
-
-        if (o instanceof XStreamConverterProvider)
-        {
-            ((XStreamConverterProvider) o).registerConverters(stream);
-            providers.add((XStreamConverterProvider) o);
-        }
-
         Set<Class<?>> interfs = getInterfaces(o.getClass(), null);
+        Map<String, List<ServiceMethod>> table = ServiceMethod.createTable(o);
         synchronized (services)
         {
             for (Class<?> interf : interfs)
+            {
                 services.put(interf.getName(), o);
+                dispatchTables.put(interf.getName(), table);
+            }
         }
 
         if (o instanceof RemoteCallValidator)
@@ -609,20 +1023,6 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
             sessionManager = (SessionManager) o;
     }
 
-    // ===========================================================================
-    /**
-     * Initializes a new XStream using the given provider.
-     *
-     * @param provider The provider to use.
-     */
-    private void initializeStream(XStreamProvider provider)
-    {
-        stream = provider.getXStream();
-        // Reregister all available converters:
-        for (XStreamConverterProvider prov : providers)
-            prov.registerConverters(stream);
-    }
-
     // ===========================================================================
     @Override
     public void run()
@@ -639,10 +1039,10 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
                     try
                     {
                         final Socket socket = server.accept();
-                        synchronized (openSockets)
-                        {
-                            openSockets.add(socket);
-                        }
+                        final GxoConnectionManager manager = connections;
+                        final GxoConnection connection = manager.open(socket);
+                        if (connection == null) continue;
+
                         Thread thread = new Thread()
                         {
                             public void run()
@@ -651,7 +1051,7 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
                                     logger.debug("Accepting incoming session from " + socket.getRemoteSocketAddress().toString());
                                 try
                                 {
-                                    process(socket);
+                                    process(connection, manager);
                                 }
                                 catch (Throwable e)
                                 {
@@ -698,6 +1098,7 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
         Set<Class<?>> interfaces = getInterfaces(cl, null);
         for (Class<?> interf : interfaces)
             instantiatables.put(interf.getName(), cl);
+        factory.registerClass(cl);
     }
 
     // ===========================================================================
@@ -721,14 +1122,14 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
     @Override
     public void unregistered(Object o)
     {
-        if (o instanceof XStreamConverterProvider)
-            providers.remove((XStreamConverterProvider) o);
-
         Set<Class<?>> interfs = getInterfaces(o.getClass(), null);
         synchronized (services)
         {
             for (Class<?> interf : interfs)
+            {
                 services.remove(interf.getName());
+                dispatchTables.remove(interf.getName());
+            }
         }
 
         if (o instanceof RemoteCallValidator)
@@ -742,6 +1143,7 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
         Set<Class<?>> interfaces = getInterfaces(cl, null);
         for (Class<?> interf : interfaces)
             instantiatables.remove(interf.getName());
+        factory.unregisterClass(cl);
     }
 
     // ===========================================================================
@@ -768,6 +1170,63 @@ public class GxoServerImpl implements Runnable, GxoServer, RepositoryListener<Ob
         });
     }
 
+    // ===========================================================================
+    /**
+     * Executes the gxo_connections command.
+     *
+     * @param cc The current context.
+     */
+    public void _gxo_connections(CommandContext cc)
+    {
+        long now = System.currentTimeMillis();
+        cc.tableHeader("Remote Address", "Age (s)", "Idle (s)", "Requests", "Objects", "Busy");
+        if (connections != null)
+        {
+            for (GxoConnection c : connections.getConnections())
+            {
+                String idle = c.isBusy() ? "0" : Long.toString((now - c.getLastActivity()) / 1000);
+                cc.tableRow(String.valueOf(c.getSocket().getRemoteSocketAddress()), Long.toString((now - c.getCreated()) / 1000),
+                            idle, Long.toString(c.getRequests()), Integer.toString(c.getInstantiatedCount()), Boolean.toString(c.isBusy()));
+            }
+        }
+        cc.printTable();
+    }
+
+    // ===========================================================================
+    /**
+     * Executes the gxo_stats command.
+     *
+     * @param cc The current context.
+     */
+    public void _gxo_stats(CommandContext cc)
+    {
+        cc.tableHeader("Metric", "Value");
+        if (connections != null)
+        {
+            cc.tableRow("Open connections", Integer.toString(connections.getConnections().size()));
+            cc.tableRow("Max connections", Integer.toString(connections.getMaxConnections()));
+            cc.tableRow("Max idle (s)", Long.toString(connections.getMaxIdle() / 1000));
+            cc.tableRow("Max objects per connection", Integer.toString(connections.getMaxInstantiated()));
+            cc.tableRow("Accepted connections", Long.toString(connections.getAccepted()));
+            cc.tableRow("Refused connections", Long.toString(connections.getRefused()));
+            cc.tableRow("Idle connections closed", Long.toString(connections.getReaped()));
+            cc.tableRow("LRU connections closed", Long.toString(connections.getEvicted()));
+            cc.tableRow("LRU objects removed", Long.toString(connections.getEvictedObjects()));
+            cc.tableRow("Heartbeats", Long.toString(connections.getHeartbeats()));
+        }
+        cc.printTable();
+    }
+
+    // ===========================================================================
+    @Override
+    public List<CLICommand> getCommands()
+    {
+        List<CLICommand> commands = new ArrayList<CLICommand>();
+        commands.add(new CLICommand("gxo_connections", "Lists the open GXO connections."));
+        commands.add(new CLICommand("gxo_stats", "Shows the GXO connection statistics."));
+        return commands;
+    }
+
     // ===========================================================================
     /**
      * Invoked when the properties have changed.
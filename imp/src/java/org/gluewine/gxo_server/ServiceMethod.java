@@ -0,0 +1,262 @@
+/**************************************************************************
+ *
+ * Gluewine GXO Server Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.gxo_server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.gluewine.sessions.Unsecured;
+import org.gluewine.utils.AnnotationUtility;
+
+/**
+ * A method that can be invoked through GXO. It holds everything that can be resolved
+ * once, when the service is registered: the method itself, its parameter types, a
+ * pre-adapted MethodHandle and the security flags.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public final class ServiceMethod
+{
+    // ===========================================================================
+    /**
+     * Empty parameter array.
+     */
+    private static final Object[] NO_PARAMS = new Object[0];
+
+    /**
+     * The method.
+     */
+    private final Method method;
+
+    /**
+     * The parameter types of the method.
+     */
+    private final Class<?>[] paramTypes;
+
+    /**
+     * The handle, with signature (Object, Object[])Object. Null if the method
+     * could not be unreflected, in which case regular reflection is used.
+     */
+    private final MethodHandle handle;
+
+    /**
+     * True if the method is annotated with @Unsecured.
+     */
+    private final boolean unsecured;
+
+    // ===========================================================================
+    /**
+     * Creates an instance.
+     *
+     * @param method The method to wrap.
+     * @param o The object owning the method.
+     * @param createHandle If false, the method will be invoked using reflection. This
+     *        avoids the cost of creating the handle for methods that are only used once.
+     */
+    ServiceMethod(Method method, Object o, boolean createHandle)
+    {
+        this.method = method;
+        this.paramTypes = method.getParameterTypes();
+        this.unsecured = AnnotationUtility.getAnnotation(Unsecured.class, method, o) != null;
+
+        MethodHandle h = null;
+        if (createHandle)
+        {
+            try
+            {
+                h = MethodHandles.publicLookup().unreflect(method);
+                h = h.asType(MethodType.genericMethodType(paramTypes.length + 1));
+                h = h.asSpreader(Object[].class, paramTypes.length);
+            }
+            catch (IllegalAccessException e)
+            {
+                // The declaring class is not accessible, use reflection instead.
+                h = null;
+            }
+        }
+        this.handle = h;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the wrapped method.
+     *
+     * @return The method.
+     */
+    public Method getMethod()
+    {
+        return method;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if the method can be invoked without a valid session.
+     *
+     * @return True if unsecured.
+     */
+    public boolean isUnsecured()
+    {
+        return unsecured;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if the method accepts exactly the given parameter types.
+     *
+     * @param types The types to check.
+     * @return True if matching.
+     */
+    boolean matches(Class<?>[] types)
+    {
+        if (types == null) return paramTypes.length == 0;
+        return Arrays.equals(paramTypes, types);
+    }
+
+    // ===========================================================================
+    /**
+     * Invokes the method on the given object. As with Method.invoke(), any exception
+     * thrown by the method itself is wrapped in an InvocationTargetException.
+     *
+     * @param o The object to invoke the method on.
+     * @param params The parameters.
+     * @return The result of the invocation.
+     * @throws InvocationTargetException If the method threw an exception.
+     * @throws IllegalAccessException If the method is not accessible.
+     */
+    public Object invoke(Object o, Object[] params) throws InvocationTargetException, IllegalAccessException
+    {
+        if (params == null) params = NO_PARAMS;
+        if (handle == null) return method.invoke(o, params);
+
+        if (params.length != paramTypes.length)
+            throw new IllegalArgumentException("wrong number of arguments");
+
+        // The adapted handle reports bad arguments with a ClassCastException or a
+        // NullPointerException, which cannot be told apart from those thrown by the
+        // method itself. Check them here, as Method.invoke() would.
+        for (int i = 0; i < params.length; i++)
+        {
+            if (!isAssignable(paramTypes[i], params[i]))
+                throw new IllegalArgumentException("argument type mismatch");
+        }
+
+        try
+        {
+            return (Object) handle.invokeExact(o, params);
+        }
+        catch (Throwable e)
+        {
+            throw new InvocationTargetException(e);
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if the given value can be passed as a parameter of the given type.
+     *
+     * @param type The parameter type.
+     * @param value The value to check.
+     * @return True if assignable.
+     */
+    private static boolean isAssignable(Class<?> type, Object value)
+    {
+        if (!type.isPrimitive()) return value == null || type.isInstance(value);
+        if (value == null) return false;
+
+        Class<?> c = value.getClass();
+        if (type == Boolean.TYPE) return c == Boolean.class;
+        else if (type == Character.TYPE) return c == Character.class;
+        else if (type == Byte.TYPE) return c == Byte.class;
+        else if (type == Short.TYPE) return c == Short.class || c == Byte.class;
+        else if (type == Integer.TYPE) return c == Integer.class || c == Short.class || c == Byte.class || c == Character.class;
+        else if (type == Long.TYPE) return c == Long.class || c == Integer.class || c == Short.class || c == Byte.class || c == Character.class;
+        else if (type == Float.TYPE) return c == Float.class || c == Long.class || c == Integer.class || c == Short.class || c == Byte.class || c == Character.class;
+        else return c == Double.class || c == Float.class || c == Long.class || c == Integer.class || c == Short.class || c == Byte.class || c == Character.class;
+    }
+
+    // ===========================================================================
+    /**
+     * Builds the dispatch table for the given object. The table contains all public
+     * methods of the object, indexed on their name. Bridge methods are added after
+     * the regular methods so that a lookup always prefers the latter.
+     *
+     * @param o The object to process.
+     * @return The table.
+     */
+    static Map<String, List<ServiceMethod>> createTable(Object o)
+    {
+        Map<String, List<ServiceMethod>> table = new HashMap<String, List<ServiceMethod>>();
+        Method[] methods = o.getClass().getMethods();
+        for (Method m : methods)
+            if (!m.isBridge()) addToTable(table, m, o);
+
+        for (Method m : methods)
+            if (m.isBridge()) addToTable(table, m, o);
+
+        return table;
+    }
+
+    // ===========================================================================
+    /**
+     * Adds the given method to the table.
+     *
+     * @param table The table to update.
+     * @param m The method to add.
+     * @param o The object owning the method.
+     */
+    private static void addToTable(Map<String, List<ServiceMethod>> table, Method m, Object o)
+    {
+        List<ServiceMethod> overloads = table.get(m.getName());
+        if (overloads == null)
+        {
+            overloads = new ArrayList<ServiceMethod>(1);
+            table.put(m.getName(), overloads);
+        }
+        overloads.add(new ServiceMethod(m, o, true));
+    }
+
+    // ===========================================================================
+    /**
+     * Looks up the method with the given name and parameter types in the table.
+     *
+     * @param table The table to search.
+     * @param name The name of the method.
+     * @param types The parameter types.
+     * @return The (possibly null) method.
+     */
+    static ServiceMethod lookup(Map<String, List<ServiceMethod>> table, String name, Class<?>[] types)
+    {
+        List<ServiceMethod> overloads = table.get(name);
+        if (overloads != null)
+        {
+            for (ServiceMethod sm : overloads)
+                if (sm.matches(types)) return sm;
+        }
+        return null;
+    }
+}
@@ -18,22 +18,14 @@
  ***************************************************************************/
 package org.gluewine.gxo_server;
 
-import com.thoughtworks.xstream.XStream;
-
 /**
- * Defines a class that offers additional XStream converters to the current stream.
+ * Kept for compatibility, implement org.gluewine.xstream.XStreamConverterProvider instead.
  *
  * @author fks/Serge de Schaetzen
  *
+ * @deprecated Use {@link org.gluewine.xstream.XStreamConverterProvider}.
  */
-public interface XStreamConverterProvider
+@Deprecated
+public interface XStreamConverterProvider extends org.gluewine.xstream.XStreamConverterProvider
 {
-    // ===========================================================================
-    /**
-     * Requests the class to register additional converters to the
-     * given stream.
-     *
-     * @param stream The stream to update.
-     */
-    void registerConverters(XStream stream);
 }
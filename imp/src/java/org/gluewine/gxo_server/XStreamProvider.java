@@ -18,20 +18,14 @@
  ***************************************************************************/
 package org.gluewine.gxo_server;
 
-import com.thoughtworks.xstream.XStream;
-
 /**
+ * Kept for compatibility, implement org.gluewine.xstream.XStreamProvider instead.
  *
  * @author fks/Serge de Schaetzen
  *
+ * @deprecated Use {@link org.gluewine.xstream.XStreamProvider}.
  */
-public interface XStreamProvider
+@Deprecated
+public interface XStreamProvider extends org.gluewine.xstream.XStreamProvider
 {
-    // ===========================================================================
-    /**
-     * Returns the XStream instance to be used.
-     *
-     * @return The XStream instance.
-     */
-    XStream getXStream();
 }
@@ -551,6 +551,7 @@ public class GluewineJettyLauncher implements RepositoryListener<Object>, Comman
         if (logger.isDebugEnabled()) logger.debug("Adding path: " + path + " to context " + ctx);
         ServletHolder holder = new ServletHolder((Servlet) servlet);
         if (initParameters != null) holder.setInitParameters(initParameters);
+        if (servlet instanceof GluewineServlet) holder.setAsyncSupported(((GluewineServlet) servlet).isAsyncSupported());
 
         handler.addServlet(holder, path);
     }
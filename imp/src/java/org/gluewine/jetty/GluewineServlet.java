@@ -57,4 +57,16 @@ public abstract class GluewineServlet extends HttpServlet
     {
         return new HashMap<String, String>();
     }
+
+    // ===========================================================================
+    /**
+     * Returns true if the servlet supports asynchronous processing. Subclasses
+     * should override this method if they use request.startAsync().
+     *
+     * @return True if asynchronous processing is supported.
+     */
+    public boolean isAsyncSupported()
+    {
+        return false;
+    }
 }
@@ -0,0 +1,58 @@
+/**************************************************************************
+ *
+ * Gluewine Persistence Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.persistence_jpa;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an entity as cacheable in the second level cache. This only has an
+ * effect when a cache region factory has been configured in the
+ * hibernate.properties file (hibernate.cache.region.factory_class).
+ *
+ * <p>Entities that are annotated are read from the cache when retrieved by
+ * their id. If queries is set to true, the results of getAll() are cached
+ * as well, provided that the query cache is enabled (hibernate.cache.use_query_cache).
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface CachedEntity
+{
+    // ===========================================================================
+    /**
+     * Returns true if the entity is never updated, allowing the cache to use
+     * the cheaper read-only strategy.
+     *
+     * @return True if read-only.
+     */
+    boolean readOnly() default false;
+
+    // ===========================================================================
+    /**
+     * Returns true if the queries returning all entities should be cached.
+     *
+     * @return True to cache the queries.
+     */
+    boolean queries() default false;
+}
@@ -56,6 +56,16 @@ public class Filter implements Serializable
      */
     private int offset = 0;
 
+    /**
+     * Flag indicating that the result of the query can be cached.
+     */
+    private boolean cacheable = false;
+
+    /**
+     * The values of the sort fields of the last entity of the previous page.
+     */
+    private List<Serializable> seek = new ArrayList<Serializable>();
+
     // ===========================================================================
     /**
      * Returns the lines contained in this filter.
@@ -148,4 +158,58 @@ public class Filter implements Serializable
     {
         this.offset = offset;
     }
+
+    // ===========================================================================
+    /**
+     * Returns the values to seek after.
+     *
+     * @return The (possibly empty) list of values.
+     */
+    public List<Serializable> getSeek()
+    {
+        List<Serializable> l = new ArrayList<Serializable>(seek.size());
+        l.addAll(seek);
+        return l;
+    }
+
+    // ===========================================================================
+    /**
+     * Sets the values of the sort fields of the last entity of the previous page,
+     * in the order of the sort lines. Only the entities sorted after these values
+     * will be returned. Unlike the offset, this allows the database to use an index
+     * to find the start of the page, whatever page is requested.
+     *
+     * <p>The sort lines must define a unique ordering, by ending with the id
+     * for instance, and the sort fields may not contain null values.
+     * Invoking this method without values disables seeking.
+     *
+     * @param values The values to seek after.
+     */
+    public void setSeek(Serializable... values)
+    {
+        seek.clear();
+        for (Serializable value : values)
+            seek.add(value);
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if the result of the query can be taken from, and stored in,
+     * the query cache. This requires the query cache to be enabled.
+     *
+     * @return True if cacheable.
+     */
+    public boolean isCacheable()
+    {
+        return cacheable;
+    }
+
+    // ===========================================================================
+    /**
+     * @param cacheable True to use the query cache.
+     */
+    public void setCacheable(boolean cacheable)
+    {
+        this.cacheable = cacheable;
+    }
 }
@@ -0,0 +1,39 @@
+/**************************************************************************
+ *
+ * Gluewine Persistence Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.persistence_jpa;
+
+/**
+ * Handles the entities returned by a scroll of a StreamingTransactionalSession, one at a time.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ * @param <E> The entity type.
+ */
+public interface ResultHandler<E>
+{
+    // ===========================================================================
+    /**
+     * Processes the given entity. The entity is read-only, and is evicted from the
+     * session once this method returns, so no reference should be kept to it.
+     *
+     * @param entity The entity to process.
+     * @return True to continue, false to stop scrolling.
+     */
+    boolean handle(E entity);
+}
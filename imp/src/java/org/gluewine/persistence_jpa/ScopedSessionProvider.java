@@ -0,0 +1,43 @@
+/**************************************************************************
+ *
+ * Gluewine Persistence Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.persistence_jpa;
+
+/**
+ * SessionProvider that can open explicit transaction scopes.
+ *
+ * Code that uses a SessionProvider can check whether it is a ScopedSessionProvider,
+ * and use openScope() instead of getSession(), commitCurrentSession() and
+ * rollbackCurrentSession(), to avoid the inspection of the stack when the framework
+ * is not running in enhanced mode.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public interface ScopedSessionProvider extends SessionProvider
+{
+    // ===========================================================================
+    /**
+     * Opens a new scope. A scope is equivalent to using getSession(), commitCurrentSession()
+     * and rollbackCurrentSession() from one method, but identifies that method explicitly
+     * instead of inspecting the stack when the framework is not running in enhanced mode.
+     *
+     * @return The new scope.
+     */
+    TransactionScope openScope();
+}
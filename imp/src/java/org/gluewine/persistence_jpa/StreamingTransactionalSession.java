@@ -0,0 +1,55 @@
+/**************************************************************************
+ *
+ * Gluewine Persistence Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.persistence_jpa;
+
+/**
+ * TransactionalSession that can stream the results of a filtered query.
+ *
+ * Code that uses a TransactionalSession can check whether it is a
+ * StreamingTransactionalSession to process large results without loading them in
+ * memory at once.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public interface StreamingTransactionalSession extends TransactionalSession
+{
+    // ===========================================================================
+    /**
+     * Passes all entries matching the filter to the handler, without loading them
+     * in memory at once. The entries are fetched from the database in blocks of the
+     * given size, and every entry is evicted from the session once it has been handled.
+     * If the session holds no entities when the scroll starts, it is also flushed and
+     * cleared after every block, so that memory stays constant. Otherwise the entities
+     * of the session are left untouched, and memory is only constant for entities
+     * without eager associations, as the entities loaded along with the entries
+     * remain in the session.
+     *
+     * Duplicate entries are not removed: the result transformer of the query, including
+     * one set by a QueryPreProcessor, is replaced by Criteria.ROOT_ENTITY.
+     *
+     * @param <E> The generic Entity.
+     * @param cl The class to process.
+     * @param filter The filter to apply.
+     * @param fetchSize The number of entries to fetch at once.
+     * @param handler The handler to notify.
+     * @return The number of entries processed.
+     */
+    <E> long scroll(Class<E> cl, Filter filter, int fetchSize, ResultHandler<E> handler);
+}
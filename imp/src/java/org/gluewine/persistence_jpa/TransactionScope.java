@@ -0,0 +1,73 @@
+/**************************************************************************
+ *
+ * Gluewine Persistence Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.persistence_jpa;
+
+import org.gluewine.persistence.TransactionCallback;
+
+/**
+ * A scope obtained from a ScopedSessionProvider, identifying the code using the session.
+ *
+ * When the framework is not running in enhanced mode, the SessionProvider has to find
+ * out which method invokes getSession(), commitCurrentSession() and rollbackCurrentSession()
+ * by inspecting the stack. A scope identifies the caller explicitly instead: all sessions
+ * obtained from the same scope count as one user of the transaction, no matter how many
+ * times getSession() is invoked, and the transaction is completed when the last open
+ * scope is committed or rolled back.
+ *
+ * In enhanced mode, the transaction is managed by the @Transactional methods and
+ * commit() and rollback() do nothing, exactly as commitCurrentSession() and
+ * rollbackCurrentSession().
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public interface TransactionScope
+{
+    // ===========================================================================
+    /**
+     * Returns the session to be used.
+     *
+     * @param <T> the session class
+     * @return The session to use.
+     */
+    <T extends TransactionalSession> T getSession();
+
+    // ===========================================================================
+    /**
+     * Returns the session to be used and requests the callback specified to be
+     * invoked when the session is committed or rolled back.
+     *
+     * @param <T> the session class
+     * @param callback The callback to notify.
+     * @return The session to use.
+     */
+    <T extends TransactionalSession> T getSession(TransactionCallback callback);
+
+    // ===========================================================================
+    /**
+     * Ends this scope, committing the transaction if this was the last open scope.
+     */
+    void commit();
+
+    // ===========================================================================
+    /**
+     * Ends this scope, rolling back the transaction if this was the last open scope.
+     */
+    void rollback();
+}
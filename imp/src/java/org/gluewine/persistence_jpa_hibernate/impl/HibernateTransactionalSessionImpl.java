@@ -25,15 +25,21 @@ import java.util.Set;
 import java.util.Stack;
 
 import org.gluewine.persistence.TransactionCallback;
+import org.gluewine.persistence_jpa.CachedEntity;
 import org.gluewine.persistence_jpa.Filter;
 import org.gluewine.persistence_jpa.FilterLine;
 import org.gluewine.persistence_jpa.QueryPostProcessor;
 import org.gluewine.persistence_jpa.QueryPreProcessor;
+import org.gluewine.persistence_jpa.ResultHandler;
 import org.gluewine.persistence_jpa.SortLine;
+import org.gluewine.persistence_jpa.StreamingTransactionalSession;
 import org.gluewine.persistence_jpa_hibernate.HibernateTransactionalSession;
 import org.hibernate.Criteria;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
+import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Property;
 import org.hibernate.criterion.Restrictions;
 import org.hibernate.jdbc.Work;
@@ -44,7 +50,7 @@ import org.hibernate.jdbc.Work;
  * @author fks/Serge de Schaetzen
  *
  */
-public class HibernateTransactionalSessionImpl implements HibernateTransactionalSession
+public class HibernateTransactionalSessionImpl implements HibernateTransactionalSession, StreamingTransactionalSession
 {
     // ===========================================================================
     /** The session to delegate to. */
@@ -256,6 +262,11 @@ public class HibernateTransactionalSessionImpl implements HibernateTransactional
     @Override
     public Object get(Class<?> cl, Serializable id)
     {
+        // A criteria query always hits the database: use the second level cache
+        // when possible.
+        if (preProcessors.isEmpty() && cl.isAnnotationPresent(CachedEntity.class))
+            return delegate.get(cl, id);
+
         Criteria cr = createCriteria(cl);
         cr.add(Restrictions.idEq(id));
         return cr.uniqueResult();
@@ -267,6 +278,8 @@ public class HibernateTransactionalSessionImpl implements HibernateTransactional
     public <E> List<E> getAll(Class<E> cl)
     {
         Criteria cr = createCriteria(cl);
+        CachedEntity cached = cl.getAnnotation(CachedEntity.class);
+        if (cached != null && cached.queries()) cr.setCacheable(true);
         return cr.list();
     }
 
@@ -342,6 +355,9 @@ public class HibernateTransactionalSessionImpl implements HibernateTransactional
             }
         }
 
+        List<Serializable> seek = filter.getSeek();
+        if (!seek.isEmpty()) cr.add(createSeekRestriction(filter.getSortLines(), seek));
+
         for (SortLine sort : filter.getSortLines())
         {
             if (sort.isAscending()) cr.addOrder(Property.forName(sort.getField()).asc());
@@ -350,10 +366,91 @@ public class HibernateTransactionalSessionImpl implements HibernateTransactional
 
         if (filter.getLimit() != 0) cr.setMaxResults(filter.getLimit());
         if (filter.getOffset() != 0) cr.setFirstResult(filter.getOffset());
+        if (filter.isCacheable()) cr.setCacheable(true);
 
         return cr;
     }
 
+    // ===========================================================================
+    /**
+     * Creates the restriction that only accepts the entities sorted after the given
+     * values. For sort fields a, b and values va, vb this is:
+     * a > va or (a = va and b > vb), where &lt; is used for descending fields.
+     *
+     * @param sorts The sort lines.
+     * @param values The values of the sort fields.
+     * @return The restriction.
+     */
+    private Criterion createSeekRestriction(List<SortLine> sorts, List<Serializable> values)
+    {
+        if (values.size() != sorts.size())
+            throw new IllegalArgumentException("The filter has " + sorts.size() + " sort lines, but " + values.size() + " seek values");
+
+        Criterion result = null;
+        for (int i = sorts.size() - 1; i >= 0; i--)
+        {
+            SortLine sort = sorts.get(i);
+            Serializable value = values.get(i);
+            Criterion after = sort.isAscending() ? Restrictions.gt(sort.getField(), value) : Restrictions.lt(sort.getField(), value);
+            if (result == null) result = after;
+            else result = Restrictions.or(after, Restrictions.and(Restrictions.eq(sort.getField(), value), result));
+        }
+
+        return result;
+    }
+
+    // ===========================================================================
+    @Override
+    @SuppressWarnings("unchecked")
+    public <E> long scroll(Class<E> cl, Filter filter, int fetchSize, ResultHandler<E> handler)
+    {
+        if (fetchSize <= 0) throw new IllegalArgumentException("The fetch size must be positive");
+
+        // If the session holds no entities of the caller, it is cleared after every
+        // block, which also releases the entities loaded along with the scrolled ones.
+        boolean clear = delegate.getStatistics().getEntityCount() == 0;
+
+        Criteria cr = createCriteria(cl, filter);
+        // Duplicate root entities cannot be removed without holding all results. This
+        // overwrites any transformer set by a QueryPreProcessor.
+        cr.setResultTransformer(Criteria.ROOT_ENTITY);
+        cr.setFetchSize(fetchSize);
+        cr.setReadOnly(true);
+        cr.setCacheable(false);
+
+        long count = 0;
+        ScrollableResults results = cr.scroll(ScrollMode.FORWARD_ONLY);
+        try
+        {
+            boolean more = true;
+            while (more && results.next())
+            {
+                E entity = (E) results.get(0);
+                try
+                {
+                    more = handler.handle(entity);
+                }
+                finally
+                {
+                    // Only the scrolled entity is evicted: the session may hold entities of the caller.
+                    delegate.evict(entity);
+                }
+                count++;
+                if (clear && count % fetchSize == 0)
+                {
+                    delegate.flush();
+                    delegate.clear();
+                }
+            }
+        }
+        finally
+        {
+            results.close();
+        }
+
+        return count;
+    }
+
     // ===========================================================================
     @Override
     public void update(Object o)
@@ -29,6 +29,7 @@ import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
@@ -40,8 +41,13 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Stack;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 
@@ -63,6 +69,7 @@ import org.gluewine.launcher.sources.JarCodeSource;
 import org.gluewine.launcher.utils.FileUtils;
 import org.gluewine.persistence.TransactionCallback;
 import org.gluewine.persistence.Transactional;
+import org.gluewine.persistence_jpa.CachedEntity;
 import org.gluewine.persistence_jpa.QueryPostProcessor;
 import org.gluewine.persistence_jpa.QueryPreProcessor;
 import org.gluewine.utils.ErrorLogger;
@@ -70,6 +77,7 @@ import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.cfg.Configuration;
 import org.hibernate.jdbc.Work;
+import org.hibernate.stat.Statistics;
 import org.hibernate.service.ServiceRegistry;
 import org.hibernate.service.ServiceRegistryBuilder;
 
@@ -103,7 +111,7 @@ public class SessionAspectProvider implements AspectProvider, CommandProvider, C
     /**
      * The hibernate configuration. This is needed to be able to get class mappings.
      */
-    private Configuration configuration;
+    private volatile Configuration configuration;
 
     /**
      * The session provider to use.
@@ -112,9 +120,21 @@ public class SessionAspectProvider implements AspectProvider, CommandProvider, C
     private SessionProviderImpl provider = null;
 
     /**
-     * The actual Hibernate session factory.
+     * The actual Hibernate session factory. It is replaced when the entities change,
+     * sessions are opened without locking.
      */
-    private SessionFactory factory = null;
+    private volatile SessionFactory factory = null;
+
+    /**
+     * The number of open sessions per factory. A factory that has been replaced is
+     * closed when its count drops to 0, after which the count is set to -1.
+     */
+    private ConcurrentMap<SessionFactory, AtomicInteger> openSessions = new ConcurrentHashMap<SessionFactory, AtomicInteger>();
+
+    /**
+     * The factories that have been replaced but still have open sessions.
+     */
+    private Set<SessionFactory> retired = Collections.newSetFromMap(new ConcurrentHashMap<SessionFactory, Boolean>());
 
     /**
      * The current registry.
@@ -153,10 +173,35 @@ public class SessionAspectProvider implements AspectProvider, CommandProvider, C
     private DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
 
     /**
-     * A lock to synchronize the access to the session factory.
+     * A lock to synchronize the access to the entities and statements.
      */
     private Object factoryLocker = new Object();
 
+    /**
+     * A lock ensuring that only one factory is built at a time.
+     */
+    private Object buildLocker = new Object();
+
+    /**
+     * Incremented every time the entities change.
+     */
+    private long changes = 0;
+
+    /**
+     * The value of changes the current factory was built for.
+     */
+    private long built = 0;
+
+    /**
+     * The timer used to rebuild the factory after entities have been removed.
+     */
+    private Timer rebuildTimer = null;
+
+    /**
+     * The pending rebuild, if any.
+     */
+    private TimerTask pendingRebuild = null;
+
     /**
      * The properties. They cannot be glued as they are required to
      * be present BEFORE any @RunOnActivate is invoked.
@@ -222,9 +267,13 @@ public class SessionAspectProvider implements AspectProvider, CommandProvider, C
     // ===========================================================================
     /**
      * Checks whether the statements have already been executed, and if not are executed.
+     *
+     * @param pending The statements of the bundles that have been added, indexed on their file.
      */
-    private void checkStatements()
+    private void checkStatements(final List<Map<String, List<SQLStatement>>> pending)
     {
+        if (pending.isEmpty()) return;
+
         final Session session = factory.openSession();
         session.doWork(new Work()
         {
@@ -232,11 +281,8 @@ public class SessionAspectProvider implements AspectProvider, CommandProvider, C
             @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "SQL_NONCONSTANT_STRING_PASSED_TO_EXECUTE")
             public void execute(Connection conn) throws SQLException
             {
-                Iterator<Map<String, List<SQLStatement>>> stiter = statements.values().iterator();
-                while (stiter.hasNext()) // Bundle Level.
+                for (Map<String, List<SQLStatement>> entry : pending) // Bundle Level.
                 {
-                    Map<String, List<SQLStatement>> entry = stiter.next();
-                    stiter.remove();
                     for (List<SQLStatement> stmts : entry.values()) // File level within a bundle, executing in the same transaction.
                     {
                         session.beginTransaction();
@@ -344,17 +390,36 @@ public class SessionAspectProvider implements AspectProvider, CommandProvider, C
      */
     private void initializeSession()
     {
-        HibernateTransactionalSessionImpl session = provider.getBoundSession();
+        HibernateTransactionalSessionImpl session = getBoundSession();
         if (session == null)
         {
-            synchronized (factoryLocker)
-            {
-                Session hibernateSession = factory.openSession();
-                session = new HibernateTransactionalSessionImpl(hibernateSession, preProcessors, postProcessors);
-                provider.bindSession(session);
-                session.increaseContextCount();
-            }
+            session = openSession();
+            provider.bindSession(session, true);
+        }
+
+        // The count is also increased for nested contexts, as after() decreases it
+        // for every ContextInitializer.
+        session.increaseContextCount();
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the session bound with the current thread, to be used by a context or
+     * transaction that is starting. A bound session that is neither used by a context
+     * nor by a transaction should have been unbound when the last one ended: it was
+     * leaked by an earlier request on this thread and is closed.
+     *
+     * @return The (possibly null) bound session.
+     */
+    private HibernateTransactionalSessionImpl getBoundSession()
+    {
+        HibernateTransactionalSessionImpl session = provider.getBoundSession();
+        if (session != null && session.getContextCount() == 0 && session.getReferenceCount() == 0)
+        {
+            provider.closeLeakedBinding(session);
+            return null;
         }
+        return session;
     }
 
     // ===========================================================================
@@ -366,15 +431,11 @@ public class SessionAspectProvider implements AspectProvider, CommandProvider, C
      */
     void before(boolean increase)
     {
-        HibernateTransactionalSessionImpl session = provider.getBoundSession();
+        HibernateTransactionalSessionImpl session = getBoundSession();
         if (session == null)
         {
-            synchronized (factoryLocker)
-            {
-                Session hibernateSession = factory.openSession();
-                session = new HibernateTransactionalSessionImpl(hibernateSession, preProcessors, postProcessors);
-                provider.bindSession(session);
-            }
+            session = openSession();
+            provider.bindSession(session, false);
         }
         if (session.getReferenceCount() == 0)
         {
@@ -488,11 +549,26 @@ public class SessionAspectProvider implements AspectProvider, CommandProvider, C
             HibernateTransactionalSessionImpl session = provider.getBoundSession();
             if (session != null)
             {
-                if (m.isAnnotationPresent(ContextInitializer.class)) session.decreaseContextCount();
+                if (m.isAnnotationPresent(ContextInitializer.class))
+                {
+                    session.decreaseContextCount();
+
+                    // The context that opened the session has ended, but a transaction
+                    // is still pending: it will never be completed.
+                    SessionProviderImpl.Binding binding = provider.getBinding(session);
+                    if (session.getContextCount() == 0 && session.getReferenceCount() > 0 && binding != null && binding.isContext())
+                    {
+                        logger.error("Transaction still pending at the end of " + m.getDeclaringClass().getName() + "." + m.getName()
+                                     + "(), rolling back and closing the session.");
+                        provider.unbindSession();
+                        provider.closeLeaked(session);
+                        return;
+                    }
+                }
                 if (session.getContextCount() == 0 && session.getReferenceCount() == 0)
                 {
                     provider.unbindSession();
-                    session.getHibernateSession().close();
+                    closeSession(session);
                 }
             }
         }
@@ -594,6 +670,128 @@ public class SessionAspectProvider implements AspectProvider, CommandProvider, C
         }
     }
 
+    // ===========================================================================
+    /**
+     * Executes the pers_sessions command.
+     *
+     * @param ci The current context.
+     * @throws Throwable If a problem occurs.
+     */
+    public void _pers_sessions(CommandContext ci) throws Throwable
+    {
+        long now = System.currentTimeMillis();
+        ci.tableHeader("Thread", "Bound (ms)", "Context", "References", "Transaction");
+        for (Map.Entry<HibernateTransactionalSessionImpl, SessionProviderImpl.Binding> e : provider.getBindings().entrySet())
+        {
+            HibernateTransactionalSessionImpl session = e.getKey();
+            SessionProviderImpl.Binding b = e.getValue();
+            ci.tableRow(b.getThread(), Long.toString(now - b.getSince()), Integer.toString(session.getContextCount()),
+                        Integer.toString(session.getReferenceCount()), Boolean.toString(session.getHibernateSession().getTransaction().isActive()));
+        }
+
+        ci.printTable();
+    }
+
+    // ===========================================================================
+    /**
+     * Formats the given hit count as a ratio of the total number of lookups.
+     *
+     * @param hits The number of hits.
+     * @param misses The number of misses.
+     * @return The formatted ratio.
+     */
+    private String getHitRatio(long hits, long misses)
+    {
+        if (hits + misses == 0) return "-";
+        return String.format(Locale.getDefault(), "%.1f%%", hits * 100.0 / (hits + misses));
+    }
+
+    // ===========================================================================
+    /**
+     * Executes the pers_cache command.
+     *
+     * @param ci The current context.
+     * @throws Throwable If a problem occurs.
+     */
+    public void _pers_cache(CommandContext ci) throws Throwable
+    {
+        SessionFactory f = factory;
+        if (f == null)
+        {
+            ci.println("No SessionFactory available");
+            return;
+        }
+
+        Statistics stats = f.getStatistics();
+        if (ci.hasOption("-enable")) stats.setStatisticsEnabled(true);
+        if (ci.hasOption("-disable")) stats.setStatisticsEnabled(false);
+        if (ci.hasOption("-clear")) stats.clear();
+
+        if (!stats.isStatisticsEnabled())
+        {
+            ci.println("Statistics are disabled, use -enable or set hibernate.generate_statistics.");
+            return;
+        }
+
+        ci.tableHeader("Cache", "Hits", "Misses", "Puts", "Hit ratio");
+        ci.tableRow("Second level", Long.toString(stats.getSecondLevelCacheHitCount()), Long.toString(stats.getSecondLevelCacheMissCount()),
+                    Long.toString(stats.getSecondLevelCachePutCount()),
+                    getHitRatio(stats.getSecondLevelCacheHitCount(), stats.getSecondLevelCacheMissCount()));
+        ci.tableRow("Query", Long.toString(stats.getQueryCacheHitCount()), Long.toString(stats.getQueryCacheMissCount()),
+                    Long.toString(stats.getQueryCachePutCount()), getHitRatio(stats.getQueryCacheHitCount(), stats.getQueryCacheMissCount()));
+        ci.printTable();
+    }
+
+    // ===========================================================================
+    /**
+     * Executes the pers_cache_evict command.
+     *
+     * @param ci The current context.
+     * @throws Throwable If a problem occurs.
+     */
+    public void _pers_cache_evict(CommandContext ci) throws Throwable
+    {
+        SessionFactory f = factory;
+        if (f == null)
+        {
+            ci.println("No SessionFactory available");
+            return;
+        }
+
+        String entity = ci.getOption("-entity");
+        if (entity != null)
+        {
+            Class<?> found = null;
+            synchronized (factoryLocker)
+            {
+                for (Class<?> cl : entities)
+                    if (cl.getName().equals(entity)) found = cl;
+            }
+
+            if (found == null)
+                ci.println("There is no entity " + entity);
+            else
+            {
+                f.getCache().evictEntityRegion(found);
+                ci.println("Evicted " + entity);
+            }
+        }
+        else if (ci.hasOption("-queries"))
+        {
+            f.getCache().evictDefaultQueryRegion();
+            f.getCache().evictQueryRegions();
+            ci.println("Evicted all queries");
+        }
+        else
+        {
+            f.getCache().evictEntityRegions();
+            f.getCache().evictCollectionRegions();
+            f.getCache().evictDefaultQueryRegion();
+            f.getCache().evictQueryRegions();
+            ci.println("Evicted all entities and queries");
+        }
+    }
+
     // ===========================================================================
     @Override
     public List<CLICommand> getCommands()
@@ -601,6 +799,18 @@ public class SessionAspectProvider implements AspectProvider, CommandProvider, C
         List<CLICommand> commands = new ArrayList<CLICommand>();
         commands.add(new CLICommand("pers_entities", "Lists all registered entities."));
         commands.add(new CLICommand("pers_statements", "Lists all executed statements."));
+        commands.add(new CLICommand("pers_sessions", "Lists the sessions bound with a thread, and how long they have been bound."));
+
+        CLICommand cache = new CLICommand("pers_cache", "Shows the hit rates of the second level and query caches.");
+        cache.addOption("-enable", "Enables the statistics", false, false);
+        cache.addOption("-disable", "Disables the statistics", false, false);
+        cache.addOption("-clear", "Resets the statistics", false, false);
+        commands.add(cache);
+
+        CLICommand evict = new CLICommand("pers_cache_evict", "Evicts entries from the second level and query caches.");
+        evict.addOption("-entity", "Only evicts the given entity", false, true);
+        evict.addOption("-queries", "Only evicts the cached queries", false, false);
+        commands.add(evict);
         return commands;
     }
 
@@ -620,19 +830,242 @@ public class SessionAspectProvider implements AspectProvider, CommandProvider, C
     }
 
     // ===========================================================================
-    @Override
-    public void codeSourceAdded(List<CodeSource> sources)
+    /**
+     * Opens a session using the current factory.
+     *
+     * @return The new session.
+     */
+    private HibernateTransactionalSessionImpl openSession()
     {
-        if (!hasEntities(sources)) return;
+        while (true)
+        {
+            SessionFactory f = factory;
+            AtomicInteger count = openSessions.get(f);
+            if (count == null)
+            {
+                count = new AtomicInteger();
+                AtomicInteger previous = openSessions.putIfAbsent(f, count);
+                if (previous != null) count = previous;
+            }
 
-        synchronized (factoryLocker)
+            int c = count.get();
+            // A negative count means that the factory has been replaced and closed
+            // in the meantime: retry with the new one.
+            if (c < 0 || !count.compareAndSet(c, c + 1)) continue;
+
+            // The factory is only closed once it has been replaced, so it can't be closed
+            // while the count is held if it is still the current one.
+            if (f == factory)
+                return new HibernateTransactionalSessionImpl(f.openSession(), preProcessors, postProcessors);
+
+            // The factory has been replaced in the meantime, and may have been closed
+            // with its count removed: give the count back and retry with the new one.
+            if (count.decrementAndGet() == 0)
+            {
+                if (retired.contains(f)) closeFactory(f);
+                else openSessions.remove(f, count);
+            }
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Closes the given session. If its factory has been replaced and this was its
+     * last open session, the factory is closed as well.
+     *
+     * @param session The session to close.
+     */
+    void closeSession(HibernateTransactionalSessionImpl session)
+    {
+        Session hibernateSession = session.getHibernateSession();
+        SessionFactory f = hibernateSession.getSessionFactory();
+        try
+        {
+            hibernateSession.close();
+        }
+        finally
+        {
+            AtomicInteger count = openSessions.get(f);
+            if (count != null && count.decrementAndGet() == 0 && retired.contains(f)) closeFactory(f);
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Closes the given factory if it has no open sessions.
+     *
+     * @param f The factory to close.
+     */
+    private void closeFactory(SessionFactory f)
+    {
+        AtomicInteger count = openSessions.get(f);
+        if (count == null || count.compareAndSet(0, -1))
         {
+            retired.remove(f);
+            // A session being opened on the factory at the same time finds it is no
+            // longer the current one, and retries.
+            openSessions.remove(f);
             try
             {
+                f.close();
+                logger.debug("Closed a replaced Hibernate SessionFactory");
+            }
+            catch (Throwable e)
+            {
+                ErrorLogger.log(getClass(), e);
+            }
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Builds a new factory containing all current entities, unless a factory built
+     * since the given change already contains them. Concurrent and pending requests
+     * are served by one build. The new factory replaces the current one atomically:
+     * sessions opened from the previous factory keep using it, and it is closed when
+     * the last of them is closed.
+     *
+     * @param change The change that requires the rebuild.
+     */
+    private void rebuild(long change)
+    {
+        synchronized (buildLocker)
+        {
+            long covering = 0;
+            List<Class<?>> snapshot = null;
+            Map<CodeSource, Map<String, List<SQLStatement>>> pending = new HashMap<CodeSource, Map<String, List<SQLStatement>>>();
+            synchronized (factoryLocker)
+            {
+                if (built >= change) return;
+
+                covering = changes;
+                snapshot = new ArrayList<Class<?>>(entities);
+                for (Map.Entry<CodeSource, Map<String, List<SQLStatement>>> e : statements.entrySet())
+                    pending.put(e.getKey(), new TreeMap<String, List<SQLStatement>>(e.getValue()));
+                if (pendingRebuild != null)
+                {
+                    pendingRebuild.cancel();
+                    pendingRebuild = null;
+                }
+            }
+
+            try
+            {
+                long start = System.currentTimeMillis();
                 Configuration config = new Configuration();
                 config.setProperties(properties);
                 ServiceRegistry serviceRegistry = new ServiceRegistryBuilder().applySettings(config.getProperties()).buildServiceRegistry();
 
+                for (Class<?> cl : snapshot)
+                    config.addAnnotatedClass(cl);
+                applyCacheStrategies(config, snapshot);
+
+                SessionFactory newFactory = config.buildSessionFactory(serviceRegistry);
+                SessionFactory previous = factory;
+                configuration = config;
+                factory = newFactory;
+                logger.info("Built Hibernate SessionFactory with " + snapshot.size() + " entities in " + (System.currentTimeMillis() - start) + " ms");
+
+                synchronized (factoryLocker)
+                {
+                    built = covering;
+                    // The statements are only removed once the factory has been built, so
+                    // that they are executed by the next build if this one fails. Statements
+                    // added since the snapshot are kept.
+                    for (Map.Entry<CodeSource, Map<String, List<SQLStatement>>> e : pending.entrySet())
+                    {
+                        Map<String, List<SQLStatement>> current = statements.get(e.getKey());
+                        if (current == null) continue;
+
+                        for (Map.Entry<String, List<SQLStatement>> file : e.getValue().entrySet())
+                        {
+                            if (current.get(file.getKey()) == file.getValue()) current.remove(file.getKey());
+                        }
+                        if (current.isEmpty()) statements.remove(e.getKey());
+                    }
+                }
+
+                if (previous != null)
+                {
+                    retired.add(previous);
+                    closeFactory(previous);
+                }
+
+                checkStatements(new ArrayList<Map<String, List<SQLStatement>>>(pending.values()));
+            }
+            catch (Throwable e)
+            {
+                ErrorLogger.log(getClass(), e);
+            }
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Registers the entities annotated with CachedEntity in the second level cache.
+     * This requires a cache region factory to be configured.
+     *
+     * @param config The configuration to update.
+     * @param classes The entities to process.
+     */
+    private void applyCacheStrategies(Configuration config, List<Class<?>> classes)
+    {
+        boolean enabled = properties.getProperty("hibernate.cache.region.factory_class") != null
+            && Boolean.parseBoolean(properties.getProperty("hibernate.cache.use_second_level_cache", "true"));
+
+        for (Class<?> cl : classes)
+        {
+            CachedEntity cached = cl.getAnnotation(CachedEntity.class);
+            if (cached == null) continue;
+
+            if (enabled)
+            {
+                config.setCacheConcurrencyStrategy(cl.getName(), cached.readOnly() ? "read-only" : "read-write");
+                logger.debug("Caching Hibernate Entity: " + cl.getName());
+            }
+            else
+                logger.warn("Entity " + cl.getName() + " is cacheable, but no cache region factory has been configured");
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Schedules a rebuild of the factory. The rebuild is delayed, so that it can be
+     * combined with the changes that follow, as a bundle is usually reloaded by
+     * removing it and adding it again.
+     *
+     * @param change The change that requires the rebuild.
+     */
+    private void scheduleRebuild(final long change)
+    {
+        synchronized (factoryLocker)
+        {
+            if (pendingRebuild != null) return;
+
+            if (rebuildTimer == null) rebuildTimer = new Timer("Hibernate SessionFactory rebuild", true);
+            pendingRebuild = new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    rebuild(change);
+                }
+            };
+            rebuildTimer.schedule(pendingRebuild, Long.parseLong(properties.getProperty("gluewine.rebuilddelay", "2000")));
+        }
+    }
+
+    // ===========================================================================
+    @Override
+    public void codeSourceAdded(List<CodeSource> sources)
+    {
+        if (!hasEntities(sources)) return;
+
+        long change = 0;
+        synchronized (factoryLocker)
+        {
+            try
+            {
                 for (CodeSource source : sources)
                 {
                     logger.debug("Processing CodesSource: " + source.getDisplayName());
@@ -696,19 +1129,18 @@ public class SessionAspectProvider implements AspectProvider, CommandProvider, C
                         }
                     }
                 }
-
-                for (Class<?> cl : entities)
-                    config.addAnnotatedClass(cl);
-
-                configuration = config;
-                factory = config.buildSessionFactory(serviceRegistry);
-                checkStatements();
             }
             catch (Throwable e)
             {
                 e.printStackTrace();
             }
+            change = ++changes;
         }
+
+        // The new entities must be available when this method returns, as the
+        // services of the new sources are activated next. This also covers any
+        // pending removal.
+        rebuild(change);
     }
 
     // ===========================================================================
@@ -717,44 +1149,31 @@ public class SessionAspectProvider implements AspectProvider, CommandProvider, C
     {
         if (!hasEntities(sources)) return;
 
+        long change = 0;
         synchronized (factoryLocker)
         {
-            try
-            {
-                Configuration config = new Configuration();
-
-                ClassLoader loader = config.getClass().getClassLoader();
-                GluewineLoader gw = null;
-                if (loader instanceof GluewineLoader)
-                    gw = (GluewineLoader) loader;
+            ClassLoader loader = Configuration.class.getClassLoader();
+            GluewineLoader gw = null;
+            if (loader instanceof GluewineLoader)
+                gw = (GluewineLoader) loader;
 
-                config.setProperties(properties);
-                ServiceRegistry serviceRegistry = new ServiceRegistryBuilder().applySettings(config.getProperties()).buildServiceRegistry();
-
-                for (CodeSource source : sources)
+            for (CodeSource source : sources)
+            {
+                Iterator<Class<?>> iter = entities.iterator();
+                while (iter.hasNext())
                 {
-                    Iterator<Class<?>> iter = entities.iterator();
-                    while (iter.hasNext())
-                    {
-                        if (iter.next().getClassLoader() == source.getSourceClassLoader())
-                            iter.remove();
-                    }
-
-                    if (gw != null) gw.removeReference(source.getSourceClassLoader());
+                    if (iter.next().getClassLoader() == source.getSourceClassLoader())
+                        iter.remove();
                 }
 
-                for (Class<?> cl : entities)
-                    config.addAnnotatedClass(cl);
-
-                configuration = config;
-                factory = config.buildSessionFactory(serviceRegistry);
-                checkStatements();
-            }
-            catch (Throwable e)
-            {
-                e.printStackTrace();
+                if (gw != null) gw.removeReference(source.getSourceClassLoader());
             }
+            change = ++changes;
         }
+
+        // The current factory remains usable until the rebuild, which is delayed
+        // as the sources are usually added again right away.
+        scheduleRebuild(change);
     }
 
     /**
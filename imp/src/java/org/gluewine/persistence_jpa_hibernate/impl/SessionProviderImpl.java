@@ -22,12 +22,16 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 import org.gluewine.core.Glue;
 import org.gluewine.core.glue.Gluer;
 import org.gluewine.persistence.PersistenceException;
 import org.gluewine.persistence.TransactionCallback;
+import org.gluewine.persistence_jpa.ScopedSessionProvider;
+import org.gluewine.persistence_jpa.TransactionScope;
+import org.gluewine.persistence_jpa.TransactionalSession;
 import org.gluewine.persistence_jpa_hibernate.HibernateSessionProvider;
 import org.gluewine.persistence_jpa_hibernate.HibernateTransactionalSession;
 
@@ -39,18 +43,127 @@ import org.hibernate.cfg.Configuration;
  * @author fks/Serge de Schaetzen
  *
  */
-public class SessionProviderImpl implements HibernateSessionProvider
+public class SessionProviderImpl implements HibernateSessionProvider, ScopedSessionProvider
 {
     // ===========================================================================
     /**
-     * The map of sessions indexed on the thread they are running in.
+     * Describes where and when a session has been bound.
      */
-    private Map<Thread, HibernateTransactionalSessionImpl> sessions = new HashMap<Thread, HibernateTransactionalSessionImpl>();
+    static final class Binding
+    {
+        /**
+         * The name of the thread the session is bound with.
+         */
+        private final String thread;
+
+        /**
+         * The timestamp the session was bound at.
+         */
+        private final long since;
+
+        /**
+         * True if the session was opened by a ContextInitializer.
+         */
+        private final boolean context;
+
+        // ===========================================================================
+        /**
+         * Creates an instance for the current thread.
+         *
+         * @param context True if the session was opened by a ContextInitializer.
+         */
+        Binding(boolean context)
+        {
+            this.thread = Thread.currentThread().getName();
+            this.since = System.currentTimeMillis();
+            this.context = context;
+        }
+
+        // ===========================================================================
+        /**
+         * Returns the name of the thread the session is bound with.
+         *
+         * @return The name of the thread.
+         */
+        String getThread()
+        {
+            return thread;
+        }
+
+        // ===========================================================================
+        /**
+         * Returns the timestamp the session was bound at.
+         *
+         * @return The timestamp.
+         */
+        long getSince()
+        {
+            return since;
+        }
+
+        // ===========================================================================
+        /**
+         * Returns true if the session was opened by a ContextInitializer.
+         *
+         * @return True if opened by a context.
+         */
+        boolean isContext()
+        {
+            return context;
+        }
+    }
+
+    /**
+     * Scope identifying its user explicitly.
+     */
+    private final class Scope implements TransactionScope
+    {
+        // ===========================================================================
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends TransactionalSession> T getSession()
+        {
+            return (T) SessionProviderImpl.this.getSession(this, null);
+        }
+
+        // ===========================================================================
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends TransactionalSession> T getSession(TransactionCallback callback)
+        {
+            return (T) SessionProviderImpl.this.getSession(this, callback);
+        }
+
+        // ===========================================================================
+        @Override
+        public void commit()
+        {
+            SessionProviderImpl.this.commit(this);
+        }
+
+        // ===========================================================================
+        @Override
+        public void rollback()
+        {
+            SessionProviderImpl.this.rollback(this);
+        }
+    }
 
     /**
-     * The map of methods having invoked the getSession() when running in non enhanced mode.
+     * The session bound with the current thread.
      */
-    private Map<Thread, Set<String>> methods = new HashMap<Thread, Set<String>>();
+    private final ThreadLocal<HibernateTransactionalSessionImpl> sessions = new ThreadLocal<HibernateTransactionalSessionImpl>();
+
+    /**
+     * The users of the session in the current thread, when running in non enhanced mode.
+     * A user is either the name of the method having invoked getSession(), or a scope.
+     */
+    private final ThreadLocal<Set<Object>> methods = new ThreadLocal<Set<Object>>();
+
+    /**
+     * All sessions that are currently bound, used to detect sessions that are never unbound.
+     */
+    private final Map<HibernateTransactionalSessionImpl, Binding> bindings = new ConcurrentHashMap<HibernateTransactionalSessionImpl, Binding>();
 
     /**
      * The aspect provider to use.
@@ -81,37 +194,53 @@ public class SessionProviderImpl implements HibernateSessionProvider
     // ===========================================================================
     /**
      * Returns the name of the method that invoked the getSession(), commitSession()
-     * or rollbackSession().
+     * or rollbackSession(). This requires the stack to be captured, which is why
+     * openScope() should be preferred in code invoking getSession() frequently.
      *
      * @return The method name.
      */
     String getMethodName()
     {
         StackTraceElement[] els = new Throwable().getStackTrace();
-        boolean found = false;
-        StringBuilder b = new StringBuilder();
-        for (int i = 0; i < els.length && !found; i++)
+        for (StackTraceElement el : els)
         {
-            if (els[i].getClassName().startsWith(SessionProviderImpl.class.getName())) continue;
-            else
-            {
-                b.append(els[i].getClassName()).append(".").append(els[i].getMethodName());
-                b.append("(").append(")");
-                found = true;
-            }
+            if (!el.getClassName().startsWith(SessionProviderImpl.class.getName()))
+                return el.getClassName() + "." + el.getMethodName() + "()";
         }
 
-        return b.toString();
+        return "";
+    }
+
+    // ===========================================================================
+    @Override
+    public TransactionScope openScope()
+    {
+        return new Scope();
     }
 
     // ===========================================================================
     @Override
     @SuppressWarnings("unchecked")
     public HibernateTransactionalSession getSession(TransactionCallback callback)
+    {
+        return getSession(null, callback);
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the session bound with the current thread. When not running in enhanced
+     * mode, the session is opened if needed and the reference count is increased the
+     * first time the given user obtains the session.
+     *
+     * @param user The user of the session, or null to use the name of the invoking method.
+     * @param callback The (possibly null) callback to notify.
+     * @return The session.
+     */
+    private HibernateTransactionalSession getSession(Object user, TransactionCallback callback)
     {
         if (gluer.isEnhancedMode())
         {
-            HibernateTransactionalSessionImpl session = sessions.get(Thread.currentThread());
+            HibernateTransactionalSessionImpl session = sessions.get();
             if (session == null)
             {
                 logger.error("No session bound with the current context!");
@@ -122,18 +251,17 @@ public class SessionProviderImpl implements HibernateSessionProvider
         }
         else
         {
-            Set<String> set = methods.get(Thread.currentThread());
+            Set<Object> set = methods.get();
             if (set == null)
             {
-                set = new HashSet<String>();
-                methods.put(Thread.currentThread(), set);
+                set = new HashSet<Object>();
+                methods.set(set);
             }
-            String method = getMethodName();
+            Object method = user != null ? user : getMethodName();
 
             // In case someone uses getSession() several time in the same method we must ensure that
             // the reference count is not increased.
-            provider.before(!set.contains(method));
-            set.add(method);
+            provider.before(set.add(method));
 
             return getBoundSession();
         }
@@ -148,7 +276,7 @@ public class SessionProviderImpl implements HibernateSessionProvider
      */
     HibernateTransactionalSessionImpl getBoundSession()
     {
-        return sessions.get(Thread.currentThread());
+        return sessions.get();
     }
 
     // ===========================================================================
@@ -156,10 +284,12 @@ public class SessionProviderImpl implements HibernateSessionProvider
      * Binds the given session with the current Thread context.
      *
      * @param session The session to bind.
+     * @param context True if the session is opened by a ContextInitializer.
      */
-    void bindSession(HibernateTransactionalSessionImpl session)
+    void bindSession(HibernateTransactionalSessionImpl session, boolean context)
     {
-        sessions.put(Thread.currentThread(), session);
+        sessions.set(session);
+        bindings.put(session, new Binding(context));
     }
 
     // ===========================================================================
@@ -168,23 +298,105 @@ public class SessionProviderImpl implements HibernateSessionProvider
      */
     void unbindSession()
     {
-        sessions.remove(Thread.currentThread());
+        HibernateTransactionalSessionImpl session = sessions.get();
+        if (session != null) bindings.remove(session);
+        sessions.remove();
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the binding of the given session.
+     *
+     * @param session The session to process.
+     * @return The (possibly null) binding.
+     */
+    Binding getBinding(HibernateTransactionalSessionImpl session)
+    {
+        return bindings.get(session);
+    }
+
+    // ===========================================================================
+    /**
+     * Returns a copy of all sessions that are currently bound.
+     *
+     * @return The bound sessions.
+     */
+    Map<HibernateTransactionalSessionImpl, Binding> getBindings()
+    {
+        return new HashMap<HibernateTransactionalSessionImpl, Binding>(bindings);
+    }
+
+    // ===========================================================================
+    /**
+     * Unbinds and closes the session bound with the current thread by an earlier
+     * request, that was never unbound although no context or transaction uses it.
+     *
+     * @param session The bound session.
+     */
+    void closeLeakedBinding(HibernateTransactionalSessionImpl session)
+    {
+        Binding b = bindings.get(session);
+        logger.error("A session bound " + (b != null ? (System.currentTimeMillis() - b.getSince()) + " ms ago " : "")
+                     + "was never unbound from thread " + Thread.currentThread().getName() + ", closing it.");
+        unbindSession();
+        closeLeaked(session);
+    }
+
+    // ===========================================================================
+    /**
+     * Rolls back the pending transaction of a leaked session, if any, and closes it.
+     *
+     * @param session The session to close.
+     */
+    void closeLeaked(HibernateTransactionalSessionImpl session)
+    {
+        try
+        {
+            if (session.getHibernateSession().getTransaction().isActive())
+                session.getHibernateSession().getTransaction().rollback();
+        }
+        catch (Throwable e)
+        {
+            logger.warn("Could not roll back the transaction of a leaked session", e);
+        }
+        finally
+        {
+            try
+            {
+                provider.closeSession(session);
+            }
+            catch (Throwable e)
+            {
+                logger.warn("Could not close a leaked session", e);
+            }
+        }
     }
 
     // ===========================================================================
     @Override
     public void commitCurrentSession()
+    {
+        commit(null);
+    }
+
+    // ===========================================================================
+    /**
+     * Ends the use of the session by the given user. When not running in enhanced mode,
+     * the transaction is completed if this was the last user.
+     *
+     * @param user The user of the session, or null to use the name of the invoking method.
+     */
+    private void commit(Object user)
     {
         if (!gluer.isEnhancedMode())
         {
-            Set<String> stack = methods.get(Thread.currentThread());
+            Set<Object> stack = methods.get();
             if (stack != null)
             {
-                String method = getMethodName();
-                stack.remove(method);
+                stack.remove(user != null ? user : getMethodName());
                 if (stack.isEmpty())
                 {
-                    methods.remove(Thread.currentThread());
+                    methods.remove();
                     provider.afterSuccess();
                 }
             }
@@ -194,17 +406,28 @@ public class SessionProviderImpl implements HibernateSessionProvider
     // ===========================================================================
     @Override
     public void rollbackCurrentSession()
+    {
+        rollback(null);
+    }
+
+    // ===========================================================================
+    /**
+     * Ends the use of the session by the given user. When not running in enhanced mode,
+     * the transaction is completed if this was the last user.
+     *
+     * @param user The user of the session, or null to use the name of the invoking method.
+     */
+    private void rollback(Object user)
     {
         if (!gluer.isEnhancedMode())
         {
-            Set<String> stack = methods.get(Thread.currentThread());
+            Set<Object> stack = methods.get();
             if (stack != null)
             {
-                String method = getMethodName();
-                stack.remove(method);
+                stack.remove(user != null ? user : getMethodName());
                 if (stack.isEmpty())
                 {
-                    methods.remove(Thread.currentThread());
+                    methods.remove();
                     provider.afterFailure();
                 }
             }
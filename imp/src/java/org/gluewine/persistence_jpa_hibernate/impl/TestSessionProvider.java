@@ -27,6 +27,9 @@ import java.util.Stack;
 import org.gluewine.persistence.TransactionCallback;
 import org.gluewine.persistence_jpa.QueryPostProcessor;
 import org.gluewine.persistence_jpa.QueryPreProcessor;
+import org.gluewine.persistence_jpa.ScopedSessionProvider;
+import org.gluewine.persistence_jpa.TransactionScope;
+import org.gluewine.persistence_jpa.TransactionalSession;
 import org.gluewine.persistence_jpa_hibernate.HibernateSessionProvider;
 import org.gluewine.persistence_jpa_hibernate.HibernateTransactionalSession;
 import org.hibernate.Session;
@@ -42,7 +45,7 @@ import org.hibernate.service.ServiceRegistryBuilder;
  * @author fks/Serge de Schaetzen
  *
  */
-public class TestSessionProvider implements HibernateSessionProvider
+public class TestSessionProvider implements HibernateSessionProvider, ScopedSessionProvider
 {
     // ===========================================================================
     /**
@@ -262,6 +265,40 @@ public class TestSessionProvider implements HibernateSessionProvider
             throw new RuntimeException("There is no current transaction to rollback.");
     }
 
+    // ===========================================================================
+    @Override
+    public TransactionScope openScope()
+    {
+        return new TransactionScope()
+        {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T extends TransactionalSession> T getSession()
+            {
+                return (T) TestSessionProvider.this.getSession();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T extends TransactionalSession> T getSession(TransactionCallback callback)
+            {
+                return (T) TestSessionProvider.this.getSession(callback);
+            }
+
+            @Override
+            public void commit()
+            {
+                commitCurrentSession();
+            }
+
+            @Override
+            public void rollback()
+            {
+                rollbackCurrentSession();
+            }
+        };
+    }
+
     // ===========================================================================
     @Override
     public synchronized Configuration getConfiguration()
@@ -20,16 +20,17 @@ package org.gluewine.rest;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URLDecoder;
 
 /**
- * Abstract implementation of RESTSerializer. It offers serialization/deserialization methods
+ * Abstract implementation of StreamingRESTSerializer. It offers serialization/deserialization methods
  * for primitives and Strings.
  *
  * @author fks/Serge de Schaetzen
  *
  */
-public abstract class AbstractRESTSerializer implements RESTSerializer
+public abstract class AbstractRESTSerializer implements StreamingRESTSerializer
 {
     // ===========================================================================
     /**
@@ -59,6 +60,24 @@ public abstract class AbstractRESTSerializer implements RESTSerializer
         return res;
     }
 
+    // ===========================================================================
+    /**
+     * Default implementation, that writes the String returned by serialize(Object)
+     * to the stream. Subclasses should override it when their underlying library
+     * can write to a stream directly.
+     *
+     * @param o The object to serialize.
+     * @param out The stream to write to.
+     * @throws IOException If an error occurs.
+     */
+    @Override
+    public void serialize(Object o, OutputStream out) throws IOException
+    {
+        String s = serialize(o);
+        if (s != null) out.write(s.getBytes("UTF-8"));
+        out.flush();
+    }
+
     // ===========================================================================
     /**
      * Requests the serializer instance to deserialize the given String to an object of
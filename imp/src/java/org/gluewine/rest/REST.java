@@ -39,9 +39,30 @@ public @interface REST
     // ===========================================================================
     /**
      * Defines the path that needs to be used to access the annotated method.
+     * A segment of the form {name} matches any value, which is then available
+     * to the parameter annotated with @RESTID(id = "name").
      */
     String path();
 
+    // ===========================================================================
+    /**
+     * Defines the HTTP methods (GET, POST, ...) the annotated method responds to.
+     * By default it responds to all methods.
+     */
+    String[] httpMethods() default {};
+
+    // ===========================================================================
+    /**
+     * Defines the number of seconds the serialized response is cached on the server.
+     * The cache is keyed on the path, the parameter values, the format and, unless the
+     * method is unsecured, the authenticated user: all sessions of the same user share
+     * the cached responses. Sessions without a user name are keyed on the session.
+     * Only methods without body, form, request or response parameters can be cached.
+     * Use RESTCache to invalidate responses before they expire.
+     * By default responses are not cached.
+     */
+    long cache() default 0;
+
     // ===========================================================================
     /**
      * Defines whether the POST is done using a form. (needed for file transfer).
@@ -0,0 +1,146 @@
+/**************************************************************************
+ *
+ * Gluewine REST Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.rest;
+
+/**
+ * The outcome of one call of a batch request sent to /REST/_batch.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public class RESTBatchResult
+{
+    // ===========================================================================
+    /**
+     * The path of the method called.
+     */
+    private String path = null;
+
+    /**
+     * The HTTP like status of the call: 200 if it succeeded.
+     */
+    private int status = 0;
+
+    /**
+     * The result of the call.
+     */
+    private Object result = null;
+
+    /**
+     * The error message if the call failed.
+     */
+    private String error = null;
+
+    // ===========================================================================
+    /**
+     * Creates an instance.
+     */
+    public RESTBatchResult()
+    {
+    }
+
+    // ===========================================================================
+    /**
+     * Creates an instance.
+     *
+     * @param path The path of the method called.
+     * @param status The status of the call.
+     * @param result The result of the call.
+     * @param error The error message.
+     */
+    public RESTBatchResult(String path, int status, Object result, String error)
+    {
+        this.path = path;
+        this.status = status;
+        this.result = result;
+        this.error = error;
+    }
+
+    // ===========================================================================
+    /**
+     * @return the path.
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    // ===========================================================================
+    /**
+     * @param path the path to set.
+     */
+    public void setPath(String path)
+    {
+        this.path = path;
+    }
+
+    // ===========================================================================
+    /**
+     * @return the status.
+     */
+    public int getStatus()
+    {
+        return status;
+    }
+
+    // ===========================================================================
+    /**
+     * @param status the status to set.
+     */
+    public void setStatus(int status)
+    {
+        this.status = status;
+    }
+
+    // ===========================================================================
+    /**
+     * @return the result.
+     */
+    public Object getResult()
+    {
+        return result;
+    }
+
+    // ===========================================================================
+    /**
+     * @param result the result to set.
+     */
+    public void setResult(Object result)
+    {
+        this.result = result;
+    }
+
+    // ===========================================================================
+    /**
+     * @return the error.
+     */
+    public String getError()
+    {
+        return error;
+    }
+
+    // ===========================================================================
+    /**
+     * @param error the error to set.
+     */
+    public void setError(String error)
+    {
+        this.error = error;
+    }
+}
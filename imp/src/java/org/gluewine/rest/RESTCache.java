@@ -0,0 +1,45 @@
+/**************************************************************************
+ *
+ * Gluewine REST Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.rest;
+
+/**
+ * Gives access to the server side cache of REST responses. Services exposing
+ * cached REST methods (see REST.cache()) can use it to invalidate the cached
+ * responses when the underlying data changes.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public interface RESTCache
+{
+    // ===========================================================================
+    /**
+     * Removes all cached responses of the REST method registered with the given
+     * path, for all parameter values and users.
+     *
+     * @param path The path, as specified in the REST annotation.
+     */
+    void invalidate(String path);
+
+    // ===========================================================================
+    /**
+     * Removes all cached responses.
+     */
+    void invalidateAll();
+}
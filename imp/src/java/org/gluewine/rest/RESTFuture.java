@@ -0,0 +1,312 @@
+/**************************************************************************
+ *
+ * Gluewine REST Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.rest;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A future that can be returned by REST methods that complete asynchronously.
+ * The servlet thread is released as soon as the method returns, and the response is
+ * written when the future is completed.
+ *
+ * When running on a JVM that provides java.util.concurrent.CompletionStage, methods
+ * can also return a CompletionStage (eg. a CompletableFuture); it is adapted to a
+ * RESTFuture by the adapt() method.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ * @param <T> The type of the result.
+ */
+public class RESTFuture<T> implements Future<T>
+{
+    // ===========================================================================
+    /**
+     * Listener notified when a future completes.
+     *
+     * @param <T> The type of the result.
+     */
+    public interface Listener<T>
+    {
+        // ===========================================================================
+        /**
+         * Invoked when the future completed.
+         *
+         * @param result The (possibly null) result.
+         * @param error The error, or null if the future completed normally.
+         */
+        void completed(T result, Throwable error);
+    }
+
+    /**
+     * The CompletionStage class, or null if not available.
+     */
+    private static final Class<?> COMPLETION_STAGE = loadClass("java.util.concurrent.CompletionStage");
+
+    /**
+     * The BiConsumer class, or null if not available.
+     */
+    private static final Class<?> BI_CONSUMER = loadClass("java.util.function.BiConsumer");
+
+    /**
+     * The result.
+     */
+    private T result = null;
+
+    /**
+     * The error.
+     */
+    private Throwable error = null;
+
+    /**
+     * Flag indicating that the future completed.
+     */
+    private boolean done = false;
+
+    /**
+     * The listeners waiting for completion.
+     */
+    private List<Listener<? super T>> listeners = new ArrayList<Listener<? super T>>(1);
+
+    // ===========================================================================
+    /**
+     * Loads the given class from the JVM, returning null if it doesn't exist.
+     *
+     * @param name The name of the class.
+     * @return The (possibly null) class.
+     */
+    private static Class<?> loadClass(String name)
+    {
+        try
+        {
+            return Class.forName(name);
+        }
+        catch (ClassNotFoundException e)
+        {
+            return null;
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if the given type is a future type supported by the REST servlet.
+     *
+     * @param type The type to check.
+     * @return True if supported.
+     */
+    public static boolean isFuture(Class<?> type)
+    {
+        if (RESTFuture.class.isAssignableFrom(type)) return true;
+        return COMPLETION_STAGE != null && COMPLETION_STAGE.isAssignableFrom(type);
+    }
+
+    // ===========================================================================
+    /**
+     * Adapts the given RESTFuture or CompletionStage to a RESTFuture.
+     *
+     * @param o The object to adapt.
+     * @return The future.
+     * @throws IllegalArgumentException If the object can't be adapted.
+     */
+    @SuppressWarnings("unchecked")
+    public static RESTFuture<Object> adapt(Object o)
+    {
+        if (o instanceof RESTFuture) return (RESTFuture<Object>) o;
+        if (COMPLETION_STAGE == null || !COMPLETION_STAGE.isInstance(o))
+            throw new IllegalArgumentException("Not a future: " + o);
+
+        final RESTFuture<Object> future = new RESTFuture<Object>();
+        Object callback = Proxy.newProxyInstance(RESTFuture.class.getClassLoader(), new Class<?>[] {BI_CONSUMER}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                if (method.getName().equals("accept"))
+                {
+                    Throwable t = (Throwable) args[1];
+                    // CompletableFuture wraps the error in a CompletionException.
+                    if (t != null && t.getCause() != null && t.getClass().getName().equals("java.util.concurrent.CompletionException"))
+                        t = t.getCause();
+
+                    if (t != null) future.fail(t);
+                    else future.complete(args[0]);
+                    return null;
+                }
+                else if (method.getName().equals("equals")) return Boolean.valueOf(proxy == args[0]);
+                else if (method.getName().equals("hashCode")) return Integer.valueOf(System.identityHashCode(proxy));
+                else if (method.getName().equals("toString")) return "RESTFuture callback";
+                return null;
+            }
+        });
+
+        try
+        {
+            COMPLETION_STAGE.getMethod("whenComplete", BI_CONSUMER).invoke(o, callback);
+        }
+        catch (InvocationTargetException e)
+        {
+            future.fail(e.getCause());
+        }
+        catch (Exception e)
+        {
+            future.fail(e);
+        }
+
+        return future;
+    }
+
+    // ===========================================================================
+    /**
+     * Completes the future with the given result.
+     *
+     * @param value The result.
+     * @return True if the future was completed by this call.
+     */
+    public boolean complete(T value)
+    {
+        return finish(value, null);
+    }
+
+    // ===========================================================================
+    /**
+     * Completes the future with the given error.
+     *
+     * @param t The error.
+     * @return True if the future was completed by this call.
+     */
+    public boolean fail(Throwable t)
+    {
+        return finish(null, t);
+    }
+
+    // ===========================================================================
+    /**
+     * Completes the future and notifies the listeners.
+     *
+     * @param value The result.
+     * @param t The error.
+     * @return True if the future was completed by this call.
+     */
+    private boolean finish(T value, Throwable t)
+    {
+        List<Listener<? super T>> toNotify = null;
+        synchronized (this)
+        {
+            if (done) return false;
+            result = value;
+            error = t;
+            done = true;
+            toNotify = listeners;
+            listeners = null;
+            notifyAll();
+        }
+
+        for (Listener<? super T> l : toNotify)
+            l.completed(value, t);
+
+        return true;
+    }
+
+    // ===========================================================================
+    /**
+     * Adds a listener. If the future already completed, the listener is notified
+     * immediately, in the calling thread.
+     *
+     * @param listener The listener to add.
+     */
+    public void addListener(Listener<? super T> listener)
+    {
+        synchronized (this)
+        {
+            if (!done)
+            {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.completed(result, error);
+    }
+
+    // ===========================================================================
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return fail(new CancellationException());
+    }
+
+    // ===========================================================================
+    @Override
+    public synchronized boolean isCancelled()
+    {
+        return error instanceof CancellationException;
+    }
+
+    // ===========================================================================
+    @Override
+    public synchronized boolean isDone()
+    {
+        return done;
+    }
+
+    // ===========================================================================
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException
+    {
+        while (!done)
+            wait();
+        return getResult();
+    }
+
+    // ===========================================================================
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (!done)
+        {
+            long left = end - System.nanoTime();
+            if (left <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return getResult();
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the result, or throws the error of the future.
+     *
+     * @return The result.
+     * @throws ExecutionException If the future failed.
+     */
+    private T getResult() throws ExecutionException
+    {
+        if (error instanceof CancellationException) throw (CancellationException) error;
+        if (error != null) throw new ExecutionException(error);
+        return result;
+    }
+}
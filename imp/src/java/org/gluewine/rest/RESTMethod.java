@@ -18,12 +18,20 @@
  ***************************************************************************/
 package org.gluewine.rest;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Method;
 
+import org.gluewine.utils.AnnotationUtility;
+
 /**
  * Simple bean that keeps track of a REST annotated method,
  * and the object it belongs to.
  *
+ * Once the method and object are set, compile() computes the binding plan of the
+ * method: how every parameter is obtained from the request, and how the result is
+ * to be handled.
+ *
  * @author fks/Serge de Schaetzen
  *
  */
@@ -45,6 +53,58 @@ public class RESTMethod
      */
     private boolean form = false;
 
+    /**
+     * Flag indicating that the method can be invoked without authentication.
+     */
+    private boolean unsecured = false;
+
+    /**
+     * The path the method is registered with.
+     */
+    private String path = null;
+
+    /**
+     * The time to live of cached responses in milliseconds. (0 = not cached)
+     */
+    private long cacheTtl = 0;
+
+    /**
+     * Flag indicating that the responses can be cached.
+     */
+    private boolean cacheable = false;
+
+    /**
+     * The binding of the parameters.
+     */
+    private RESTParameter[] parameters = new RESTParameter[0];
+
+    /**
+     * The way the result is handled.
+     */
+    private Result result = Result.SERIALIZED;
+
+    // ===========================================================================
+    /**
+     * Enumeration of the ways the result of a method is handled.
+     */
+    public enum Result
+    {
+        /**
+         * The result is ignored. (void methods and methods returning a stream)
+         */
+        IGNORED,
+
+        /**
+         * The result is serialized to the response.
+         */
+        SERIALIZED,
+
+        /**
+         * The result is a future; it is serialized to the response once completed.
+         */
+        ASYNC
+    }
+
     // ===========================================================================
     /**
      * @return the method.
@@ -98,4 +158,124 @@ public class RESTMethod
     {
         this.form = form;
     }
+
+    // ===========================================================================
+    /**
+     * @return the unsecured flag.
+     */
+    public boolean isUnsecured()
+    {
+        return unsecured;
+    }
+
+    // ===========================================================================
+    /**
+     * @param unsecured the unsecured flag to set.
+     */
+    public void setUnsecured(boolean unsecured)
+    {
+        this.unsecured = unsecured;
+    }
+
+    // ===========================================================================
+    /**
+     * @return the path.
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    // ===========================================================================
+    /**
+     * @param path the path to set.
+     */
+    public void setPath(String path)
+    {
+        this.path = path;
+    }
+
+    // ===========================================================================
+    /**
+     * @return the time to live of cached responses in milliseconds.
+     */
+    public long getCacheTtl()
+    {
+        return cacheTtl;
+    }
+
+    // ===========================================================================
+    /**
+     * @param cacheTtl the time to live of cached responses in milliseconds to set.
+     */
+    public void setCacheTtl(long cacheTtl)
+    {
+        this.cacheTtl = cacheTtl;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if the responses of the method can be cached. This requires
+     * a time to live, and a method that only depends on parameters, headers and
+     * path variables.
+     *
+     * @return True if cacheable.
+     */
+    public boolean isCacheable()
+    {
+        return cacheable;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the binding of the parameters, in the order of the method signature.
+     *
+     * @return The parameters.
+     */
+    @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "EI_EXPOSE_REP")
+    public RESTParameter[] getParameters()
+    {
+        return parameters;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the way the result is to be handled.
+     *
+     * @return The result handling.
+     */
+    public Result getResult()
+    {
+        return result;
+    }
+
+    // ===========================================================================
+    /**
+     * Computes the binding plan of the method. This must be invoked after the method
+     * and object have been set.
+     */
+    public void compile()
+    {
+        Class<?>[] types = method.getParameterTypes();
+        RESTParameter[] params = new RESTParameter[types.length];
+        for (int i = 0; i < types.length; i++)
+            params[i] = new RESTParameter(AnnotationUtility.getAnnotations(RESTID.class, object, method, i), types[i]);
+        parameters = params;
+
+        Class<?> ret = method.getReturnType();
+        if (ret.equals(Void.TYPE) || ret.equals(InputStream.class) || ret.equals(OutputStream.class))
+            result = Result.IGNORED;
+        else if (RESTFuture.isFuture(ret))
+            result = Result.ASYNC;
+        else
+            result = Result.SERIALIZED;
+
+        boolean c = cacheTtl > 0 && result == Result.SERIALIZED && !form;
+        for (RESTParameter p : params)
+        {
+            RESTParameter.Source s = p.getSource();
+            if (s == RESTParameter.Source.BODY || s == RESTParameter.Source.REQUEST || s == RESTParameter.Source.RESPONSE) c = false;
+        }
+        cacheable = c;
+    }
 }
@@ -0,0 +1,206 @@
+/**************************************************************************
+ *
+ * Gluewine REST Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.rest;
+
+import java.io.File;
+import java.io.InputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Describes how a parameter of a REST method is bound to the request. It is
+ * computed once, when the method is registered, so that the annotations don't have
+ * to be looked up for every request.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public final class RESTParameter
+{
+    // ===========================================================================
+    /**
+     * Enumeration of the sources a parameter value can be taken from.
+     */
+    public enum Source
+    {
+        /**
+         * Not bound; the parameter will be null.
+         */
+        NONE,
+
+        /**
+         * A HTTP header.
+         */
+        HEADER,
+
+        /**
+         * The HTTP request method.
+         */
+        METHOD,
+
+        /**
+         * The entire HTTP body.
+         */
+        BODY,
+
+        /**
+         * A GET or POST parameter, or a form field.
+         */
+        PARAM,
+
+        /**
+         * The servlet request.
+         */
+        REQUEST,
+
+        /**
+         * The servlet response.
+         */
+        RESPONSE
+    }
+
+    /**
+     * The annotation of the parameter. (Possibly null)
+     */
+    private final RESTID id;
+
+    /**
+     * The type of the parameter.
+     */
+    private final Class<?> type;
+
+    /**
+     * The source of the value.
+     */
+    private final Source source;
+
+    /**
+     * True if the parameter accepts an InputStream.
+     */
+    private final boolean stream;
+
+    /**
+     * True if the parameter accepts a File.
+     */
+    private final boolean file;
+
+    // ===========================================================================
+    /**
+     * Creates an instance.
+     *
+     * @param id The (possibly null) annotation of the parameter.
+     * @param type The type of the parameter.
+     */
+    RESTParameter(RESTID id, Class<?> type)
+    {
+        this.id = id;
+        this.type = type;
+        this.stream = InputStream.class.isAssignableFrom(type);
+        this.file = File.class.isAssignableFrom(type);
+
+        if (id != null)
+        {
+            if (id.header()) source = Source.HEADER;
+            else if (id.method()) source = Source.METHOD;
+            else if (id.body()) source = Source.BODY;
+            else source = Source.PARAM;
+        }
+        else if (HttpServletResponse.class.isAssignableFrom(type)) source = Source.RESPONSE;
+        else if (HttpServletRequest.class.isAssignableFrom(type)) source = Source.REQUEST;
+        else source = Source.NONE;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the id of the parameter, or null if it isn't annotated.
+     *
+     * @return The id.
+     */
+    public String getId()
+    {
+        return id != null ? id.id() : null;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the type of the parameter.
+     *
+     * @return The type.
+     */
+    public Class<?> getType()
+    {
+        return type;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the source of the value.
+     *
+     * @return The source.
+     */
+    public Source getSource()
+    {
+        return source;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if the parameter accepts an InputStream.
+     *
+     * @return True if streamed.
+     */
+    public boolean isStream()
+    {
+        return stream;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if the parameter accepts a File.
+     *
+     * @return True for files.
+     */
+    public boolean isFile()
+    {
+        return file;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if the parameter is to receive the mime type of an uploaded file.
+     *
+     * @return True for mime types.
+     */
+    public boolean isMimeType()
+    {
+        return id != null && id.mimetype();
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if the parameter is to receive the name of an uploaded file.
+     *
+     * @return True for file names.
+     */
+    public boolean isFileName()
+    {
+        return id != null && id.filename();
+    }
+}
@@ -0,0 +1,43 @@
+/**************************************************************************
+ *
+ * Gluewine REST Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Defines a RESTSerializer that can write directly to a stream, avoiding the
+ * intermediate String of large responses.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public interface StreamingRESTSerializer extends RESTSerializer
+{
+    // ===========================================================================
+    /**
+     * Serializes the object specified directly to the given stream, using UTF-8.
+     * The stream is flushed, but not closed.
+     *
+     * @param o The object to serialize.
+     * @param out The stream to write to.
+     * @throws IOException If an error occurs.
+     */
+    void serialize(Object o, OutputStream out) throws IOException;
+}
@@ -0,0 +1,111 @@
+/**************************************************************************
+ *
+ * Gluewine REST Binary Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.rest_binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.gluewine.core.Glue;
+import org.gluewine.rest.AbstractRESTSerializer;
+import org.gluewine.utils.Base64;
+import org.gluewine.xstream.XStreamFactory;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.binary.BinaryStreamReader;
+import com.thoughtworks.xstream.io.binary.BinaryStreamWriter;
+
+/**
+ * Serializes/deserializes to/from the compact binary format of XStream. It uses
+ * the same object model as the XML format, but avoids the cost of generating and
+ * parsing text.
+ *
+ * As request parameters are text, parameters are expected to be base64 encoded.
+ * The String representation of a response is base64 encoded as well.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public class BinaryRESTSerializer extends AbstractRESTSerializer
+{
+    // ===========================================================================
+    /**
+     * The factory providing the actual serializer.
+     */
+    @Glue
+    private XStreamFactory factory = null;
+
+    // ===========================================================================
+    @Override
+    public String getFormat()
+    {
+        return "binary";
+    }
+
+    // ===========================================================================
+    @Override
+    public String getResponseMIME()
+    {
+        return "application/x-xstream-binary";
+    }
+
+    // ===========================================================================
+    @Override
+    public String serialize(Object o) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serialize(o, out);
+        return Base64.encode(out.toByteArray());
+    }
+
+    // ===========================================================================
+    @Override
+    public void serialize(Object o, OutputStream out) throws IOException
+    {
+        BinaryStreamWriter writer = new BinaryStreamWriter(out);
+        XStream stream = factory.borrowXStream();
+        try
+        {
+            stream.marshal(o, writer);
+        }
+        finally
+        {
+            factory.releaseXStream(stream);
+        }
+        writer.flush();
+    }
+
+    // ===========================================================================
+    @Override
+    protected Object deserializeObject(Class<?> cl, String str) throws IOException
+    {
+        // The parameters are url decoded twice, which turns a '+' into a space.
+        byte[] bytes = Base64.decode(str.replace(' ', '+'));
+        XStream stream = factory.borrowXStream();
+        try
+        {
+            return stream.unmarshal(new BinaryStreamReader(new ByteArrayInputStream(bytes)));
+        }
+        finally
+        {
+            factory.releaseXStream(stream);
+        }
+    }
+}
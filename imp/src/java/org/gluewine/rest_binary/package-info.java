@@ -0,0 +1,8 @@
+/**
+ * Contains the binary REST Serialier/Deserializer.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+package org.gluewine.rest_binary;
+
@@ -18,12 +18,16 @@
  ***************************************************************************/
 package org.gluewine.rest_client;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.BufferedWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
@@ -31,16 +35,18 @@ import java.lang.reflect.Proxy;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
 
 import javax.servlet.http.HttpServletResponse;
 
 import org.gluewine.rest.REST;
 import org.gluewine.rest.RESTID;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.io.xml.StaxDriver;
 
@@ -48,12 +54,67 @@ import com.thoughtworks.xstream.io.xml.StaxDriver;
  * Allows to access the REST Server API through the
  * user of proxies.
  *
+ * Requests are sent with HttpURLConnection, whose connections are kept alive and
+ * reused by the JVM as long as every response is read completely; the number of idle
+ * connections kept per host is defined by the http.maxConnections system property.
+ * The number of concurrent requests to the server can be limited with
+ * setMaxConnections().
+ *
+ * Parameters and results are streamed in the format set with setFormat() ("xml" or
+ * "json"). The proxies are stateless and can be shared between threads.
+ *
  * @author fks/Serge de Schaetzen
  *
  */
 public final class RESTClient implements InvocationHandler
 {
     // ===========================================================================
+    /**
+     * The handler of proxies created with a specific read timeout.
+     */
+    private final class TimeoutHandler implements InvocationHandler
+    {
+        /**
+         * The read timeout in milliseconds.
+         */
+        private final int timeout;
+
+        // ===========================================================================
+        /**
+         * Creates an instance.
+         *
+         * @param timeout The read timeout in milliseconds.
+         */
+        TimeoutHandler(int timeout)
+        {
+            this.timeout = timeout;
+        }
+
+        // ===========================================================================
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            return RESTClient.this.invoke(method, args, timeout);
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Holds the JSON mapper, so that Jackson is only loaded when JSON is used.
+     */
+    private static final class JSON
+    {
+        /**
+         * The mapper.
+         */
+        private static final ObjectMapper MAPPER = new ObjectMapper();
+
+        static
+        {
+            MAPPER.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        }
+    }
+
     /**
      * The base url to use.
      */
@@ -62,7 +123,27 @@ public final class RESTClient implements InvocationHandler
     /**
      * The session id.
      */
-    private String sessionId = null;
+    private volatile String sessionId = null;
+
+    /**
+     * The format used to exchange parameters and results.
+     */
+    private volatile String format = "xml";
+
+    /**
+     * The connect timeout in milliseconds. (0 = no timeout)
+     */
+    private volatile int connectTimeout = 0;
+
+    /**
+     * The default read timeout in milliseconds. (0 = no timeout)
+     */
+    private volatile int readTimeout = 0;
+
+    /**
+     * The permits limiting the number of concurrent requests. (null = unlimited)
+     */
+    private volatile Semaphore permits = null;
 
     /**
      * Map of clients indexed on their base urls.
@@ -70,9 +151,17 @@ public final class RESTClient implements InvocationHandler
     private static Map<String, RESTClient> clients = new HashMap<String, RESTClient>();
 
     /**
-     * The xstream to use.
+     * The xstream to use. Every thread gets its own instance, so that
+     * proxies can be used concurrently without contending on one instance.
      */
-    private XStream stream = null;
+    private ThreadLocal<XStream> stream = new ThreadLocal<XStream>()
+    {
+        @Override
+        protected XStream initialValue()
+        {
+            return new XStream(new StaxDriver());
+        }
+    };
 
     // ===========================================================================
     /**
@@ -86,105 +175,208 @@ public final class RESTClient implements InvocationHandler
 
         if (!baseURL.endsWith("/")) baseURL = baseURL + "/";
         if (!baseURL.endsWith("REST/")) baseURL = baseURL + "REST/";
-        stream = new XStream(new StaxDriver());
     }
 
     // ===========================================================================
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        return invoke(method, args, readTimeout);
+    }
+
+    // ===========================================================================
+    /**
+     * Invokes the given method on the server.
+     *
+     * @param method The method to invoke.
+     * @param args The arguments.
+     * @param timeout The read timeout in milliseconds.
+     * @return The result.
+     * @throws Throwable If the invocation failed.
+     */
+    private Object invoke(Method method, Object[] args, int timeout) throws Throwable
     {
         REST annot = method.getAnnotation(REST.class);
-        if (annot != null)
+        if (annot == null) throw new RuntimeException("The method " + method.getName() + " is not @REST annotated!");
+
+        String path = annot.path();
+        if (path.startsWith("/")) path = path.substring(1);
+        String fmt = format;
+
+        final Semaphore sem = permits;
+        // Set once the permit is held, and cleared once it is owned by the stream returned.
+        boolean release = false;
+        HttpURLConnection con = null;
+        try
         {
-            String path = annot.path();
-            if (path.startsWith("/")) path = path.substring(1);
-            URL obj = new URL(baseURL + path);
-            HttpURLConnection con = (HttpURLConnection) obj.openConnection();
+            if (sem != null)
+            {
+                sem.acquire();
+                release = true;
+            }
+
+            con = (HttpURLConnection) new URL(baseURL + path).openConnection();
             con.setRequestMethod("POST");
             con.setRequestProperty("User-Agent", "RESTClient/API");
             con.setRequestProperty("Accept-Language", "utf-8");
+            con.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=utf-8");
             if (sessionId != null) con.setRequestProperty("Gluewine-Session", sessionId);
+            con.setConnectTimeout(connectTimeout);
+            con.setReadTimeout(timeout);
+            con.setUseCaches(false);
+            con.setDoOutput(true);
+            con.setChunkedStreamingMode(0);
+
+            try (Writer wr = new BufferedWriter(new OutputStreamWriter(con.getOutputStream(), "UTF-8")))
+            {
+                writeParameters(wr, method, args, fmt);
+            }
 
-            try
+            int code = con.getResponseCode();
+            if (code != HttpServletResponse.SC_OK)
             {
-                StringBuilder b = new StringBuilder();
-                Annotation[][] panns = method.getParameterAnnotations();
-                for (int i = 0; i < panns.length; i++)
+                drain(con.getErrorStream());
+                if (code == HttpServletResponse.SC_UNAUTHORIZED) throw new RESTAuthenticationRequiredException();
+                throw new RuntimeException(con.getResponseMessage());
+            }
+
+            Class<?> ret = method.getReturnType();
+            // If the return type is either Input- or Outpustream, we return it, but we must
+            // make sure that the connection is not closed!.
+            if (ret.equals(InputStream.class))
+            {
+                InputStream stream = new FilterInputStream(con.getInputStream())
                 {
-                    Annotation[] anns = panns[i];
-                    for (Annotation ann : anns)
+                    private boolean closed = false;
+
+                    @Override
+                    public void close() throws IOException
                     {
-                        if (ann instanceof RESTID)
-                        {
-                            RESTID rid = (RESTID) ann;
-                            b.append(rid.id()).append("=").append(toString(args[i]));
-                            break;
-                        }
+                        super.close();
+                        if (!closed && sem != null) sem.release();
+                        closed = true;
                     }
+                };
+                release = false;
+                return stream;
+            }
+            else if (ret.equals(OutputStream.class))
+            {
+                con.getInputStream();
+                return con.getOutputStream();
+            }
 
-                    if (i < panns.length - 1) b.append("&");
-                }
-                if (b.length() > 0) b.append("&");
-                b.append("format=xml");
-
-                con.setDoOutput(true);
+            try (InputStream in = con.getInputStream())
+            {
                 Object result = null;
-                try
-                (
-                    DataOutputStream wr = new DataOutputStream(con.getOutputStream());
-                )
+                if (!ret.equals(Void.TYPE)) result = read(in, method, fmt);
+                drain(in);
+                return result;
+            }
+        }
+        catch (RESTAuthenticationRequiredException | InterruptedException e)
+        {
+            throw e;
+        }
+        catch (Throwable e)
+        {
+            // The connection may be in any state, don't reuse it.
+            if (con != null) con.disconnect();
+            if (e instanceof RuntimeException) throw e;
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            if (release) sem.release();
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Writes the parameters of the given method, url encoded.
+     *
+     * @param wr The writer to write to.
+     * @param method The method invoked.
+     * @param args The arguments.
+     * @param fmt The format to use.
+     * @throws IOException If an error occurs.
+     */
+    private void writeParameters(Writer wr, Method method, Object[] args, String fmt) throws IOException
+    {
+        Annotation[][] panns = method.getParameterAnnotations();
+        for (int i = 0; i < panns.length; i++)
+        {
+            for (Annotation ann : panns[i])
+            {
+                if (ann instanceof RESTID)
                 {
-                    wr.writeBytes(b.toString());
-                    wr.flush();
-                    if (!method.getReturnType().equals(Void.TYPE))
-                    {
-                        // If the return type is either Input- or Outpustream, we return it, but we must
-                        // make sure that the connection is not closed!.
-                        if (method.getReturnType().equals(InputStream.class)) return con.getInputStream();
-                        else if (method.getReturnType().equals(OutputStream.class))
-                        {
-                            con.getInputStream();
-                            return con.getOutputStream();
-                        }
-
-                        try
-                        (
-                            BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream(), Charset.forName("UTF-8")));
-                        )
-                        {
-                            String inputLine;
-                            StringBuilder response = new StringBuilder();
-                            while ((inputLine = in.readLine()) != null)
-                                response.append(inputLine);
-                            result = fromString(response.toString(), method.getReturnType());
-                        }
-                    }
+                    if (args[i] == null) break;
+                    wr.write(((RESTID) ann).id());
+                    wr.write('=');
+                    wr.write(toString(args[i], fmt));
+                    wr.write('&');
+                    break;
                 }
-
-                if (con.getResponseCode() != HttpServletResponse.SC_OK) throw new RuntimeException(con.getResponseMessage());
-                else return result;
             }
-            catch (Throwable e)
+        }
+        wr.write("format=");
+        wr.write(fmt);
+    }
+
+    // ===========================================================================
+    /**
+     * Reads the result of the given method from the stream.
+     *
+     * @param in The stream to read.
+     * @param method The method invoked.
+     * @param fmt The format used.
+     * @return The result.
+     * @throws IOException If an error occurs.
+     */
+    private Object read(InputStream in, Method method, String fmt) throws IOException
+    {
+        if (fmt.equals("json"))
+            return JSON.MAPPER.readValue(in, JSON.MAPPER.getTypeFactory().constructType(method.getGenericReturnType()));
+
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        if (method.getReturnType().equals(String.class))
+        {
+            StringBuilder b = new StringBuilder();
+            char[] buf = new char[4096];
+            int n = reader.read(buf);
+            while (n >= 0)
             {
-                if (con.getResponseCode() == 401) throw new RESTAuthenticationRequiredException();
-                else throw new RuntimeException(e);
+                b.append(buf, 0, n);
+                n = reader.read(buf);
             }
+            return b.toString();
         }
-        else throw new RuntimeException("The method " + method.getName() + " is not @REST annotated!");
+        else return stream.get().fromXML(reader);
     }
 
     // ===========================================================================
     /**
-     * Deserializes the string given to an object of the given class.
+     * Reads the remainder of the given stream, so that the connection can be reused,
+     * and closes it.
      *
-     * @param value The String to deserialize.
-     * @param target The target class.
-     * @return The resulting object.
+     * @param in The (possibly null) stream to drain.
+     * @throws IOException If an error occurs.
      */
-    private Object fromString(String value, Class<?> target)
+    private static void drain(InputStream in) throws IOException
     {
-        if (target.equals(String.class)) return value;
-        else return stream.fromXML(value);
+        if (in == null) return;
+        try
+        {
+            byte[] buf = new byte[1024];
+            while (in.read(buf) >= 0)
+            {
+                // Discard.
+            }
+        }
+        finally
+        {
+            in.close();
+        }
     }
 
     // ===========================================================================
@@ -192,10 +384,11 @@ public final class RESTClient implements InvocationHandler
      * Returns the String representation of an object.
      *
      * @param value The string representation.
+     * @param fmt The format to use for objects.
      * @return The String.
-     * @throws UnsupportedEncodingException If the parameter cannot be urlencoded.
+     * @throws IOException If the parameter cannot be serialized or urlencoded.
      */
-    private String toString(Object value) throws UnsupportedEncodingException
+    private String toString(Object value, String fmt) throws IOException
     {
         String res = null;
         switch (value.getClass().getSimpleName().toLowerCase(Locale.getDefault()))
@@ -208,6 +401,7 @@ public final class RESTClient implements InvocationHandler
             case "float" :
             case "long" :
             case "int" :
+            case "integer" :
             case "short" :
                 res = value.toString();
                 break;
@@ -216,12 +410,24 @@ public final class RESTClient implements InvocationHandler
                 break;
 
             default :
-                res = stream.toXML(value);
+                if (fmt.equals("json")) res = JSON.MAPPER.writeValueAsString(value);
+                else res = stream.get().toXML(value);
         }
 
-        res = URLEncoder.encode(res, "utf8");
-        return res;
+        return encode(res);
+    }
 
+    // ===========================================================================
+    /**
+     * URL encodes the given string.
+     *
+     * @param s The string to encode.
+     * @return The encoded string.
+     * @throws UnsupportedEncodingException If utf8 is not supported.
+     */
+    private static String encode(String s) throws UnsupportedEncodingException
+    {
+        return URLEncoder.encode(s, "utf8");
     }
 
     // ===========================================================================
@@ -244,6 +450,45 @@ public final class RESTClient implements InvocationHandler
         this.sessionId = null;
     }
 
+    // ===========================================================================
+    /**
+     * Sets the format used to exchange parameters and results: "xml" (default)
+     * or "json". JSON requires Jackson on the classpath of the client.
+     *
+     * @param format The format.
+     */
+    public void setFormat(String format)
+    {
+        if (!format.equals("xml") && !format.equals("json"))
+            throw new IllegalArgumentException("Unsupported format " + format);
+        this.format = format;
+    }
+
+    // ===========================================================================
+    /**
+     * Sets the timeouts used by the proxies that don't have a specific timeout.
+     *
+     * @param connect The connect timeout in milliseconds. (0 = no timeout)
+     * @param read The read timeout in milliseconds. (0 = no timeout)
+     */
+    public void setTimeouts(int connect, int read)
+    {
+        this.connectTimeout = connect;
+        this.readTimeout = read;
+    }
+
+    // ===========================================================================
+    /**
+     * Limits the number of concurrent requests sent to the server. Additional
+     * requests wait until a request completes. A value of 0 removes the limit.
+     *
+     * @param max The maximum number of concurrent requests.
+     */
+    public void setMaxConnections(int max)
+    {
+        permits = max > 0 ? new Semaphore(max, true) : null;
+    }
+
     // ===========================================================================
     /**
      * Creates and returns a proxy to the service specified by the given interface.
@@ -259,6 +504,22 @@ public final class RESTClient implements InvocationHandler
         return (T) Proxy.newProxyInstance(t.getClassLoader(), new Class<?>[] {t}, this);
     }
 
+    // ===========================================================================
+    /**
+     * Creates and returns a proxy to the service specified by the given interface,
+     * whose calls fail if the server doesn't respond within the given timeout.
+     *
+     * @param <T> The class to return.
+     * @param t The interface to be proxied.
+     * @param timeout The read timeout in milliseconds. (0 = no timeout)
+     * @return The Proxy to the interface.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getService(Class<T> t, int timeout)
+    {
+        return (T) Proxy.newProxyInstance(t.getClassLoader(), new Class<?>[] {t}, new TimeoutHandler(timeout));
+    }
+
     // ===========================================================================
     /**
      * Returns a client that will connect to the given url.
@@ -19,12 +19,18 @@
 package org.gluewine.rest_dbauth;
 
 import java.io.UnsupportedEncodingException;
-import java.util.HashMap;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -33,10 +39,11 @@ import org.apache.log4j.Logger;
 import org.gluewine.authentication.AuthenticationException;
 import org.gluewine.core.Glue;
 import org.gluewine.core.RunOnActivate;
-import org.gluewine.core.RunOnDeactivate;
+import org.gluewine.dbauth.CredentialListener;
 import org.gluewine.dbauth.DBAuthenticator;
 import org.gluewine.rest_server.RESTAuthenticator;
 import org.gluewine.sessions.SessionExpiredException;
+import org.gluewine.sessions.SessionListener;
 import org.gluewine.sessions.SessionManager;
 
 import com.thoughtworks.xstream.core.util.Base64Encoder;
@@ -44,12 +51,56 @@ import com.thoughtworks.xstream.core.util.Base64Encoder;
 /**
  * Authenticator that delelgates the request to the DBAuthenticator.
  *
+ * <p>Credentials that have been verified through Basic authentication are cached,
+ * together with the session that was obtained, so that clients that do not keep the
+ * HTTP session reuse the same Gluewine session without the credential being verified
+ * again. Only a salted hash of the password is kept. The cache is bounded and entries
+ * expire; its size and time to live (in seconds) are specified by the properties
+ * credentialcache.size and credentialcache.ttl in restdbauth.properties. A size of 0
+ * disables the cache.
+ *
  * @author fks/Serge de Schaetzen
  *
  */
-public class RESTDBAuthenticator implements RESTAuthenticator
+public class RESTDBAuthenticator implements RESTAuthenticator, CredentialListener, SessionListener
 {
     // ===========================================================================
+    /**
+     * A verified credential.
+     */
+    private static final class VerifiedCredential
+    {
+        /**
+         * The user.
+         */
+        private final String user;
+
+        /**
+         * The session obtained for the user.
+         */
+        private final String session;
+
+        /**
+         * The timestamp after which the entry is no longer used.
+         */
+        private final long expires;
+
+        // ===========================================================================
+        /**
+         * Creates an instance.
+         *
+         * @param user The user.
+         * @param session The session obtained for the user.
+         * @param expires The timestamp after which the entry is no longer used.
+         */
+        VerifiedCredential(String user, String session, long expires)
+        {
+            this.user = user;
+            this.session = session;
+            this.expires = expires;
+        }
+    }
+
     /**
      * The actual authenticator.
      */
@@ -65,12 +116,41 @@ public class RESTDBAuthenticator implements RESTAuthenticator
     /**
      * Map of GluewineSession bound with HTTP Sessions.
      */
-    private Map<String, String> sessions = new HashMap<String, String>();
+    private ConcurrentMap<String, String> sessions = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The HTTP Sessions indexed on the GluewineSession they are bound with. Used to
+     * remove the bindings when the GluewineSession is closed or expires.
+     */
+    private ConcurrentMap<String, Set<String>> httpSessions = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * The property file to use.
+     */
+    @Glue(properties = "restdbauth.properties", optional = true)
+    private Properties properties;
 
     /**
-     * The checker that checks session validity.
+     * The cache of verified credentials, indexed on the user and the salted hash of
+     * the password.
      */
-    private Timer sessionChecker = null;
+    private Map<String, VerifiedCredential> credentials = null;
+
+    /**
+     * The time to live of a cached credential, in milliseconds.
+     */
+    private long credentialTtl = 300000;
+
+    /**
+     * Incremented every time a credential changes. A credential verified while a change
+     * occurred is not cached.
+     */
+    private long generation = 0;
+
+    /**
+     * The salt used to hash the passwords.
+     */
+    private final byte[] salt = new byte[16];
 
     /**
      * The logger to use.
@@ -84,43 +164,21 @@ public class RESTDBAuthenticator implements RESTAuthenticator
     @RunOnActivate
     public void initialize()
     {
-        sessionChecker = new Timer();
-        sessionChecker.schedule(new TimerTask()
+        new SecureRandom().nextBytes(salt);
+        final int size = Integer.parseInt(properties.getProperty("credentialcache.size", "1000"));
+        credentialTtl = Long.parseLong(properties.getProperty("credentialcache.ttl", "300")) * 1000;
+        if (size > 0)
         {
-            @Override
-            public void run()
+            credentials = new LinkedHashMap<String, VerifiedCredential>(16, 0.75f, true)
             {
-                synchronized (sessions)
+                private static final long serialVersionUID = 6042287932211546178L;
+
+                @Override
+                protected boolean removeEldestEntry(Entry<String, VerifiedCredential> eldest)
                 {
-                    Iterator<Entry<String, String>> iter = sessions.entrySet().iterator();
-                    while (iter.hasNext())
-                    {
-                        Entry<String, String> e = iter.next();
-                        try
-                        {
-                            sessionManager.checkSession(e.getValue());
-                        }
-                        catch (SessionExpiredException t)
-                        {
-                            iter.remove();
-                        }
-                    }
+                    return size() > size;
                 }
-            }
-        }, 60000, 60000);
-    }
-
-    // ===========================================================================
-    /**
-     * Stops the timer.
-     */
-    @RunOnDeactivate
-    public void stopChecker()
-    {
-        if (sessionChecker != null)
-        {
-            sessionChecker.cancel();
-            sessionChecker = null;
+            };
         }
     }
 
@@ -130,12 +188,8 @@ public class RESTDBAuthenticator implements RESTAuthenticator
     {
         // First we'll check if there's a valid session id.
         String httpSession = req.getSession(true).getId();
-        String session = null;
-        synchronized (sessions)
-        {
-            session = sessions.get(httpSession);
-            if (logger.isTraceEnabled()) logger.trace("Fetched Session from HTTPSessionCache: " + session);
-        }
+        String session = sessions.get(httpSession);
+        if (logger.isTraceEnabled()) logger.trace("Fetched Session from HTTPSessionCache: " + session);
 
         if (session == null)
         {
@@ -153,11 +207,8 @@ public class RESTDBAuthenticator implements RESTAuthenticator
             {
                 if (logger.isTraceEnabled()) logger.trace("Session " + session + " has expired!");
                 // Session has expired.
-                synchronized (sessions)
-                {
-                    sessions.remove(session);
-                    session = null;
-                }
+                unbind(httpSession, session);
+                session = null;
             }
         }
 
@@ -169,14 +220,8 @@ public class RESTDBAuthenticator implements RESTAuthenticator
                 String[] up = parseBasic(authHeader.substring(authHeader.indexOf(" ") + 1));
                 String username = up[0];
                 String password = up[1];
-                session = authenticator.authenticate(username, password);
-                if (session != null)
-                {
-                    synchronized (sessions)
-                    {
-                        sessions.put(httpSession, session);
-                    }
-                }
+                session = authenticateBasic(username, password);
+                if (session != null) bind(httpSession, session);
                 else throw new AuthenticationException("Could not obtain a valid session id!");
             }
         }
@@ -186,6 +231,178 @@ public class RESTDBAuthenticator implements RESTAuthenticator
         return session;
     }
 
+    // ===========================================================================
+    /**
+     * Binds the given HTTP Session with the GluewineSession.
+     *
+     * @param httpSession The HTTP Session.
+     * @param session The GluewineSession.
+     */
+    private void bind(String httpSession, String session)
+    {
+        Set<String> bound = httpSessions.get(session);
+        if (bound == null)
+        {
+            bound = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            Set<String> previous = httpSessions.putIfAbsent(session, bound);
+            if (previous != null) bound = previous;
+        }
+        bound.add(httpSession);
+
+        String previous = sessions.put(httpSession, session);
+        if (previous != null && !previous.equals(session))
+        {
+            bound = httpSessions.get(previous);
+            if (bound != null) bound.remove(httpSession);
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Removes the binding of the given HTTP Session with the GluewineSession.
+     *
+     * @param httpSession The HTTP Session.
+     * @param session The GluewineSession.
+     */
+    private void unbind(String httpSession, String session)
+    {
+        sessions.remove(httpSession, session);
+        Set<String> bound = httpSessions.get(session);
+        if (bound != null)
+        {
+            bound.remove(httpSession);
+            if (bound.isEmpty()) httpSessions.remove(session, bound);
+        }
+    }
+
+    // ===========================================================================
+    @Override
+    public void sessionClosed(String session)
+    {
+        Set<String> bound = httpSessions.remove(session);
+        if (bound != null)
+        {
+            for (String httpSession : bound)
+                sessions.remove(httpSession, session);
+        }
+    }
+
+    // ===========================================================================
+    @Override
+    public void sessionExpired(String session)
+    {
+        sessionClosed(session);
+    }
+
+    // ===========================================================================
+    /**
+     * Returns a session for the given user and password. If the credential has been
+     * verified before and the session it obtained is still valid, that session is
+     * returned. Otherwise the credential is verified by the DBAuthenticator.
+     *
+     * @param username The user.
+     * @param password The password.
+     * @return The (possibly null) session.
+     * @throws AuthenticationException If the credential is invalid.
+     */
+    private String authenticateBasic(String username, String password) throws AuthenticationException
+    {
+        if (credentials == null || username == null) return authenticator.authenticate(username, password);
+
+        String key = getCacheKey(username, password);
+        VerifiedCredential cached = null;
+        long gen = 0;
+        synchronized (credentials)
+        {
+            cached = credentials.get(key);
+            if (cached != null && cached.expires < System.currentTimeMillis())
+            {
+                credentials.remove(key);
+                cached = null;
+            }
+            gen = generation;
+        }
+
+        if (cached != null)
+        {
+            try
+            {
+                sessionManager.checkAndTickSession(cached.session);
+                if (logger.isTraceEnabled()) logger.trace("Reusing session " + cached.session + " for user " + username);
+                return cached.session;
+            }
+            catch (SessionExpiredException e)
+            {
+                synchronized (credentials)
+                {
+                    credentials.remove(key);
+                }
+            }
+        }
+
+        String session = authenticator.authenticate(username, password);
+        if (session != null)
+        {
+            synchronized (credentials)
+            {
+                if (gen == generation)
+                    credentials.put(key, new VerifiedCredential(username, session, System.currentTimeMillis() + credentialTtl));
+            }
+        }
+        return session;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the key used to cache the given credential. The password is hashed
+     * using a salt that is generated when the service is activated.
+     *
+     * @param username The user.
+     * @param password The (possibly null) password.
+     * @return The key.
+     * @throws AuthenticationException If the password could not be hashed.
+     */
+    private String getCacheKey(String username, String password) throws AuthenticationException
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(salt);
+            if (password != null) md.update(password.getBytes("utf8"));
+
+            StringBuilder b = new StringBuilder(username.length() + 65);
+            b.append(username).append(':');
+            for (byte d : md.digest())
+                b.append(Character.forDigit((d >> 4) & 0xF, 16)).append(Character.forDigit(d & 0xF, 16));
+            return b.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new AuthenticationException(e.getMessage());
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new AuthenticationException(e.getMessage());
+        }
+    }
+
+    // ===========================================================================
+    @Override
+    public void credentialChanged(String user)
+    {
+        if (credentials == null) return;
+
+        synchronized (credentials)
+        {
+            generation++;
+            Iterator<VerifiedCredential> iter = credentials.values().iterator();
+            while (iter.hasNext())
+            {
+                if (iter.next().user.equals(user)) iter.remove();
+            }
+        }
+    }
+
     // ===========================================================================
     /**
      * Parses the userid and password from the string specified.
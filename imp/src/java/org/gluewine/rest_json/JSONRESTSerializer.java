@@ -19,9 +19,11 @@
 package org.gluewine.rest_json;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 import org.gluewine.rest.AbstractRESTSerializer;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -46,6 +48,7 @@ public class JSONRESTSerializer extends AbstractRESTSerializer
     public JSONRESTSerializer()
     {
         mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        mapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
     }
 
     // ===========================================================================
@@ -69,6 +72,15 @@ public class JSONRESTSerializer extends AbstractRESTSerializer
         return mapper.writeValueAsString(o);
     }
 
+    // ===========================================================================
+    @Override
+    public void serialize(Object o, OutputStream out) throws IOException
+    {
+        // Jackson uses its own buffered UTF-8 generator when writing to a stream.
+        mapper.writeValue(out, o);
+        out.flush();
+    }
+
     // ===========================================================================
     @Override
     protected Object deserializeObject(Class<?> cl, String str) throws IOException
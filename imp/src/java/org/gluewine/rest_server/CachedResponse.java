@@ -0,0 +1,170 @@
+/**************************************************************************
+ *
+ * Gluewine REST Server Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.rest_server;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A cached response.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+final class CachedResponse
+{
+    // ===========================================================================
+    /**
+     * The path of the method.
+     */
+    private final String path;
+
+    /**
+     * The serialized response.
+     */
+    private final byte[] content;
+
+    /**
+     * The MIME type of the response.
+     */
+    private final String mime;
+
+    /**
+     * The entity tag.
+     */
+    private final String etag;
+
+    /**
+     * The time the response was created.
+     */
+    private final long lastModified;
+
+    /**
+     * The time the entry expires.
+     */
+    private final long expires;
+
+    // ===========================================================================
+    /**
+     * Creates an instance.
+     *
+     * @param path The path of the method.
+     * @param content The serialized response.
+     * @param mime The MIME type.
+     * @param ttl The time to live in milliseconds.
+     */
+    CachedResponse(String path, byte[] content, String mime, long ttl)
+    {
+        this.path = path;
+        this.content = content;
+        this.mime = mime;
+        this.etag = computeETag(content);
+        this.lastModified = System.currentTimeMillis();
+        this.expires = lastModified + ttl;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the serialized response.
+     *
+     * @return The content.
+     */
+    @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "EI_EXPOSE_REP")
+    byte[] getContent()
+    {
+        return content;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the MIME type of the response.
+     *
+     * @return The MIME type.
+     */
+    String getMime()
+    {
+        return mime;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the entity tag, including the quotes.
+     *
+     * @return The entity tag.
+     */
+    String getETag()
+    {
+        return etag;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the time the response was created.
+     *
+     * @return The time.
+     */
+    long getLastModified()
+    {
+        return lastModified;
+    }
+
+    // ===========================================================================
+    /**
+     * Computes the entity tag of the given content.
+     *
+     * @param content The content to process.
+     * @return The entity tag.
+     */
+    private static String computeETag(byte[] content)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+            return "\"" + new BigInteger(1, digest).toString(16) + "\"";
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            return "\"" + Integer.toHexString(Arrays.hashCode(content)) + "-" + content.length + "\"";
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the path of the method.
+     *
+     * @return The path.
+     */
+    String getPath()
+    {
+        return path;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the time the entry expires.
+     *
+     * @return The time.
+     */
+    long getExpires()
+    {
+        return expires;
+    }
+}
@@ -0,0 +1,235 @@
+/**************************************************************************
+ *
+ * Gluewine REST Server Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.rest_server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gluewine.console.CLICommand;
+import org.gluewine.console.CommandContext;
+import org.gluewine.console.CommandProvider;
+import org.gluewine.core.Glue;
+
+/**
+ * Default implementation of RESTCache. The responses are kept in memory, in an LRU
+ * map whose size is bounded by the cache.maxentries property (default 1000) of
+ * rest.properties.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public class RESTCacheImpl implements ResponseCache, CommandProvider
+{
+    /**
+     * The properties to use.
+     */
+    @Glue(properties = "rest.properties", optional = true)
+    private Properties properties;
+
+    /**
+     * The cached responses, in access order.
+     */
+    private final Map<String, CachedResponse> entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = -4313003478591432405L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest)
+        {
+            if (size() > getMaxEntries())
+            {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * The number of responses served from the cache.
+     */
+    private final AtomicLong hits = new AtomicLong(0);
+
+    /**
+     * The number of responses that had to be created.
+     */
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * The number of 304 responses.
+     */
+    private final AtomicLong notModified = new AtomicLong(0);
+
+    /**
+     * The number of entries removed because the cache was full.
+     */
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * The number of entries removed because they expired.
+     */
+    private final AtomicLong expirations = new AtomicLong(0);
+
+    /**
+     * The number of entries removed by an invalidation.
+     */
+    private final AtomicLong invalidations = new AtomicLong(0);
+
+    // ===========================================================================
+    /**
+     * Returns the maximum number of entries.
+     *
+     * @return The maximum.
+     */
+    private int getMaxEntries()
+    {
+        return Integer.parseInt(properties.getProperty("cache.maxentries", "1000"));
+    }
+
+    // ===========================================================================
+    @Override
+    public CachedResponse get(String key)
+    {
+        synchronized (entries)
+        {
+            CachedResponse e = entries.get(key);
+            if (e != null && e.getExpires() <= System.currentTimeMillis())
+            {
+                entries.remove(key);
+                expirations.incrementAndGet();
+                e = null;
+            }
+
+            if (e != null) hits.incrementAndGet();
+            else misses.incrementAndGet();
+            return e;
+        }
+    }
+
+    // ===========================================================================
+    @Override
+    public CachedResponse put(String key, String path, byte[] content, String mime, long ttl)
+    {
+        CachedResponse e = new CachedResponse(path, content, mime, ttl);
+        synchronized (entries)
+        {
+            entries.put(key, e);
+        }
+        return e;
+    }
+
+    // ===========================================================================
+    @Override
+    public void notModified()
+    {
+        notModified.incrementAndGet();
+    }
+
+    // ===========================================================================
+    @Override
+    public void invalidate(String path)
+    {
+        if (path.startsWith("/")) path = path.substring(1);
+        if (path.endsWith("/")) path = path.substring(0, path.length() - 1);
+
+        synchronized (entries)
+        {
+            Iterator<CachedResponse> iter = entries.values().iterator();
+            while (iter.hasNext())
+            {
+                if (iter.next().getPath().equals(path))
+                {
+                    iter.remove();
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    // ===========================================================================
+    @Override
+    public void invalidateAll()
+    {
+        synchronized (entries)
+        {
+            invalidations.addAndGet(entries.size());
+            entries.clear();
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Executes the rest_cache command.
+     *
+     * @param cc The current context.
+     */
+    public void _rest_cache(CommandContext cc)
+    {
+        int size = 0;
+        long bytes = 0;
+        synchronized (entries)
+        {
+            size = entries.size();
+            for (CachedResponse e : entries.values())
+                bytes += e.getContent().length;
+        }
+
+        long h = hits.get();
+        long total = h + misses.get();
+
+        cc.tableHeader("Metric", "Value");
+        cc.tableRow("Entries", size + " / " + getMaxEntries());
+        cc.tableRow("Size (bytes)", Long.toString(bytes));
+        cc.tableRow("Hits", Long.toString(h));
+        cc.tableRow("Misses", Long.toString(misses.get()));
+        cc.tableRow("Hit rate", total > 0 ? (h * 100 / total) + "%" : "-");
+        cc.tableRow("Not modified (304)", Long.toString(notModified.get()));
+        cc.tableRow("Evictions", Long.toString(evictions.get()));
+        cc.tableRow("Expirations", Long.toString(expirations.get()));
+        cc.tableRow("Invalidations", Long.toString(invalidations.get()));
+        cc.printTable();
+    }
+
+    // ===========================================================================
+    /**
+     * Executes the rest_cache_clear command.
+     *
+     * @param cc The current context.
+     */
+    public void _rest_cache_clear(CommandContext cc)
+    {
+        invalidateAll();
+        cc.println("REST cache cleared.");
+    }
+
+    // ===========================================================================
+    @Override
+    public List<CLICommand> getCommands()
+    {
+        List<CLICommand> l = new ArrayList<CLICommand>();
+        l.add(new CLICommand("rest_cache", "Shows the REST response cache statistics."));
+        l.add(new CLICommand("rest_cache_clear", "Clears the REST response cache."));
+        return l;
+    }
+}
@@ -0,0 +1,359 @@
+/**************************************************************************
+ *
+ * Gluewine REST Server Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.rest_server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
+import org.gluewine.rest.RESTMethod;
+import org.gluewine.rest.RESTParameter;
+
+/**
+ * A multipart form, parsed with the streaming API of commons-fileupload.
+ *
+ * Only the parts that are bound to a parameter of the method are read. Uploads for
+ * File (and String) parameters are written directly to a temporary file. An upload for
+ * an InputStream parameter is handed through to the method without being stored, if
+ * all other parameters have been read by then; so it should be the last part of the
+ * form. Otherwise it is kept in memory up to upload.threshold bytes, and stored in a
+ * temporary file beyond that.
+ *
+ * The following properties of rest.properties are used:
+ * <ul>
+ * <li>upload.threshold: the number of bytes kept in memory (default 10240).</li>
+ * <li>upload.repository: the directory for temporary files (default java.io.tmpdir).</li>
+ * <li>upload.maxsize: the maximum size of a request (default -1, unlimited).</li>
+ * <li>upload.maxfilesize: the maximum size of a file (default -1, unlimited).</li>
+ * </ul>
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+final class RESTForm
+{
+    // ===========================================================================
+    /**
+     * An uploaded file.
+     */
+    static final class Upload
+    {
+        /**
+         * The name of the file, as provided by the client.
+         */
+        private final String name;
+
+        /**
+         * The content type, as provided by the client.
+         */
+        private final String contentType;
+
+        /**
+         * The content if kept in memory.
+         */
+        private byte[] content = null;
+
+        /**
+         * The file the content was stored in.
+         */
+        private File file = null;
+
+        /**
+         * The stream if handed through.
+         */
+        private InputStream stream = null;
+
+        /**
+         * Flag indicating that the file is to be deleted when the stream on it is closed.
+         */
+        private boolean temporary = false;
+
+        // ===========================================================================
+        /**
+         * Creates an instance.
+         *
+         * @param name The name of the file.
+         * @param contentType The content type.
+         */
+        Upload(String name, String contentType)
+        {
+            this.name = name;
+            this.contentType = contentType;
+        }
+
+        // ===========================================================================
+        /**
+         * Returns the name of the file, as provided by the client.
+         *
+         * @return The name.
+         */
+        String getName()
+        {
+            return name;
+        }
+
+        // ===========================================================================
+        /**
+         * Returns the content type, as provided by the client.
+         *
+         * @return The content type.
+         */
+        String getContentType()
+        {
+            return contentType;
+        }
+
+        // ===========================================================================
+        /**
+         * Returns the file the upload was stored in, or null if it wasn't.
+         *
+         * @return The file.
+         */
+        File getFile()
+        {
+            return file;
+        }
+
+        // ===========================================================================
+        /**
+         * Returns a stream on the content of the upload.
+         *
+         * @return The stream.
+         * @throws IOException If the stream could not be opened.
+         */
+        InputStream getInputStream() throws IOException
+        {
+            if (stream != null) return stream;
+            if (content != null) return new ByteArrayInputStream(content);
+            if (!temporary) return new FileInputStream(file);
+
+            final File f = file;
+            return new FileInputStream(f)
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    super.close();
+                    if (!f.delete()) f.deleteOnExit();
+                }
+            };
+        }
+    }
+
+    /**
+     * The form fields indexed on their name.
+     */
+    private final Map<String, String> fields = new HashMap<String, String>();
+
+    /**
+     * The uploads indexed on their field name.
+     */
+    private final Map<String, Upload> uploads = new HashMap<String, Upload>();
+
+    /**
+     * The directory for temporary files.
+     */
+    private final File repository;
+
+    /**
+     * The number of bytes of a spooled stream kept in memory.
+     */
+    private final int threshold;
+
+    // ===========================================================================
+    /**
+     * Creates an instance.
+     *
+     * @param properties The properties to use.
+     */
+    private RESTForm(Properties properties)
+    {
+        repository = new File(properties.getProperty("upload.repository", System.getProperty("java.io.tmpdir")));
+        threshold = Integer.parseInt(properties.getProperty("upload.threshold", "10240"));
+    }
+
+    // ===========================================================================
+    /**
+     * Parses the form stored in the given request.
+     *
+     * @param req The request to parse.
+     * @param rm The method the form is for.
+     * @param variables The path variables.
+     * @param properties The properties to use.
+     * @return The form.
+     * @throws IOException If an error occurs.
+     */
+    static RESTForm parse(HttpServletRequest req, RESTMethod rm, Map<String, String> variables, Properties properties) throws IOException
+    {
+        RESTForm form = new RESTForm(properties);
+
+        Set<String> pending = new HashSet<String>();
+        Set<String> files = new HashSet<String>();
+        Set<String> streams = new HashSet<String>();
+        for (RESTParameter p : rm.getParameters())
+        {
+            String id = p.getId();
+            if (id == null || variables.containsKey(id)) continue;
+
+            if (p.getSource() == RESTParameter.Source.PARAM || p.getSource() == RESTParameter.Source.BODY) pending.add(id);
+            if (p.isStream()) streams.add(id);
+            else if (!p.isMimeType() && !p.isFileName()) files.add(id);
+        }
+        pending.add("format");
+
+        try
+        {
+            ServletFileUpload upload = new ServletFileUpload();
+            upload.setSizeMax(Long.parseLong(properties.getProperty("upload.maxsize", "-1")));
+            upload.setFileSizeMax(Long.parseLong(properties.getProperty("upload.maxfilesize", "-1")));
+
+            FileItemIterator iter = upload.getItemIterator(req);
+            while (iter.hasNext())
+            {
+                FileItemStream item = iter.next();
+                String id = item.getFieldName();
+                if (!pending.remove(id)) continue;
+
+                if (item.isFormField())
+                    form.fields.put(id, Streams.asString(item.openStream(), "UTF-8"));
+
+                else
+                {
+                    Upload u = new Upload(item.getName(), item.getContentType());
+                    form.uploads.put(id, u);
+                    if (streams.contains(id))
+                    {
+                        pending.remove("format");
+                        if (pending.isEmpty())
+                        {
+                            // Nothing else to read: the method can consume the part itself.
+                            u.stream = item.openStream();
+                            break;
+                        }
+                        form.spool(item.openStream(), u, form.threshold);
+                        u.temporary = true;
+                    }
+                    else if (files.contains(id)) form.spool(item.openStream(), u, -1);
+                }
+            }
+        }
+        catch (FileUploadException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+
+        return form;
+    }
+
+    // ===========================================================================
+    /**
+     * Reads the given stream, keeping up to limit bytes in memory and writing the
+     * content to a temporary file beyond that.
+     *
+     * @param in The stream to read.
+     * @param u The upload to store the content in.
+     * @param limit The maximum number of bytes kept in memory. (-1 to always use a file)
+     * @throws IOException If an error occurs.
+     */
+    private void spool(InputStream in, Upload u, int limit) throws IOException
+    {
+        ByteArrayOutputStream mem = new ByteArrayOutputStream();
+        OutputStream out = mem;
+        if (limit < 0) out = createFile(u);
+
+        try
+        {
+            byte[] buf = new byte[8192];
+            int n = in.read(buf);
+            while (n >= 0)
+            {
+                if (u.file == null && mem.size() + n > limit)
+                {
+                    out = createFile(u);
+                    mem.writeTo(out);
+                }
+                out.write(buf, 0, n);
+                n = in.read(buf);
+            }
+        }
+        finally
+        {
+            out.close();
+            in.close();
+        }
+
+        if (u.file == null) u.content = mem.toByteArray();
+    }
+
+    // ===========================================================================
+    /**
+     * Creates the temporary file for the given upload and returns a stream on it.
+     *
+     * @param u The upload to process.
+     * @return The stream.
+     * @throws IOException If the file could not be created.
+     */
+    private OutputStream createFile(Upload u) throws IOException
+    {
+        String name = u.name != null ? new File(u.name).getName() : "";
+        u.file = File.createTempFile("___", "___" + name, repository);
+        return new FileOutputStream(u.file);
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the value of the given field, or null if not present.
+     *
+     * @param name The name of the field.
+     * @return The (possibly null) value.
+     */
+    String getField(String name)
+    {
+        return fields.get(name);
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the upload with the given field name, or null if not present.
+     *
+     * @param name The name of the field.
+     * @return The (possibly null) upload.
+     */
+    Upload getUpload(String name)
+    {
+        return uploads.get(name);
+    }
+}
@@ -0,0 +1,454 @@
+/**************************************************************************
+ *
+ * Gluewine REST Server Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.rest_server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.gluewine.rest.RESTMethod;
+
+/**
+ * Immutable routing trie mapping request paths to REST methods.
+ *
+ * Paths are split on '/' and every segment is a node in the trie. A segment of the
+ * form {name} is a template segment that matches any value; the value is returned as
+ * a path variable with the given name. Literal segments take precedence over template
+ * segments. A route can be restricted to a set of HTTP methods.
+ *
+ * A router is never modified: adding or removing routes returns a new instance, so
+ * that it can be swapped atomically while requests are being served.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+final class RESTRouter
+{
+    // ===========================================================================
+    /**
+     * A route that has been added to the router.
+     */
+    static final class Route
+    {
+        /**
+         * The path template, without leading or trailing slash.
+         */
+        private final String path;
+
+        /**
+         * The HTTP methods accepted. An empty array accepts all methods.
+         */
+        private final String[] httpMethods;
+
+        /**
+         * The method to invoke.
+         */
+        private final RESTMethod method;
+
+        // ===========================================================================
+        /**
+         * Creates an instance.
+         *
+         * @param path The path template.
+         * @param httpMethods The accepted HTTP methods.
+         * @param method The method to invoke.
+         */
+        Route(String path, String[] httpMethods, RESTMethod method)
+        {
+            this.path = path;
+            this.httpMethods = httpMethods.clone();
+            this.method = method;
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * The result of a lookup whose path matched. If no route accepts the HTTP method
+     * of the request, the match has no method but lists the methods that are allowed.
+     */
+    static final class Match
+    {
+        /**
+         * The (possibly null) method to invoke.
+         */
+        private final RESTMethod method;
+
+        /**
+         * The path variables, indexed on their name.
+         */
+        private final Map<String, String> variables;
+
+        /**
+         * The HTTP methods allowed for the path, if the method is null.
+         */
+        private final Set<String> allowed;
+
+        // ===========================================================================
+        /**
+         * Creates an instance.
+         *
+         * @param method The method to invoke.
+         * @param variables The path variables.
+         */
+        Match(RESTMethod method, Map<String, String> variables)
+        {
+            this.method = method;
+            this.variables = variables;
+            this.allowed = Collections.emptySet();
+        }
+
+        // ===========================================================================
+        /**
+         * Creates an instance for a path that matched, while its HTTP method did not.
+         *
+         * @param allowed The HTTP methods allowed for the path.
+         */
+        Match(Set<String> allowed)
+        {
+            this.method = null;
+            this.variables = Collections.emptyMap();
+            this.allowed = allowed;
+        }
+
+        // ===========================================================================
+        /**
+         * Returns the method to invoke, or null if the HTTP method is not allowed.
+         *
+         * @return The (possibly null) method.
+         */
+        RESTMethod getMethod()
+        {
+            return method;
+        }
+
+        // ===========================================================================
+        /**
+         * Returns the path variables, indexed on their name.
+         *
+         * @return The variables.
+         */
+        Map<String, String> getVariables()
+        {
+            return variables;
+        }
+
+        // ===========================================================================
+        /**
+         * Returns the HTTP methods allowed for the path, as the value of an Allow
+         * header. Only relevant if there is no method to invoke.
+         *
+         * @return The allowed methods.
+         */
+        String getAllowHeader()
+        {
+            StringBuilder b = new StringBuilder();
+            for (String m : allowed)
+            {
+                if (b.length() > 0) b.append(", ");
+                b.append(m);
+            }
+            return b.toString();
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * A method reachable through a node, with the names of the path variables
+     * of its template.
+     */
+    private static final class Endpoint
+    {
+        /**
+         * The method to invoke.
+         */
+        private final RESTMethod method;
+
+        /**
+         * The names of the template segments, in order.
+         */
+        private final String[] names;
+
+        // ===========================================================================
+        /**
+         * Creates an instance.
+         *
+         * @param method The method to invoke.
+         * @param names The names of the template segments.
+         */
+        Endpoint(RESTMethod method, String[] names)
+        {
+            this.method = method;
+            this.names = names;
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * A node of the trie.
+     */
+    private static final class Node
+    {
+        /**
+         * The children for literal segments.
+         */
+        private final Map<String, Node> literals = new HashMap<String, Node>();
+
+        /**
+         * The child for template segments.
+         */
+        private Node template = null;
+
+        /**
+         * The endpoints ending in this node, indexed on HTTP method. The key ""
+         * is used for endpoints that accept all methods.
+         */
+        private final Map<String, Endpoint> endpoints = new HashMap<String, Endpoint>();
+    }
+
+    /**
+     * Key used for endpoints accepting all HTTP methods.
+     */
+    private static final String ANY = "";
+
+    /**
+     * The root of the trie.
+     */
+    private final Node root = new Node();
+
+    /**
+     * All the routes of this router, in the order they were added.
+     */
+    private final List<Route> routes;
+
+    // ===========================================================================
+    /**
+     * Creates an empty router.
+     */
+    RESTRouter()
+    {
+        this(new ArrayList<Route>(0));
+    }
+
+    // ===========================================================================
+    /**
+     * Creates a router containing the given routes.
+     *
+     * @param routes The routes.
+     */
+    private RESTRouter(List<Route> routes)
+    {
+        this.routes = routes;
+        for (Route r : routes)
+            insert(r);
+    }
+
+    // ===========================================================================
+    /**
+     * Splits the given path in segments.
+     *
+     * @param path The path to split.
+     * @return The segments.
+     */
+    private static List<String> split(String path)
+    {
+        List<String> segments = new ArrayList<String>();
+        int start = 0;
+        while (start <= path.length())
+        {
+            int end = path.indexOf('/', start);
+            if (end < 0) end = path.length();
+            segments.add(path.substring(start, end));
+            start = end + 1;
+        }
+        return segments;
+    }
+
+    // ===========================================================================
+    /**
+     * Inserts the given route in the trie. A route replaces a previous route with the
+     * same template and HTTP method.
+     *
+     * @param route The route to insert.
+     */
+    private void insert(Route route)
+    {
+        Node node = root;
+        List<String> names = new ArrayList<String>();
+        for (String segment : split(route.path))
+        {
+            if (segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}"))
+            {
+                names.add(segment.substring(1, segment.length() - 1));
+                if (node.template == null) node.template = new Node();
+                node = node.template;
+            }
+            else
+            {
+                Node child = node.literals.get(segment);
+                if (child == null)
+                {
+                    child = new Node();
+                    node.literals.put(segment, child);
+                }
+                node = child;
+            }
+        }
+
+        Endpoint ep = new Endpoint(route.method, names.toArray(new String[names.size()]));
+        if (route.httpMethods.length == 0) node.endpoints.put(ANY, ep);
+        else
+        {
+            for (String m : route.httpMethods)
+                node.endpoints.put(m.toUpperCase(), ep);
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Returns a new router containing the routes of this router and the given routes.
+     *
+     * @param added The routes to add.
+     * @return The new router.
+     */
+    RESTRouter add(List<Route> added)
+    {
+        List<Route> l = new ArrayList<Route>(routes.size() + added.size());
+        l.addAll(routes);
+        l.addAll(added);
+        return new RESTRouter(l);
+    }
+
+    // ===========================================================================
+    /**
+     * Returns a new router containing the routes of this router, except those
+     * whose method belongs to the given object.
+     *
+     * @param owner The object whose routes are to be removed.
+     * @return The new router.
+     */
+    RESTRouter remove(Object owner)
+    {
+        List<Route> l = new ArrayList<Route>(routes.size());
+        for (Route r : routes)
+            if (r.method.getObject() != owner) l.add(r);
+        return new RESTRouter(l);
+    }
+
+    // ===========================================================================
+    /**
+     * Looks up the method for the given path and HTTP method.
+     *
+     * @param path The path of the request, without leading or trailing slash.
+     * @param httpMethod The HTTP method of the request.
+     * @return The match, or null if no route matches the path.
+     */
+    Match find(String path, String httpMethod)
+    {
+        List<String> segments = split(path);
+        String[] values = new String[segments.size()];
+        Endpoint ep = find(root, segments, 0, values, 0, httpMethod);
+        if (ep == null)
+        {
+            Set<String> allowed = new TreeSet<String>();
+            collectMethods(root, segments, 0, allowed);
+            if (allowed.isEmpty()) return null;
+            return new Match(allowed);
+        }
+
+        Map<String, String> variables = null;
+        if (ep.names.length == 0) variables = Collections.emptyMap();
+        else
+        {
+            variables = new HashMap<String, String>(ep.names.length * 2);
+            for (int i = 0; i < ep.names.length; i++)
+                variables.put(ep.names[i], values[i]);
+        }
+        return new Match(ep.method, variables);
+    }
+
+    // ===========================================================================
+    /**
+     * Recursively looks up the endpoint for the given segments. Literal segments are
+     * tried first; the template segment is only tried if the literal branch doesn't
+     * lead to an endpoint.
+     *
+     * @param node The current node.
+     * @param segments The segments of the path.
+     * @param index The index of the segment to process.
+     * @param values The values of the template segments matched so far.
+     * @param count The number of template values matched so far.
+     * @param httpMethod The HTTP method of the request.
+     * @return The (possibly null) endpoint.
+     */
+    private Endpoint find(Node node, List<String> segments, int index, String[] values, int count, String httpMethod)
+    {
+        if (index == segments.size())
+        {
+            Endpoint ep = node.endpoints.get(httpMethod);
+            if (ep == null) ep = node.endpoints.get(ANY);
+            return ep;
+        }
+
+        String segment = segments.get(index);
+        Node child = node.literals.get(segment);
+        if (child != null)
+        {
+            Endpoint ep = find(child, segments, index + 1, values, count, httpMethod);
+            if (ep != null) return ep;
+        }
+
+        if (node.template != null && segment.length() > 0)
+        {
+            values[count] = segment;
+            return find(node.template, segments, index + 1, values, count + 1, httpMethod);
+        }
+
+        return null;
+    }
+
+    // ===========================================================================
+    /**
+     * Recursively collects the HTTP methods of all endpoints matching the given
+     * segments.
+     *
+     * @param node The current node.
+     * @param segments The segments of the path.
+     * @param index The index of the segment to process.
+     * @param methods The set to update.
+     */
+    private void collectMethods(Node node, List<String> segments, int index, Set<String> methods)
+    {
+        if (index == segments.size())
+        {
+            methods.addAll(node.endpoints.keySet());
+            return;
+        }
+
+        String segment = segments.get(index);
+        Node child = node.literals.get(segment);
+        if (child != null) collectMethods(child, segments, index + 1, methods);
+
+        if (node.template != null && segment.length() > 0)
+            collectMethods(node.template, segments, index + 1, methods);
+    }
+}
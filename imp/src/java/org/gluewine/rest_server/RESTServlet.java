@@ -18,36 +18,48 @@
  ***************************************************************************/
 package org.gluewine.rest_server;
 
-import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.FileItemFactory;
-import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
-import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.gluewine.authentication.AuthenticationException;
 import org.gluewine.core.RepositoryListener;
 import org.gluewine.core.ContextInitializer;
+import org.gluewine.core.Glue;
 import org.gluewine.jetty.GluewineServlet;
+import org.gluewine.persistence.Transactional;
 import org.gluewine.rest.REST;
-import org.gluewine.rest.RESTID;
+import org.gluewine.rest.RESTBatchResult;
+import org.gluewine.rest.RESTFuture;
 import org.gluewine.rest.RESTMethod;
+import org.gluewine.rest.RESTParameter;
 import org.gluewine.rest.RESTSerializer;
+import org.gluewine.rest.StreamingRESTSerializer;
+import org.gluewine.sessions.SessionExpiredException;
 import org.gluewine.sessions.SessionManager;
+import org.gluewine.sessions.SessionManagerDataStore;
 import org.gluewine.sessions.Unsecured;
 import org.gluewine.utils.AnnotationUtility;
 import org.gluewine.utils.ErrorLogger;
@@ -66,31 +78,54 @@ public class RESTServlet extends GluewineServlet implements RepositoryListener<O
      */
     private static final long serialVersionUID = -5416068629723455281L;
 
+    /**
+     * The path of the batch endpoint.
+     */
+    private static final String BATCH_PATH = "_batch";
+
     /**
      * The map of all registered serializers.
      */
-    private Map<String, RESTSerializer> serializers = new HashMap<String, RESTSerializer>();
+    private Map<String, RESTSerializer> serializers = new ConcurrentHashMap<String, RESTSerializer>();
 
     /**
-     * Map of registerd, annotated, methods.
+     * The router containing the registered, annotated, methods. It is replaced
+     * whenever methods are registered or unregistered.
      */
-    private Map<String, RESTMethod> methods = new HashMap<String, RESTMethod>();
+    private volatile RESTRouter router = new RESTRouter();
 
     /**
      * The list of available authenticators.
      */
-    private List<RESTAuthenticator> authenticators = new ArrayList<RESTAuthenticator>();
+    private List<RESTAuthenticator> authenticators = new CopyOnWriteArrayList<RESTAuthenticator>();
 
     /**
      * The session manager to use.
      */
     private SessionManager sessionManager;
 
+    /**
+     * The store holding the data of the sessions, such as the user name.
+     */
+    private SessionManagerDataStore dataStore;
+
     /**
      * The logger instance to use.
      */
     private Logger logger = Logger.getLogger(getClass());
 
+    /**
+     * The properties to use.
+     */
+    @Glue(properties = "rest.properties", optional = true)
+    private Properties properties;
+
+    /**
+     * The cache of responses.
+     */
+    @Glue
+    private ResponseCache cache;
+
     /**
      * Bean holding the current request and response.
      */
@@ -99,17 +134,96 @@ public class RESTServlet extends GluewineServlet implements RepositoryListener<O
         /**
          * The current request.
          */
-        private HttpServletRequest request;
+        private final HttpServletRequest request;
         /**
          * The current response.
          */
-        private HttpServletResponse response;
+        private final HttpServletResponse response;
+
+        // ===========================================================================
+        /**
+         * Creates an instance.
+         *
+         * @param request The current request.
+         * @param response The current response.
+         */
+        RESTBean(HttpServletRequest request, HttpServletResponse response)
+        {
+            this.request = request;
+            this.response = response;
+        }
+    }
+
+    /**
+     * A call of a batch request, with its bound parameters.
+     */
+    static final class BatchCall
+    {
+        /**
+         * The path called.
+         */
+        private String path;
+
+        /**
+         * The method to execute.
+         */
+        private RESTMethod method;
+
+        /**
+         * The parameter values.
+         */
+        private Object[] params;
+
+        /**
+         * The error if the call could not be prepared.
+         */
+        private RESTBatchResult error;
     }
 
     /**
-     * The map of beans bound with the current thread.
+     * Request wrapper exposing the parameters of one call of a batch request.
+     * The parameters of call N are sent as N.name.
      */
-    private static Map<Thread, RESTBean> beans = new HashMap<Thread, RESTBean>();
+    private static class BatchRequest extends HttpServletRequestWrapper
+    {
+        /**
+         * The prefix of the parameters.
+         */
+        private final String prefix;
+
+        // ===========================================================================
+        /**
+         * Creates an instance.
+         *
+         * @param req The batch request.
+         * @param index The index of the call.
+         */
+        BatchRequest(HttpServletRequest req, int index)
+        {
+            super(req);
+            this.prefix = index + ".";
+        }
+
+        // ===========================================================================
+        @Override
+        public String getParameter(String name)
+        {
+            return super.getParameter(prefix + name);
+        }
+
+        // ===========================================================================
+        @Override
+        public String[] getParameterValues(String name)
+        {
+            return super.getParameterValues(prefix + name);
+        }
+    }
+
+    /**
+     * The bean bound with the current thread. It is bound by the thread serving the
+     * request, and again by the thread completing an asynchronous request.
+     */
+    private static final ThreadLocal<RESTBean> BEANS = new ThreadLocal<RESTBean>();
 
     // ===========================================================================
     @Override
@@ -118,6 +232,13 @@ public class RESTServlet extends GluewineServlet implements RepositoryListener<O
         return "REST";
     }
 
+    // ===========================================================================
+    @Override
+    public boolean isAsyncSupported()
+    {
+        return true;
+    }
+
     // ===========================================================================
     /**
      * Returns the JSon context parsed from the request uri.
@@ -174,35 +295,6 @@ public class RESTServlet extends GluewineServlet implements RepositoryListener<O
         if (authenticators.size() > 0) throw new AuthenticationException("Authentication Required");
     }
 
-    // ===========================================================================
-    /**
-     * Parses the form stored in the given request, and returns a map containing
-     * all FileItems indexed on their name.
-     *
-     * @param req The request to parse.
-     * @return The map of items.
-     * @throws IOException If an error occurs.
-     */
-    private Map<String, FileItem> parseForm(HttpServletRequest req) throws IOException
-    {
-        Map<String, FileItem> formFields = new HashMap<String, FileItem>();
-        try
-        {
-            FileItemFactory factory = new DiskFileItemFactory();
-            ServletFileUpload upload = new ServletFileUpload(factory);
-            @SuppressWarnings("unchecked")
-            List<FileItem> items = upload.parseRequest(req);
-            for (FileItem item : items)
-                formFields.put(item.getFieldName(), item);
-        }
-        catch (FileUploadException e)
-        {
-            throw new IOException(e.getMessage());
-        }
-
-        return formFields;
-    }
-
     // ===========================================================================
     /**
      * Initialises the parameter values for the given method parsed from the request.
@@ -211,151 +303,139 @@ public class RESTServlet extends GluewineServlet implements RepositoryListener<O
      * @param req The request containing the parameters.
      * @param resp The servlet response.
      * @param params the parameter value array to fill in.
-     * @param paramTypes the parameter types array.
-     * @throws IOException If an error occurs.
      */
-    private void initParamValues(RESTMethod rm, HttpServletRequest req, HttpServletResponse resp, Object[] params, Class<?>[] paramTypes) throws IOException
+    private void initParamValues(RESTMethod rm, HttpServletRequest req, HttpServletResponse resp, Object[] params)
     {
+        RESTParameter[] plan = rm.getParameters();
         for (int i = 0; i < params.length; i++)
         {
-            params[i] = null;
-            RESTID id = AnnotationUtility.getAnnotations(RESTID.class, rm.getObject(), rm.getMethod(), i);
-            if (id != null)
+            switch (plan[i].getSource())
             {
-                if (id.header())
-                {
-                    params[i] = req.getHeader(id.id());
-                }
-                else if (id.method())
-                {
+                case HEADER :
+                    params[i] = req.getHeader(plan[i].getId());
+                    break;
+
+                case METHOD :
                     params[i] = req.getMethod();
-                }
-            }
-            else if (HttpServletResponse.class.isAssignableFrom(paramTypes[i]))
-            {
-                params[i] = resp;
-            }
-            else if (HttpServletRequest.class.isAssignableFrom(paramTypes[i]))
-            {
-                params[i] = req;
+                    break;
+
+                case RESPONSE :
+                    params[i] = resp;
+                    break;
+
+                case REQUEST :
+                    params[i] = req;
+                    break;
+
+                default :
+                    params[i] = null;
             }
         }
     }
+
     /**
      * Returns the parameter values for the given method parsed from the request.
      *
      * @param rm The method to process.
      * @param req The request containing the parameters.
      * @param serializer The serializer to use.
+     * @param variables The path variables.
      * @param params the parameter value array to fill in.
-     * @param paramTypes the parameter types array.
      * @throws IOException If an error occurs.
      */
-    private void fillParamValuesFromRequest(RESTMethod rm, HttpServletRequest req, RESTSerializer serializer, Object[] params, Class<?>[] paramTypes) throws IOException
+    private void fillParamValuesFromRequest(RESTMethod rm, HttpServletRequest req, RESTSerializer serializer, Map<String, String> variables, Object[] params) throws IOException
     {
+        RESTParameter[] plan = rm.getParameters();
         for (int i = 0; i < params.length; i++)
         {
-            if (params[i] != null)
+            RESTParameter p = plan[i];
+            if (params[i] != null || p.getId() == null)
                 continue;
 
-            RESTID id = AnnotationUtility.getAnnotations(RESTID.class, rm.getObject(), rm.getMethod(), i);
-            if (id != null)
+            String[] val;
+            if (p.getSource() == RESTParameter.Source.BODY)
             {
-                String[] val;
-                if (id.body())
+                val = new String[1];
+                if (p.isStream())
                 {
-                    val = new String[1];
-                    if (InputStream.class.isAssignableFrom(paramTypes[i]))
-                    {
-                        params[i] = req.getInputStream();
-                    }
-                    else
-                    {
-                        byte[] bytes = IOUtils.toByteArray(req.getInputStream());
-                        val[0] = new String(bytes, "UTF-8");
-                    }
+                    params[i] = req.getInputStream();
                 }
                 else
                 {
-                    val = req.getParameterValues(id.id());
+                    val[0] = IOUtils.toString(req.getInputStream(), "UTF-8");
                 }
-                if (logger.isTraceEnabled()) traceParameter(id.id(), val);
-                if (params[i] == null && val != null && val.length > 0) params[i] = serializer.deserialize(paramTypes[i], val);
             }
+            else
+            {
+                String v = variables.get(p.getId());
+                if (v != null) val = new String[] {v};
+                else val = req.getParameterValues(p.getId());
+            }
+            if (logger.isTraceEnabled()) traceParameter(p.getId(), val);
+            if (params[i] == null && val != null && val.length > 0) params[i] = serializer.deserialize(p.getType(), val);
         }
     }
 
     // ===========================================================================
     /**
-     * Parses the parameters from the form stored in the given map.
+     * Parses the parameters from the given form.
      *
      * @param rm The method to process.
-     * @param formFields The fields to parse.
+     * @param form The form to parse.
      * @param serializer The serializer to use.
+     * @param variables The path variables.
      * @param params the parameter value array to fill in.
-     * @param paramTypes the parameter types array.
      * @throws IOException If an error occurs.
      */
-    private void fillParamValuesFromForm(RESTMethod rm, Map<String, FileItem> formFields, RESTSerializer serializer, Object[] params, Class<?>[] paramTypes) throws IOException
+    private void fillParamValuesFromForm(RESTMethod rm, RESTForm form, RESTSerializer serializer, Map<String, String> variables,
+                                         Object[] params) throws IOException
     {
+        RESTParameter[] plan = rm.getParameters();
         for (int i = 0; i < params.length; i++)
         {
-            if (params[i] != null)
+            RESTParameter p = plan[i];
+            if (params[i] != null || p.getId() == null)
+                continue;
+
+            String v = variables.get(p.getId());
+            if (v != null)
+            {
+                params[i] = serializer.deserialize(p.getType(), new String[] {v});
                 continue;
+            }
 
-            RESTID id = AnnotationUtility.getAnnotations(RESTID.class, rm.getObject(), rm.getMethod(), i);
-            if (id != null)
+            String field = form.getField(p.getId());
+            if (field != null)
             {
-                FileItem item = formFields.get(id.id());
-                if (item != null)
+                String[] val = new String[] {field};
+                params[i] = serializer.deserialize(p.getType(), val);
+                if (logger.isTraceEnabled()) traceParameter(p.getId(), val);
+                continue;
+            }
+
+            RESTForm.Upload upload = form.getUpload(p.getId());
+            if (upload != null)
+            {
+                if (p.isMimeType())
                 {
-                    String[] val = null;
-                    if (item.isFormField())
-                    {
-                        val = new String[] {item.getString("UTF-8")};
-                        params[i] = serializer.deserialize(paramTypes[i], val);
-                        if (logger.isTraceEnabled()) traceParameter(id.id(), val);
-                    }
-                    else
-                    {
-                        if (id.mimetype())
-                        {
-                            params[i] = item.getContentType();
-                        }
-                        else if (id.filename())
-                        {
-                            params[i] = item.getName();
-                        }
-                        else
-                        {
-                            try
-                            {
-                                if (InputStream.class.isAssignableFrom(paramTypes[i]))
-                                {
-                                    params[i] = item.getInputStream();
-                                }
-                                else
-                                {
-                                    File nf = new File(item.getName());
-                                    File f = File.createTempFile("___", "___" + nf.getName());
-                                    item.write(f);
-                                    if (File.class.isAssignableFrom(paramTypes[i]))
-                                    {
-                                        params[i] = f;
-                                    }
-                                    else
-                                    {
-                                        logger.warn("File upload to string field for method " + rm.getMethod());
-                                        params[i] = f.getAbsolutePath();
-                                    }
-                                }
-                            }
-                            catch (Exception e)
-                            {
-                                throw new IOException(e.getMessage());
-                            }
-                        }
-                    }
+                    params[i] = upload.getContentType();
+                }
+                else if (p.isFileName())
+                {
+                    params[i] = upload.getName();
+                }
+                else if (p.isStream())
+                {
+                    params[i] = upload.getInputStream();
+                }
+                else if (p.isFile())
+                {
+                    params[i] = upload.getFile();
+                }
+                else
+                {
+                    logger.warn("File upload to string field for method " + rm.getMethod());
+                    params[i] = upload.getFile().getAbsolutePath();
                 }
             }
         }
@@ -367,69 +447,90 @@ public class RESTServlet extends GluewineServlet implements RepositoryListener<O
     {
         try
         {
-            RESTBean rb = new RESTBean();
-            rb.request = req;
-            rb.response = resp;
-            beans.put(Thread.currentThread(), rb);
+            BEANS.set(new RESTBean(req, resp));
 
             String path = getRESTPath(req);
             if (logger.isDebugEnabled()) logger.debug("Received REST request for : " + path);
-            if (methods.containsKey(path))
+            if (path.equals(BATCH_PATH))
             {
-                RESTMethod rm = methods.get(path);
-                Map<String, FileItem> formFields = null;
-                if (rm.isForm()) formFields = parseForm(req);
+                serviceBatch(req, resp);
+                return;
+            }
+
+            RESTRouter.Match match = router.find(path, req.getMethod());
+            if (match != null && match.getMethod() == null)
+            {
+                resp.setHeader("Allow", match.getAllowHeader());
+                resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Method " + req.getMethod() + " is not allowed for path " + path);
+            }
+            else if (match != null)
+            {
+                RESTMethod rm = match.getMethod();
+                RESTForm form = null;
+                if (rm.isForm()) form = RESTForm.parse(req, rm, match.getVariables(), properties);
 
                 String format = null;
-                if (rm.isForm())
-                {
-                    FileItem item = formFields.get("format");
-                    if (item != null) format = item.getString("UTF-8");
-                }
+                if (rm.isForm()) format = form.getField("format");
                 else format = req.getParameter("format");
 
-                if (format == null) format = "json";
-                RESTSerializer serializer = serializers.get(format);
+                RESTSerializer serializer = getSerializer(format, req, resp);
                 if (serializer != null)
                 {
 
-                    if (AnnotationUtility.getAnnotation(Unsecured.class, rm.getMethod(), rm.getObject()) == null)
+                    if (!rm.isUnsecured())
                         authenticate(req, resp, rm.getObject());
 
-                    Class<?>[] paramTypes = rm.getMethod().getParameterTypes();
-                    Object[] params = new Object[paramTypes.length];
+                    if (rm.isCacheable())
+                    {
+                        try
+                        {
+                            executeCached(rm, serializer.getFormat(), serializer, match.getVariables(), req, resp);
+                        }
+                        catch (IOException e)
+                        {
+                            ErrorLogger.log(getClass(), e);
+                            if (!resp.isCommitted())
+                                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Method execution failed: " + e.getMessage());
+                        }
+                        return;
+                    }
+
+                    Object[] params = new Object[rm.getParameters().length];
 
-                    initParamValues(rm, req, resp, params, paramTypes);
+                    initParamValues(rm, req, resp, params);
 
                     if (rm.isForm())
-                        fillParamValuesFromForm(rm, formFields, serializer, params, paramTypes);
+                        fillParamValuesFromForm(rm, form, serializer, match.getVariables(), params);
                     else
-                        fillParamValuesFromRequest(rm, req, serializer, params, paramTypes);
+                        fillParamValuesFromRequest(rm, req, serializer, match.getVariables(), params);
 
                     try
                     {
-                        if (rm.getMethod().getReturnType().equals(Void.TYPE) || rm.getMethod().getReturnType().equals(InputStream.class)
-                                || rm.getMethod().getReturnType().equals(OutputStream.class))
+                        if (rm.getResult() == RESTMethod.Result.IGNORED)
                             executeMethod(rm, params);
 
-                        else
+                        else if (rm.getResult() == RESTMethod.Result.ASYNC)
+                            executeAsync(rm, params, serializer, req, resp);
+
+                        else if (logger.isTraceEnabled())
                         {
                             String s = executeMethod(rm, params, serializer);
-                            if (logger.isTraceEnabled()) logger.trace("Serialized response: " + s);
-                            if (resp.getContentType() == null)
-                            {
-                                resp.setContentType(serializer.getResponseMIME());
-                                resp.setCharacterEncoding("utf8");
-                            }
+                            logger.trace("Serialized response: " + s);
+                            setContentType(resp, serializer);
                             resp.getWriter().write(s);
                             resp.getWriter().flush();
                             resp.getWriter().close();
                         }
+
+                        else
+                            executeMethod(rm, params, serializer, resp);
                     }
                     catch (IOException e)
                     {
                         ErrorLogger.log(getClass(), e);
-                        resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Method execution failed: " + e.getMessage());
+                        // Once streaming has started, the status can no longer be changed.
+                        if (!resp.isCommitted())
+                            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Method execution failed: " + e.getMessage());
                     }
                 }
                 else resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Unsupported format");
@@ -448,7 +549,7 @@ public class RESTServlet extends GluewineServlet implements RepositoryListener<O
         finally
         {
             if (sessionManager != null) sessionManager.clearCurrentSessionId();
-            beans.remove(Thread.currentThread());
+            BEANS.remove();
         }
     }
 
@@ -470,6 +571,646 @@ public class RESTServlet extends GluewineServlet implements RepositoryListener<O
         return serializer.serialize(result);
     }
 
+    // ===========================================================================
+    /**
+     * Executes the given method using the provided parameters, and serializes the
+     * result directly to the output stream of the response, without building the
+     * whole response in memory first.
+     *
+     * @param rm The method to execute.
+     * @param params The paramters to use.
+     * @param serializer The serializer to use.
+     * @param resp The response to write to.
+     * @throws IOException If the method failed execution.
+     */
+    @ContextInitializer
+    public void executeMethod(RESTMethod rm, Object[] params, RESTSerializer serializer, HttpServletResponse resp) throws IOException
+    {
+        Object result = executeMethod(rm, params);
+        setContentType(resp, serializer);
+
+        OutputStream out = null;
+        try
+        {
+            out = resp.getOutputStream();
+        }
+        catch (IllegalStateException e)
+        {
+            // The method already obtained the writer of the response.
+            resp.getWriter().write(serializer.serialize(result));
+            resp.getWriter().flush();
+            resp.getWriter().close();
+            return;
+        }
+
+        writeResult(serializer, result, out);
+        out.close();
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the serializer to use. If a format has been requested explicitly, the
+     * serializer of that format is returned. Otherwise the serializer is chosen based
+     * on the types named explicitly in the Accept header of the request, defaulting to
+     * json. Wildcards and the headers sent by browsers, that list a wildcard next to
+     * other types, never select another format, and json wins ties.
+     *
+     * @param format The (possibly null) requested format.
+     * @param req The current request.
+     * @param resp The current response.
+     * @return The (possibly null) serializer.
+     */
+    private RESTSerializer getSerializer(String format, HttpServletRequest req, HttpServletResponse resp)
+    {
+        if (format != null) return serializers.get(format);
+
+        resp.addHeader("Vary", "Accept");
+        RESTSerializer json = serializers.get("json");
+        String accept = req.getHeader("Accept");
+        if (accept == null || (accept.contains("*/*") && accept.contains(","))) return json;
+
+        RESTSerializer best = null;
+        float bestQ = 0;
+        for (String range : accept.split(","))
+        {
+            String[] parts = range.split(";");
+            String type = parts[0].trim().toLowerCase(Locale.ENGLISH);
+            float q = 1;
+            for (int i = 1; i < parts.length; i++)
+            {
+                String param = parts[i].trim();
+                if (param.startsWith("q="))
+                {
+                    try
+                    {
+                        q = Float.parseFloat(param.substring(2));
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        q = 0;
+                    }
+                }
+            }
+            if (q <= 0 || q < bestQ) continue;
+
+            RESTSerializer match = null;
+            for (RESTSerializer s : serializers.values())
+            {
+                if (type.equals(s.getResponseMIME()))
+                {
+                    match = s;
+                    break;
+                }
+            }
+
+            if (match != null && (q > bestQ || match == json))
+            {
+                best = match;
+                bestQ = q;
+            }
+        }
+
+        return best != null ? best : json;
+    }
+
+    // ===========================================================================
+    /**
+     * Serves a batch request. The request contains the paths to call, in order, as
+     * repeated "path" parameters; the parameters of the N-th call are named N.id.
+     * The request is authenticated for every service with a secured call, as the
+     * authenticators may depend on the service called. The response is
+     * a list of RESTBatchResult, one per call.
+     *
+     * If the "transactional" parameter is true, all calls are executed in one transaction,
+     * that is rolled back if one of them fails. Otherwise a failing call does not stop
+     * the batch, unless the "stoponerror" parameter is true.
+     *
+     * Form methods, methods taking the body or the response, and methods returning a
+     * stream or a future can't be called in a batch.
+     *
+     * @param req The current request.
+     * @param resp The current response.
+     * @throws IOException If an error occurs.
+     * @throws AuthenticationException If the authentication failed.
+     */
+    private void serviceBatch(HttpServletRequest req, HttpServletResponse resp) throws IOException, AuthenticationException
+    {
+        RESTSerializer serializer = getSerializer(req.getParameter("format"), req, resp);
+        if (serializer == null)
+        {
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Unsupported format");
+            return;
+        }
+
+        String[] paths = req.getParameterValues("path");
+        if (paths == null) paths = new String[0];
+
+        Set<Object> authenticated = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        List<BatchCall> calls = new ArrayList<BatchCall>(paths.length);
+        for (int i = 0; i < paths.length; i++)
+        {
+            BatchCall call = new BatchCall();
+            calls.add(call);
+            call.path = paths[i];
+
+            String path = paths[i];
+            if (path.startsWith("/")) path = path.substring(1);
+            if (path.endsWith("/")) path = path.substring(0, path.length() - 1);
+
+            RESTRouter.Match match = router.find(path, req.getMethod());
+            if (match == null)
+            {
+                call.error = new RESTBatchResult(call.path, HttpServletResponse.SC_NOT_FOUND, null, "There is no method registered with path " + path);
+                continue;
+            }
+
+            if (match.getMethod() == null)
+            {
+                call.error = new RESTBatchResult(call.path, HttpServletResponse.SC_METHOD_NOT_ALLOWED, null,
+                                                 "Method " + req.getMethod() + " is not allowed for path " + path + ", use " + match.getAllowHeader());
+                continue;
+            }
+
+            RESTMethod rm = match.getMethod();
+            if (!isBatchable(rm))
+            {
+                call.error = new RESTBatchResult(call.path, HttpServletResponse.SC_BAD_REQUEST, null, "The method can't be called in a batch");
+                continue;
+            }
+
+            if (!rm.isUnsecured() && authenticated.add(rm.getObject()))
+                authenticate(req, resp, rm.getObject());
+
+            try
+            {
+                HttpServletRequest callReq = new BatchRequest(req, i);
+                call.params = new Object[rm.getParameters().length];
+                initParamValues(rm, callReq, resp, call.params);
+                fillParamValuesFromRequest(rm, callReq, serializer, match.getVariables(), call.params);
+                call.method = rm;
+            }
+            catch (Exception e)
+            {
+                call.error = new RESTBatchResult(call.path, HttpServletResponse.SC_BAD_REQUEST, null, "Invalid parameters: " + e.getMessage());
+            }
+        }
+
+        boolean transactional = Boolean.parseBoolean(req.getParameter("transactional"));
+        boolean stopOnError = Boolean.parseBoolean(req.getParameter("stoponerror"));
+        executeBatch(calls, transactional, stopOnError, serializer, resp);
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if the given method can be called in a batch.
+     *
+     * @param rm The method to check.
+     * @return True if batchable.
+     */
+    private boolean isBatchable(RESTMethod rm)
+    {
+        if (rm.isForm() || rm.getResult() == RESTMethod.Result.ASYNC) return false;
+        if (rm.getResult() == RESTMethod.Result.IGNORED && !rm.getMethod().getReturnType().equals(Void.TYPE)) return false;
+
+        for (RESTParameter p : rm.getParameters())
+            if (p.getSource() == RESTParameter.Source.BODY || p.getSource() == RESTParameter.Source.RESPONSE) return false;
+
+        return true;
+    }
+
+    // ===========================================================================
+    /**
+     * Executes the calls of a batch, and serializes the results to the response.
+     *
+     * @param calls The calls to execute.
+     * @param transactional True to execute all calls in one transaction.
+     * @param stopOnError True to stop at the first failing call.
+     * @param serializer The serializer to use.
+     * @param resp The response to write to.
+     * @throws IOException If the response could not be written.
+     */
+    @ContextInitializer
+    public void executeBatch(List<BatchCall> calls, boolean transactional, boolean stopOnError, RESTSerializer serializer, HttpServletResponse resp)
+        throws IOException
+    {
+        if (logger.isDebugEnabled()) logger.debug("Executing batch of " + calls.size() + " calls");
+
+        List<RESTBatchResult> results = new ArrayList<RESTBatchResult>(calls.size());
+        if (transactional)
+        {
+            try
+            {
+                executeTransactionalBatch(calls, results);
+            }
+            catch (IOException e)
+            {
+                // The transaction has been rolled back, so none of the calls have succeeded.
+                for (int i = 0; i < results.size(); i++)
+                {
+                    if (results.get(i).getStatus() == HttpServletResponse.SC_OK)
+                        results.set(i, new RESTBatchResult(calls.get(i).path, HttpServletResponse.SC_CONFLICT, null, "Batch rolled back"));
+                }
+            }
+        }
+        else executeBatch(calls, results, stopOnError);
+
+        for (int i = results.size(); i < calls.size(); i++)
+            results.add(new RESTBatchResult(calls.get(i).path, HttpServletResponse.SC_CONFLICT, null, "Not executed"));
+
+        setContentType(resp, serializer);
+        OutputStream out = resp.getOutputStream();
+        writeResult(serializer, results, out);
+        out.close();
+    }
+
+    // ===========================================================================
+    /**
+     * Executes all calls of the batch in one transaction. Execution stops at the first
+     * failing call, in which case an exception is thrown to roll back the transaction.
+     *
+     * @param calls The calls to execute.
+     * @param results The list to update with the results.
+     * @throws IOException If one of the calls failed.
+     */
+    @Transactional
+    public void executeTransactionalBatch(List<BatchCall> calls, List<RESTBatchResult> results) throws IOException
+    {
+        if (!executeBatch(calls, results, true))
+            throw new IOException("Batch call " + results.size() + " failed");
+    }
+
+    // ===========================================================================
+    /**
+     * Executes the calls of the batch and adds their results to the given list.
+     *
+     * @param calls The calls to execute.
+     * @param results The list to update with the results.
+     * @param stopOnError If true, execution stops at the first failing call.
+     * @return True if all calls succeeded.
+     */
+    private boolean executeBatch(List<BatchCall> calls, List<RESTBatchResult> results, boolean stopOnError)
+    {
+        boolean success = true;
+        for (BatchCall call : calls)
+        {
+            RESTBatchResult result = call.error;
+            if (result == null)
+            {
+                try
+                {
+                    result = new RESTBatchResult(call.path, HttpServletResponse.SC_OK, executeMethod(call.method, call.params), null);
+                }
+                catch (IOException e)
+                {
+                    result = new RESTBatchResult(call.path, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null, "Method execution failed: " + e.getMessage());
+                }
+            }
+
+            results.add(result);
+            if (result.getStatus() != HttpServletResponse.SC_OK)
+            {
+                success = false;
+                if (stopOnError) break;
+            }
+        }
+        return success;
+    }
+
+    // ===========================================================================
+    /**
+     * Serves a cacheable method. The response is taken from the cache if present,
+     * otherwise the method is invoked and its response is cached. If the client already
+     * has the response (If-None-Match or If-Modified-Since), a 304 is returned.
+     *
+     * @param rm The method to execute.
+     * @param format The requested format.
+     * @param serializer The serializer to use.
+     * @param variables The path variables.
+     * @param req The current request.
+     * @param resp The current response.
+     * @throws IOException If the method failed execution.
+     */
+    private void executeCached(RESTMethod rm, String format, RESTSerializer serializer, Map<String, String> variables, HttpServletRequest req,
+                               HttpServletResponse resp) throws IOException
+    {
+        String key = getCacheKey(rm, format, variables, req);
+        CachedResponse entry = cache.get(key);
+        if (entry == null)
+        {
+            Object[] params = new Object[rm.getParameters().length];
+            initParamValues(rm, req, resp, params);
+            fillParamValuesFromRequest(rm, req, serializer, variables, params);
+            byte[] content = executeMethodToBytes(rm, params, serializer);
+            entry = cache.put(key, rm.getPath(), content, serializer.getResponseMIME(), rm.getCacheTtl());
+        }
+
+        resp.setHeader("ETag", entry.getETag());
+        resp.setDateHeader("Last-Modified", entry.getLastModified());
+        resp.setHeader("Cache-Control", "private, no-cache");
+
+        if (isNotModified(req, entry))
+        {
+            cache.notModified();
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        resp.setContentType(entry.getMime());
+        resp.setCharacterEncoding("utf8");
+        resp.setContentLength(entry.getContent().length);
+        OutputStream out = resp.getOutputStream();
+        out.write(entry.getContent());
+        out.close();
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the user the cached responses of secured methods are stored for. This is
+     * the name of the authenticated user, so that clients that get a new session for
+     * every request share their entries. If the session has no user name, the session
+     * itself is used.
+     *
+     * @return The (possibly null) user.
+     */
+    private String getCacheUser()
+    {
+        if (sessionManager == null) return null;
+
+        String session = sessionManager.getCurrentSessionId();
+        if (session != null && dataStore != null)
+        {
+            try
+            {
+                Object user = dataStore.getData(session, SessionManagerDataStore.USERNAME);
+                if (user != null) return "user:" + user;
+            }
+            catch (SessionExpiredException e)
+            {
+                // Keyed on the session below, which will not match any other user.
+            }
+        }
+        return "session:" + session;
+    }
+
+    // ===========================================================================
+    /**
+     * Returns true if the client already has the given response.
+     *
+     * @param req The current request.
+     * @param entry The cached response.
+     * @return True if not modified.
+     */
+    private boolean isNotModified(HttpServletRequest req, CachedResponse entry)
+    {
+        String match = req.getHeader("If-None-Match");
+        if (match != null)
+        {
+            for (String tag : match.split(","))
+            {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(entry.getETag())) return true;
+            }
+            return false;
+        }
+
+        try
+        {
+            long since = req.getDateHeader("If-Modified-Since");
+            // HTTP dates have a precision of one second.
+            return since >= 0 && entry.getLastModified() / 1000 <= since / 1000;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return false;
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the key of the cached response for the given request: the path of the
+     * method, the format, the session and the values of all bound parameters.
+     *
+     * @param rm The method to execute.
+     * @param format The requested format.
+     * @param variables The path variables.
+     * @param req The current request.
+     * @return The key.
+     */
+    private String getCacheKey(RESTMethod rm, String format, Map<String, String> variables, HttpServletRequest req)
+    {
+        StringBuilder b = new StringBuilder(rm.getPath()).append('\0').append(format).append('\0');
+        if (!rm.isUnsecured()) b.append(getCacheUser());
+
+        for (RESTParameter p : rm.getParameters())
+        {
+            if (p.getId() == null) continue;
+
+            b.append('\0').append(p.getId()).append('=');
+            if (p.getSource() == RESTParameter.Source.HEADER) b.append(req.getHeader(p.getId())).append('\0');
+            else if (p.getSource() == RESTParameter.Source.METHOD) b.append(req.getMethod()).append('\0');
+
+            String v = variables.get(p.getId());
+            if (v != null) b.append(v);
+            else
+            {
+                String[] values = req.getParameterValues(p.getId());
+                if (values != null)
+                {
+                    for (String s : values)
+                        b.append(s).append('\1');
+                }
+            }
+        }
+        return b.toString();
+    }
+
+    // ===========================================================================
+    /**
+     * Executes the given method using the provided parameters, and returns the result
+     * serialized with the given serializer.
+     *
+     * @param rm The method to execute.
+     * @param params The paramters to use.
+     * @param serializer The serializer to use.
+     * @return The serialized result.
+     * @throws IOException If the method failed execution.
+     */
+    @ContextInitializer
+    public byte[] executeMethodToBytes(RESTMethod rm, Object[] params, RESTSerializer serializer) throws IOException
+    {
+        Object result = executeMethod(rm, params);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeResult(serializer, result, out);
+        return out.toByteArray();
+    }
+
+    // ===========================================================================
+    /**
+     * Executes a method returning a future. The request is put in asynchronous mode,
+     * so that the servlet thread is released, and the response is written by the
+     * thread completing the future. If the future does not complete within the
+     * async.timeout (in milliseconds, default 30000), a 503 is returned.
+     *
+     * @param rm The method to execute.
+     * @param params The parameters to use.
+     * @param serializer The serializer to use.
+     * @param req The current request.
+     * @param resp The current response.
+     * @throws IOException If the method failed execution.
+     */
+    private void executeAsync(final RESTMethod rm, Object[] params, final RESTSerializer serializer, HttpServletRequest req, final HttpServletResponse resp)
+        throws IOException
+    {
+        Object o = executeMethod(rm, params);
+        RESTFuture<Object> future = null;
+        if (o != null) future = RESTFuture.adapt(o);
+        else
+        {
+            future = new RESTFuture<Object>();
+            future.complete(null);
+        }
+
+        final String session = sessionManager != null ? sessionManager.getCurrentSessionId() : null;
+        final RESTBean bean = new RESTBean(req, resp);
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final AsyncContext async = req.startAsync(req, resp);
+        async.setTimeout(Long.parseLong(properties.getProperty("async.timeout", "30000")));
+        async.addListener(new AsyncListener()
+        {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException
+            {
+                if (finished.compareAndSet(false, true))
+                {
+                    logger.warn("Asynchronous REST method timed out: " + rm.getMethod());
+                    resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Method execution timed out");
+                    async.complete();
+                }
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event)
+            {
+            }
+
+            @Override
+            public void onError(AsyncEvent event)
+            {
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event)
+            {
+            }
+        });
+
+        future.addListener(new RESTFuture.Listener<Object>()
+        {
+            @Override
+            public void completed(Object result, Throwable error)
+            {
+                if (!finished.compareAndSet(false, true)) return;
+
+                // The future may complete in any thread, so the session and the request
+                // have to be bound again before the context is initialized. The future
+                // may also complete in the thread serving the request, whose bean is
+                // restored afterwards.
+                String previousSession = sessionManager != null ? sessionManager.getCurrentSessionId() : null;
+                if (sessionManager != null && session != null) sessionManager.setCurrentSessionId(session);
+                RESTBean previous = BEANS.get();
+                BEANS.set(bean);
+                try
+                {
+                    completeAsync(result, error, serializer, resp);
+                }
+                catch (Throwable e)
+                {
+                    ErrorLogger.log(RESTServlet.class, e);
+                }
+                finally
+                {
+                    if (previous != null) BEANS.set(previous);
+                    else BEANS.remove();
+                    if (sessionManager != null && session != null)
+                    {
+                        if (previousSession != null) sessionManager.setCurrentSessionId(previousSession);
+                        else sessionManager.clearCurrentSessionId();
+                    }
+                    async.complete();
+                }
+            }
+        });
+    }
+
+    // ===========================================================================
+    /**
+     * Writes the outcome of a future to the response. The result is serialized
+     * within a new context, as the context of the method invocation has already
+     * been closed.
+     *
+     * @param result The result of the future.
+     * @param error The (possibly null) error of the future.
+     * @param serializer The serializer to use.
+     * @param resp The response to write to.
+     * @throws IOException If the response could not be written.
+     */
+    @ContextInitializer
+    public void completeAsync(Object result, Throwable error, RESTSerializer serializer, HttpServletResponse resp) throws IOException
+    {
+        if (error != null)
+        {
+            ErrorLogger.log(getClass(), error);
+            if (!resp.isCommitted())
+                resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Method execution failed: " + error.getMessage());
+            return;
+        }
+
+        setContentType(resp, serializer);
+        OutputStream out = resp.getOutputStream();
+        writeResult(serializer, result, out);
+        out.close();
+    }
+
+    // ===========================================================================
+    /**
+     * Serializes the object to the given stream. Serializers that do not support
+     * streaming are serialized to a String first.
+     *
+     * @param serializer The serializer to use.
+     * @param o The object to serialize.
+     * @param out The stream to write to.
+     * @throws IOException If an error occurs.
+     */
+    private void writeResult(RESTSerializer serializer, Object o, OutputStream out) throws IOException
+    {
+        if (serializer instanceof StreamingRESTSerializer)
+            ((StreamingRESTSerializer) serializer).serialize(o, out);
+        else
+        {
+            String s = serializer.serialize(o);
+            if (s != null) out.write(s.getBytes("UTF-8"));
+            out.flush();
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Sets the content type of the response to the MIME type of the serializer,
+     * unless the method already set one.
+     *
+     * @param resp The response to update.
+     * @param serializer The serializer in use.
+     */
+    private void setContentType(HttpServletResponse resp, RESTSerializer serializer)
+    {
+        if (resp.getContentType() == null)
+        {
+            resp.setContentType(serializer.getResponseMIME());
+            resp.setCharacterEncoding("utf8");
+        }
+    }
+
     // ===========================================================================
     /**
      * Traces the parameter given.
@@ -523,6 +1264,7 @@ public class RESTServlet extends GluewineServlet implements RepositoryListener<O
     @Override
     public void registered(Object t)
     {
+        List<RESTRouter.Route> routes = new ArrayList<RESTRouter.Route>();
         for (Method m : t.getClass().getMethods())
         {
             REST r = AnnotationUtility.getAnnotation(REST.class, m, t);
@@ -533,7 +1275,19 @@ public class RESTServlet extends GluewineServlet implements RepositoryListener<O
                 rm.setMethod(m);
                 rm.setObject(t);
                 rm.setForm(r.form());
-                methods.put(fixPath(r), rm);
+                rm.setUnsecured(AnnotationUtility.getAnnotation(Unsecured.class, m, t) != null);
+                rm.setPath(fixPath(r));
+                rm.setCacheTtl(r.cache() * 1000);
+                rm.compile();
+                routes.add(new RESTRouter.Route(fixPath(r), r.httpMethods(), rm));
+            }
+        }
+
+        if (!routes.isEmpty())
+        {
+            synchronized (this)
+            {
+                router = router.add(routes);
             }
         }
 
@@ -548,6 +1302,9 @@ public class RESTServlet extends GluewineServlet implements RepositoryListener<O
 
         if (t instanceof SessionManager)
             sessionManager = (SessionManager) t;
+
+        if (t instanceof SessionManagerDataStore)
+            dataStore = (SessionManagerDataStore) t;
     }
 
     // ===========================================================================
@@ -569,10 +1326,9 @@ public class RESTServlet extends GluewineServlet implements RepositoryListener<O
     @Override
     public void unregistered(Object t)
     {
-        for (Method m : t.getClass().getMethods())
+        synchronized (this)
         {
-            REST r = AnnotationUtility.getAnnotation(REST.class, m, t);
-            if (r != null) methods.remove(fixPath(r));
+            router = router.remove(t);
         }
 
         if (t instanceof RESTSerializer)
@@ -584,6 +1340,8 @@ public class RESTServlet extends GluewineServlet implements RepositoryListener<O
         if (t instanceof RESTAuthenticator) authenticators.remove(t);
 
         if (t == sessionManager) sessionManager = null;
+
+        if (t == dataStore) dataStore = null;
     }
 
     // ===========================================================================
@@ -594,7 +1352,8 @@ public class RESTServlet extends GluewineServlet implements RepositoryListener<O
      */
     public static HttpServletRequest getCurrentRequest()
     {
-        return beans.get(Thread.currentThread()).request;
+        RESTBean rb = BEANS.get();
+        return rb != null ? rb.request : null;
     }
 
     // ===========================================================================
@@ -605,6 +1364,7 @@ public class RESTServlet extends GluewineServlet implements RepositoryListener<O
      */
     public static HttpServletResponse getCurrentResponse()
     {
-        return beans.get(Thread.currentThread()).response;
+        RESTBean rb = BEANS.get();
+        return rb != null ? rb.response : null;
     }
 }
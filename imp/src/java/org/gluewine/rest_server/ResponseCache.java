@@ -0,0 +1,59 @@
+/**************************************************************************
+ *
+ * Gluewine REST Server Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.rest_server;
+
+import org.gluewine.rest.RESTCache;
+
+/**
+ * The operations of the REST response cache used by the RESTServlet.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+interface ResponseCache extends RESTCache
+{
+    // ===========================================================================
+    /**
+     * Returns the entry stored with the given key, or null if there is no entry or
+     * if it expired. A hit or miss is recorded.
+     *
+     * @param key The key of the response.
+     * @return The (possibly null) entry.
+     */
+    CachedResponse get(String key);
+
+    // ===========================================================================
+    /**
+     * Stores a response.
+     *
+     * @param key The key of the response.
+     * @param path The path of the method.
+     * @param content The serialized response.
+     * @param mime The MIME type of the response.
+     * @param ttl The time to live in milliseconds.
+     * @return The entry created.
+     */
+    CachedResponse put(String key, String path, byte[] content, String mime, long ttl);
+
+    // ===========================================================================
+    /**
+     * Records a response that was answered with a 304.
+     */
+    void notModified();
+}
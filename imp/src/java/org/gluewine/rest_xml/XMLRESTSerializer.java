@@ -18,17 +18,17 @@
  ***************************************************************************/
 package org.gluewine.rest_xml;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
-import org.gluewine.core.RepositoryListener;
-import org.gluewine.gxo_server.XStreamConverterProvider;
-import org.gluewine.gxo_server.XStreamProvider;
+import org.gluewine.core.Glue;
 import org.gluewine.rest.AbstractRESTSerializer;
+import org.gluewine.xstream.XStreamFactory;
 
 import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.io.xml.StaxDriver;
 
 /**
  * Serializes/deserializes to/from XML.
@@ -36,18 +36,14 @@ import com.thoughtworks.xstream.io.xml.StaxDriver;
  * @author fks/Serge de Schaetzen
  *
  */
-public class XMLRESTSerializer extends AbstractRESTSerializer implements RepositoryListener<Object>
+public class XMLRESTSerializer extends AbstractRESTSerializer
 {
     // ===========================================================================
     /**
-     * The actual serializer.
+     * The factory providing the actual serializer.
      */
-    private XStream stream = new XStream(new StaxDriver());
-
-    /**
-     * Stream converters.
-     */
-    private Set<XStreamConverterProvider> providers = new HashSet<XStreamConverterProvider>();
+    @Glue
+    private XStreamFactory factory = null;
 
     // ===========================================================================
     @Override
@@ -68,45 +64,53 @@ public class XMLRESTSerializer extends AbstractRESTSerializer implements Reposit
     public String serialize(Object o) throws IOException
     {
         if (o instanceof String) return (String) o;
-        return stream.toXML(o);
-    }
 
-    // ===========================================================================
-    @Override
-    protected Object deserializeObject(Class<?> cl, String str) throws IOException
-    {
-        if (cl.equals(String.class)) return str;
-        return stream.fromXML(str);
+        XStream stream = factory.borrowXStream();
+        try
+        {
+            return stream.toXML(o);
+        }
+        finally
+        {
+            factory.releaseXStream(stream);
+        }
     }
 
     // ===========================================================================
     @Override
-    public void registered(Object t)
+    public void serialize(Object o, OutputStream out) throws IOException
     {
-        if (t instanceof XStreamProvider)
-            stream = ((XStreamProvider) t).getXStream();
-
-        if (t instanceof XStreamConverterProvider)
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        if (o instanceof String) writer.write((String) o);
+        else
         {
-            providers.add((XStreamConverterProvider) t);
-            relinkConverters();
+            XStream stream = factory.borrowXStream();
+            try
+            {
+                stream.toXML(o, writer);
+            }
+            finally
+            {
+                factory.releaseXStream(stream);
+            }
         }
-    }
-
-    // ===========================================================================
-    /**
-     * Relinks all registered converters.
-     */
-    private void relinkConverters()
-    {
-        for (XStreamConverterProvider prov : providers)
-            prov.registerConverters(stream);
+        writer.flush();
     }
 
     // ===========================================================================
     @Override
-    public void unregistered(Object t)
+    protected Object deserializeObject(Class<?> cl, String str) throws IOException
     {
-        if (t instanceof XStreamConverterProvider) providers.remove(t);
+        if (cl.equals(String.class)) return str;
+
+        XStream stream = factory.borrowXStream();
+        try
+        {
+            return stream.fromXML(str);
+        }
+        finally
+        {
+            factory.releaseXStream(stream);
+        }
     }
 }
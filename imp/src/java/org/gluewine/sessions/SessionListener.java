@@ -0,0 +1,45 @@
+/**************************************************************************
+ *
+ * Gluewine Base Session Management Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.sessions;
+
+/**
+ * Listener notified by the SessionManager when a session ends. Services keeping
+ * data bound to sessions use it to release that data as soon as the session is gone.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public interface SessionListener
+{
+    // ===========================================================================
+    /**
+     * Invoked when a session has been closed, either locally or on another node.
+     *
+     * @param session The id of the session.
+     */
+    void sessionClosed(String session);
+
+    // ===========================================================================
+    /**
+     * Invoked when a session has been removed because it was idle for too long.
+     *
+     * @param session The id of the session.
+     */
+    void sessionExpired(String session);
+}
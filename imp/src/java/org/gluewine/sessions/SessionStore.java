@@ -0,0 +1,112 @@
+/**************************************************************************
+ *
+ * Gluewine Base Session Management Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.sessions;
+
+/**
+ * Storage for the sessions managed by the SessionManager. The session manager keeps
+ * all sessions in memory, and notifies every registered store of all changes, so that
+ * stores can persist them or ship them to other nodes.
+ *
+ * <p>Changes can flow in both directions: when opened, a store is given a listener it
+ * can use to report sessions it has loaded or received from elsewhere. Changes reported
+ * by a store are applied by the session manager and passed on to all other stores, but
+ * never back to the store that reported them.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public interface SessionStore
+{
+    // ===========================================================================
+    /**
+     * Listener used by a store to report sessions that were loaded or received.
+     */
+    interface Listener
+    {
+        // ===========================================================================
+        /**
+         * Invoked when a session has been created or accessed.
+         *
+         * @param session The id of the session.
+         * @param lastAccess The timestamp of the last access.
+         */
+        void sessionUpdated(String session, long lastAccess);
+
+        // ===========================================================================
+        /**
+         * Invoked when data of a session has been stored.
+         *
+         * @param session The id of the session.
+         * @param key The key of the data.
+         * @param data The (possibly null) data. Null means that the data was removed.
+         */
+        void dataUpdated(String session, String key, Object data);
+
+        // ===========================================================================
+        /**
+         * Invoked when a session has been closed or has expired.
+         *
+         * @param session The id of the session.
+         */
+        void sessionRemoved(String session);
+    }
+
+    // ===========================================================================
+    /**
+     * Opens the store. Sessions that are already stored are to be reported to the
+     * given listener before this method returns.
+     *
+     * @param listener The listener to report loaded and received sessions to.
+     */
+    void open(Listener listener);
+
+    // ===========================================================================
+    /**
+     * Closes the store. No further changes will be notified.
+     */
+    void close();
+
+    // ===========================================================================
+    /**
+     * Invoked when a session has been created or accessed. As ticks are coalesced,
+     * this is not invoked on every access.
+     *
+     * @param session The id of the session.
+     * @param lastAccess The timestamp of the last access.
+     */
+    void sessionUpdated(String session, long lastAccess);
+
+    // ===========================================================================
+    /**
+     * Invoked when data of a session has been stored.
+     *
+     * @param session The id of the session.
+     * @param key The key of the data.
+     * @param data The (possibly null) data. Null means that the data was removed.
+     */
+    void dataUpdated(String session, String key, Object data);
+
+    // ===========================================================================
+    /**
+     * Invoked when a session has been closed or has expired.
+     *
+     * @param session The id of the session.
+     */
+    void sessionRemoved(String session);
+}
@@ -18,44 +18,189 @@
  ***************************************************************************/
 package org.gluewine.sessions_impl;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import org.apache.log4j.Logger;
 import org.gluewine.sessions.SessionExpiredException;
 import org.gluewine.sessions.SessionManager;
+import org.gluewine.sessions.SessionListener;
 import org.gluewine.sessions.SessionManagerDataStore;
+import org.gluewine.sessions.SessionStore;
+import org.gluewine.core.RepositoryListener;
 import org.gluewine.core.RunOnActivate;
 import org.gluewine.core.Glue;
 
 /**
  * Simple implementation that stores sessions in a map.
  *
+ * <p>The sessions are stored in a concurrent map, and every session holds its own
+ * timestamp, so that checking and ticking a session never blocks other requests.
+ * A tick only updates the timestamp if the previous update is older than the
+ * configured tick interval.
+ *
+ * <p>Expired sessions are removed using a hashed timer wheel: every session is
+ * stored in the slot of the second it would expire at, and every second only the
+ * sessions in the current slot are inspected. A session that has been ticked
+ * in the meantime is moved to the slot of its new expiry time.
+ *
+ * <p>All changes are passed on to the registered SessionStores, which can persist
+ * them or replicate them to other nodes. Sessions loaded or received by a store are
+ * added to the map.
+ *
+ * <p>Registered SessionListeners are notified as soon as a session is closed or
+ * has expired.
+ *
  * @author fks/Serge de Schaetzen
  *
  */
-public class SessionManagerImpl implements SessionManager, SessionManagerDataStore
+public class SessionManagerImpl implements SessionManager, SessionManagerDataStore, RepositoryListener<Object>
 {
     // ===========================================================================
     /**
-     * The map of sessions and their associated timestamps.
+     * A session and its associated data.
      */
-    private Map<String, Long> sessions = new HashMap<String, Long>();
+    private static final class Session
+    {
+        /**
+         * The timestamp of the last access.
+         */
+        private volatile long lastAccess;
+
+        /**
+         * The user data.
+         */
+        private final Map<String, Object> data = new ConcurrentHashMap<String, Object>();
 
+        // ===========================================================================
+        /**
+         * Creates an instance.
+         *
+         * @param lastAccess The timestamp of the last access.
+         */
+        Session(long lastAccess)
+        {
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    // ===========================================================================
     /**
-     * The map of sessions and their associated user data.
+     * Listener applying the changes reported by a store, and passing them on to
+     * all other stores.
      */
-    private Map<String, Map<String, Object>> sessionData = new HashMap<String, Map<String, Object>>();
+    private final class StoreListener implements SessionStore.Listener
+    {
+        /**
+         * The store reporting the changes.
+         */
+        private final SessionStore source;
+
+        // ===========================================================================
+        /**
+         * Creates an instance.
+         *
+         * @param source The store reporting the changes.
+         */
+        StoreListener(SessionStore source)
+        {
+            this.source = source;
+        }
+
+        // ===========================================================================
+        @Override
+        public void sessionUpdated(String id, long lastAccess)
+        {
+            Session session = sessions.get(id);
+            if (session == null)
+            {
+                session = new Session(lastAccess);
+                sessions.put(id, session);
+                schedule(id, session);
+            }
+            else if (lastAccess > session.lastAccess) session.lastAccess = lastAccess;
+
+            for (SessionStore store : stores)
+            {
+                if (store == source) continue;
+                try
+                {
+                    store.sessionUpdated(id, lastAccess);
+                }
+                catch (RuntimeException e)
+                {
+                    logger.warn("Could not update session in " + store, e);
+                }
+            }
+        }
+
+        // ===========================================================================
+        @Override
+        public void dataUpdated(String id, String key, Object data)
+        {
+            Session session = sessions.get(id);
+            if (session == null) return;
+
+            if (data == null) session.data.remove(key);
+            else session.data.put(key, data);
+            notifyDataUpdated(source, id, key, data);
+        }
+
+        // ===========================================================================
+        @Override
+        public void sessionRemoved(String id)
+        {
+            boolean removed = sessions.remove(id) != null;
+            notifySessionRemoved(source, id);
+            if (removed) fireSessionClosed(id);
+        }
+    }
+
+    /**
+     * The duration of one slot of the wheel, in milliseconds.
+     */
+    private static final long WHEEL_RESOLUTION = 1000L;
+
+    /**
+     * The number of slots in the wheel.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * The map of sessions indexed on their id.
+     */
+    private Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+    /**
+     * The slots of the timer wheel, containing the ids of the sessions expiring
+     * in that slot.
+     */
+    private final Set<String>[] wheel = createWheel();
+
+    /**
+     * The last slot (expressed in ticks since the epoch) that has been processed.
+     */
+    private volatile long lastProcessed = System.currentTimeMillis() / WHEEL_RESOLUTION;
 
     /**
      * Max amount of time in milliseconds that a session can be idle.
      */
-    private long maxIdle = 300000;
+    private volatile long maxIdle = 300000;
+
+    /**
+     * Minimum amount of time in milliseconds between two updates of the timestamp
+     * of a session.
+     */
+    private volatile long tickInterval = 1000;
 
     /**
      * The timer used to check the sessions.
@@ -63,9 +208,24 @@ public class SessionManagerImpl implements SessionManager, SessionManagerDataSto
     private Timer timer = null;
 
     /**
-     * The map of session id indexed on the thread.
+     * The registered stores.
      */
-    private Map<Thread, String> threadSessions = new HashMap<Thread, String>();
+    private final List<SessionStore> stores = new CopyOnWriteArrayList<SessionStore>();
+
+    /**
+     * The registered listeners.
+     */
+    private final List<SessionListener> listeners = new CopyOnWriteArrayList<SessionListener>();
+
+    /**
+     * The logger instance.
+     */
+    private final Logger logger = Logger.getLogger(getClass());
+
+    /**
+     * The session id bound with the current thread.
+     */
+    private final ThreadLocal<String> currentSession = new ThreadLocal<String>();
 
     /**
      * The property file to use.
@@ -85,69 +245,255 @@ public class SessionManagerImpl implements SessionManager, SessionManagerDataSto
             @Override
             public void run()
             {
-                synchronized (sessions)
+                expireSessions();
+            }
+        }, WHEEL_RESOLUTION, WHEEL_RESOLUTION);
+    }
+
+    // ===========================================================================
+    /**
+     * Creates the slots of the timer wheel.
+     *
+     * @return The slots.
+     */
+    @SuppressWarnings("unchecked")
+    private static Set<String>[] createWheel()
+    {
+        Set<String>[] slots = new Set[WHEEL_SIZE];
+        for (int i = 0; i < slots.length; i++)
+            slots[i] = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        return slots;
+    }
+
+    // ===========================================================================
+    /**
+     * Adds the given session to the slot of the wheel matching its expiry time.
+     *
+     * @param id The id of the session.
+     * @param session The session.
+     */
+    private void schedule(String id, Session session)
+    {
+        long tick = (session.lastAccess + maxIdle) / WHEEL_RESOLUTION + 1;
+        tick = Math.max(tick, lastProcessed + 1);
+        wheel[(int) (tick % WHEEL_SIZE)].add(id);
+    }
+
+    // ===========================================================================
+    /**
+     * Processes all slots of the wheel up to the current time. Sessions that have
+     * expired are removed, the others are rescheduled.
+     */
+    private void expireSessions()
+    {
+        long now = System.currentTimeMillis();
+        long current = now / WHEEL_RESOLUTION;
+        long tick = Math.max(lastProcessed + 1, current - WHEEL_SIZE + 1);
+        for (; tick <= current; tick++)
+        {
+            lastProcessed = tick;
+            Set<String> slot = wheel[(int) (tick % WHEEL_SIZE)];
+            for (String id : slot.toArray(new String[0]))
+            {
+                slot.remove(id);
+                Session session = sessions.get(id);
+                if (session == null) continue;
+
+                if (now - session.lastAccess > maxIdle)
                 {
-                    Iterator<Entry<String, Long>> iter = sessions.entrySet().iterator();
-                    while (iter.hasNext())
-                    {
-                        Entry<String, Long> e = iter.next();
-                        if (System.currentTimeMillis() - e.getValue().longValue() > maxIdle)
-                        {
-                            sessionData.remove(e.getKey());
-                            iter.remove();
-                        }
-                    }
+                    sessions.remove(id);
+                    notifySessionRemoved(null, id);
+                    fireSessionExpired(id);
                 }
+                else schedule(id, session);
             }
-        }, 0, 120000L);
+        }
     }
 
     // ===========================================================================
-    @Override
-    public String createNewSession(String user)
+    /**
+     * Returns the session with the given id if it is still valid. If not, a
+     * SessionExpiredException is thrown.
+     *
+     * @param id The id of the session.
+     * @return The session.
+     */
+    private Session getValidSession(String id)
     {
-        synchronized (sessions)
+        Session session = id != null ? sessions.get(id) : null;
+        if (session == null || System.currentTimeMillis() - session.lastAccess >= maxIdle)
+            throw new SessionExpiredException();
+
+        return session;
+    }
+
+    // ===========================================================================
+    /**
+     * Updates the timestamp of the given session, unless it has been updated
+     * less than tickInterval milliseconds ago.
+     *
+     * @param id The id of the session.
+     * @param session The session to update.
+     */
+    private void tick(String id, Session session)
+    {
+        long now = System.currentTimeMillis();
+        if (now - session.lastAccess >= tickInterval)
         {
-            String id = UUID.randomUUID().toString();
-            sessions.put(id, Long.valueOf(System.currentTimeMillis()));
-            putData(id, USERNAME, user);
-            return id;
+            session.lastAccess = now;
+            for (SessionStore store : stores)
+            {
+                try
+                {
+                    store.sessionUpdated(id, now);
+                }
+                catch (RuntimeException e)
+                {
+                    logger.warn("Could not update session in " + store, e);
+                }
+            }
         }
     }
 
     // ===========================================================================
-    @Override
-    public void checkSession(String session)
+    /**
+     * Notifies all stores, except the given source, that data of a session has been
+     * updated.
+     *
+     * @param source The (possibly null) store that reported the change.
+     * @param id The id of the session.
+     * @param key The key of the data.
+     * @param data The (possibly null) data.
+     */
+    private void notifyDataUpdated(SessionStore source, String id, String key, Object data)
+    {
+        for (SessionStore store : stores)
+        {
+            if (store == source) continue;
+            try
+            {
+                store.dataUpdated(id, key, data);
+            }
+            catch (RuntimeException e)
+            {
+                logger.warn("Could not update session data in " + store, e);
+            }
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Notifies all stores, except the given source, that a session has been removed.
+     *
+     * @param source The (possibly null) store that reported the change.
+     * @param id The id of the session.
+     */
+    private void notifySessionRemoved(SessionStore source, String id)
+    {
+        for (SessionStore store : stores)
+        {
+            if (store == source) continue;
+            try
+            {
+                store.sessionRemoved(id);
+            }
+            catch (RuntimeException e)
+            {
+                logger.warn("Could not remove session from " + store, e);
+            }
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Notifies all listeners that the given session has been closed.
+     *
+     * @param id The id of the session.
+     */
+    private void fireSessionClosed(String id)
     {
-        synchronized (sessions)
+        for (SessionListener listener : listeners)
         {
-            boolean valid = false;
-            if (sessions.containsKey(session))
-                valid = System.currentTimeMillis() - sessions.get(session).longValue() < maxIdle;
+            try
+            {
+                listener.sessionClosed(id);
+            }
+            catch (RuntimeException e)
+            {
+                logger.warn("Exception notifying " + listener + " of closed session", e);
+            }
+        }
+    }
 
-            if (!valid) throw new SessionExpiredException();
+    // ===========================================================================
+    /**
+     * Notifies all listeners that the given session has expired.
+     *
+     * @param id The id of the session.
+     */
+    private void fireSessionExpired(String id)
+    {
+        for (SessionListener listener : listeners)
+        {
+            try
+            {
+                listener.sessionExpired(id);
+            }
+            catch (RuntimeException e)
+            {
+                logger.warn("Exception notifying " + listener + " of expired session", e);
+            }
         }
     }
 
     // ===========================================================================
     @Override
-    public void tickSession(String session)
+    public String createNewSession(String user)
     {
-        synchronized (sessions)
+        String id = UUID.randomUUID().toString();
+        Session session = new Session(System.currentTimeMillis());
+        if (user != null) session.data.put(USERNAME, user);
+        sessions.put(id, session);
+        schedule(id, session);
+
+        for (SessionStore store : stores)
         {
-            if (sessions.containsKey(session))
-                sessions.put(session, Long.valueOf(System.currentTimeMillis()));
+            try
+            {
+                store.sessionUpdated(id, session.lastAccess);
+            }
+            catch (RuntimeException e)
+            {
+                logger.warn("Could not update session in " + store, e);
+            }
         }
+        notifyDataUpdated(null, id, USERNAME, user);
+        return id;
+    }
+
+    // ===========================================================================
+    @Override
+    public void checkSession(String session)
+    {
+        getValidSession(session);
+    }
+
+    // ===========================================================================
+    @Override
+    public void tickSession(String session)
+    {
+        Session s = session != null ? sessions.get(session) : null;
+        if (s != null) tick(session, s);
     }
 
     // ===========================================================================
     @Override
     public void closeSession(String session)
     {
-        synchronized (sessions)
+        if (session != null && sessions.remove(session) != null)
         {
-            sessions.remove(session);
-            sessionData.remove(session);
+            notifySessionRemoved(null, session);
+            fireSessionClosed(session);
         }
     }
 
@@ -155,69 +501,51 @@ public class SessionManagerImpl implements SessionManager, SessionManagerDataSto
     @Override
     public void checkAndTickSession(String session)
     {
-        checkSession(session);
-        tickSession(session);
+        tick(session, getValidSession(session));
     }
 
     // ===========================================================================
     @Override
     public void setCurrentSessionId(String session)
     {
-        synchronized (threadSessions)
-        {
-            threadSessions.put(Thread.currentThread(), session);
-        }
+        if (session != null) currentSession.set(session);
+        else currentSession.remove();
     }
 
     // ===========================================================================
     @Override
     public void clearCurrentSessionId()
     {
-        synchronized (threadSessions)
-        {
-            threadSessions.remove(Thread.currentThread());
-        }
+        currentSession.remove();
     }
 
     // ===========================================================================
     @Override
     public String getCurrentSessionId()
     {
-        synchronized (threadSessions)
-        {
-            return threadSessions.get(Thread.currentThread());
-        }
+        return currentSession.get();
     }
 
     // ===========================================================================
     @Override
     public void putData(String session, String key, Object data) throws SessionExpiredException
     {
-        synchronized (sessions)
-        {
-            checkAndTickSession(session);
-            Map dataMap = sessionData.get(session);
-            if (dataMap == null)
-            {
-                dataMap = new HashMap<String, Object>();
-                sessionData.put(session, dataMap);
-            }
-            dataMap.put(key, data);
-        }
+        Session s = getValidSession(session);
+        tick(session, s);
+        // The concurrent map does not accept null values, storing null is the
+        // same as removing the data.
+        if (data == null) s.data.remove(key);
+        else s.data.put(key, data);
+        notifyDataUpdated(null, session, key, data);
     }
 
     // ===========================================================================
     @Override
     public Object getData(String session, String key) throws SessionExpiredException
     {
-        synchronized (sessions)
-        {
-            checkAndTickSession(session);
-            Map dataMap = sessionData.get(session);
-            if (dataMap == null)
-                return null;
-            return dataMap.get(key);
-        }
+        Session s = getValidSession(session);
+        tick(session, s);
+        return s.data.get(key);
     }
 
     // ===========================================================================
@@ -228,5 +556,59 @@ public class SessionManagerImpl implements SessionManager, SessionManagerDataSto
     public void propertiesChanged()
     {
         maxIdle = Long.parseLong(properties.getProperty("maxidle", "300")) * 1000;
+        tickInterval = Long.parseLong(properties.getProperty("tickinterval", "1000"));
+    }
+
+    // ===========================================================================
+    @Override
+    public void registered(Object t)
+    {
+        if (t instanceof SessionListener) listeners.add((SessionListener) t);
+
+        if (t instanceof SessionStore)
+        {
+            // The store is opened before it is added, so that the sessions it loads
+            // are not written back to it. The sessions that existed before are sent to
+            // it once added, as it is only notified of their next changes otherwise.
+            SessionStore store = (SessionStore) t;
+            Set<String> existing = new HashSet<String>(sessions.keySet());
+            store.open(new StoreListener(store));
+            stores.add(store);
+            for (String id : existing)
+                replay(store, id);
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Sends the given session and all its data to the given store.
+     *
+     * @param store The store to update.
+     * @param id The id of the session.
+     */
+    private void replay(SessionStore store, String id)
+    {
+        Session session = sessions.get(id);
+        if (session == null) return;
+
+        try
+        {
+            store.sessionUpdated(id, session.lastAccess);
+            for (Map.Entry<String, Object> e : session.data.entrySet())
+                store.dataUpdated(id, e.getKey(), e.getValue());
+        }
+        catch (RuntimeException e)
+        {
+            logger.warn("Could not update session in " + store, e);
+        }
+    }
+
+    // ===========================================================================
+    @Override
+    public void unregistered(Object t)
+    {
+        if (t instanceof SessionListener) listeners.remove(t);
+
+        if (t instanceof SessionStore && stores.remove(t)) ((SessionStore) t).close();
     }
 }
@@ -0,0 +1,374 @@
+/**************************************************************************
+ *
+ * Gluewine Session Store Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.sessions_store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.gluewine.sessions.SessionStore;
+
+/**
+ * Encodes and decodes the changes of sessions. The same records are used for the
+ * journal of the MappedSessionStore and the messages sent by the ReplicatingSessionStore.
+ *
+ * <p>Every record starts with its type and the id of the session, followed by:
+ * <ul>
+ * <li>UPDATED: the timestamp of the last access.</li>
+ * <li>DATA: the key, the length of the serialized data and the data itself. A length
+ *     of -1 means that the data was removed.</li>
+ * <li>REMOVED: nothing.</li>
+ * </ul>
+ *
+ * <p>Only classes from java.lang, java.util and java.math, and the packages or classes
+ * listed in the allowed.classes property of sessionstore.properties are deserialized.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+final class DeltaCodec
+{
+    // ===========================================================================
+    /**
+     * Type of record indicating that a session was created or accessed.
+     */
+    static final byte UPDATED = 1;
+
+    /**
+     * Type of record indicating that data of a session was stored.
+     */
+    static final byte DATA = 2;
+
+    /**
+     * Type of record indicating that a session was removed.
+     */
+    static final byte REMOVED = 3;
+
+    /**
+     * The packages that can always be deserialized.
+     */
+    private static final List<String> DEFAULT_ALLOWED = Arrays.asList("java.lang.", "java.util.", "java.math.");
+
+    // ===========================================================================
+    /**
+     * Object input stream that falls back to the context classloader, as the data
+     * may be an instance of a class from any bundle. Only allowed classes are
+     * resolved.
+     */
+    private static final class ContextObjectInputStream extends ObjectInputStream
+    {
+        /**
+         * The allowed packages, ending with a dot, and classes.
+         */
+        private final List<String> allowed;
+
+        // ===========================================================================
+        /**
+         * Creates an instance.
+         *
+         * @param in The stream to read from.
+         * @param allowed The allowed packages and classes.
+         * @throws IOException If the stream header could not be read.
+         */
+        ContextObjectInputStream(InputStream in, List<String> allowed) throws IOException
+        {
+            super(in);
+            this.allowed = allowed;
+        }
+
+        // ===========================================================================
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+        {
+            String name = desc.getName();
+            while (name.startsWith("[")) name = name.substring(1);
+            // Arrays of objects are named [Lclassname;
+            if (name.startsWith("L") && name.endsWith(";")) name = name.substring(1, name.length() - 1);
+            if (!isAllowed(name)) throw new InvalidClassException(desc.getName(), "Class not allowed in session data");
+
+            try
+            {
+                return super.resolveClass(desc);
+            }
+            catch (ClassNotFoundException e)
+            {
+                ClassLoader loader = Thread.currentThread().getContextClassLoader();
+                if (loader == null) throw e;
+                return Class.forName(desc.getName(), false, loader);
+            }
+        }
+
+        // ===========================================================================
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException
+        {
+            throw new InvalidClassException("Proxy classes are not allowed in session data");
+        }
+
+        // ===========================================================================
+        /**
+         * Returns true if the given class can be deserialized. Primitive types, and
+         * thus arrays of primitives, are named with a single letter.
+         *
+         * @param name The name of the class.
+         * @return True if allowed.
+         */
+        private boolean isAllowed(String name)
+        {
+            if (name.length() == 1) return true;
+
+            for (String a : allowed)
+            {
+                if (a.endsWith(".") ? name.startsWith(a) : name.equals(a)) return true;
+            }
+            return false;
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Utility class.
+     */
+    private DeltaCodec()
+    {
+    }
+
+    // ===========================================================================
+    /**
+     * Returns the packages and classes that can be deserialized: the defaults and
+     * those listed, comma separated, in the allowed.classes property. Packages are
+     * listed with a trailing '*', e.g. com.acme.*.
+     *
+     * @param properties The (possibly null) properties of the store.
+     * @return The allowed packages, ending with a dot, and classes.
+     */
+    static List<String> allowedClasses(Properties properties)
+    {
+        List<String> allowed = new ArrayList<String>(DEFAULT_ALLOWED);
+        if (properties == null) return allowed;
+
+        for (String name : properties.getProperty("allowed.classes", "").split(","))
+        {
+            name = name.trim();
+            if (name.endsWith("*")) name = name.substring(0, name.length() - 1);
+            if (name.length() > 0) allowed.add(name);
+        }
+        return allowed;
+    }
+
+    // ===========================================================================
+    /**
+     * Encodes an UPDATED record.
+     *
+     * @param session The id of the session.
+     * @param lastAccess The timestamp of the last access.
+     * @return The record.
+     */
+    static byte[] sessionUpdated(String session, long lastAccess)
+    {
+        try
+        {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bout);
+            out.writeByte(UPDATED);
+            out.writeUTF(session);
+            out.writeLong(lastAccess);
+            out.flush();
+            return bout.toByteArray();
+        }
+        catch (IOException e)
+        {
+            // Cannot happen with a ByteArrayOutputStream.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Encodes a DATA record.
+     *
+     * @param session The id of the session.
+     * @param key The key of the data.
+     * @param data The (possibly null) data.
+     * @return The record.
+     * @throws IOException If the data could not be serialized.
+     */
+    static byte[] dataUpdated(String session, String key, Object data) throws IOException
+    {
+        byte[] serialized = null;
+        if (data != null)
+        {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(128);
+            ObjectOutputStream out = new ObjectOutputStream(bout);
+            out.writeObject(data);
+            out.close();
+            serialized = bout.toByteArray();
+        }
+
+        return dataRecord(session, key, serialized);
+    }
+
+    // ===========================================================================
+    /**
+     * Encodes a DATA record using data that has already been serialized.
+     *
+     * @param session The id of the session.
+     * @param key The key of the data.
+     * @param serialized The (possibly null) serialized data.
+     * @return The record.
+     */
+    static byte[] dataRecord(String session, String key, byte[] serialized)
+    {
+        try
+        {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(128 + (serialized != null ? serialized.length : 0));
+            DataOutputStream out = new DataOutputStream(bout);
+            out.writeByte(DATA);
+            out.writeUTF(session);
+            out.writeUTF(key);
+            if (serialized != null)
+            {
+                out.writeInt(serialized.length);
+                out.write(serialized);
+            }
+            else out.writeInt(-1);
+            out.flush();
+            return bout.toByteArray();
+        }
+        catch (IOException e)
+        {
+            // Cannot happen with a ByteArrayOutputStream.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Encodes a REMOVED record.
+     *
+     * @param session The id of the session.
+     * @return The record.
+     */
+    static byte[] sessionRemoved(String session)
+    {
+        try
+        {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bout);
+            out.writeByte(REMOVED);
+            out.writeUTF(session);
+            out.flush();
+            return bout.toByteArray();
+        }
+        catch (IOException e)
+        {
+            // Cannot happen with a ByteArrayOutputStream.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Deserializes the given data.
+     *
+     * @param serialized The (possibly null) serialized data.
+     * @param allowed The packages and classes that can be deserialized.
+     * @return The (possibly null) data.
+     * @throws IOException If the data could not be read, or contains a class that is not allowed.
+     * @throws ClassNotFoundException If the class of the data is unknown.
+     */
+    static Object deserialize(byte[] serialized, List<String> allowed) throws IOException, ClassNotFoundException
+    {
+        if (serialized == null) return null;
+
+        ObjectInputStream in = new ContextObjectInputStream(new ByteArrayInputStream(serialized), allowed);
+        try
+        {
+            return in.readObject();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Decodes the given record and reports it to the listener.
+     *
+     * @param record The record to decode.
+     * @param listener The listener to notify.
+     * @param allowed The packages and classes that can be deserialized.
+     * @throws IOException If the record is invalid.
+     * @throws ClassNotFoundException If the class of the data is unknown.
+     */
+    static void decode(byte[] record, SessionStore.Listener listener, List<String> allowed) throws IOException, ClassNotFoundException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        String session = in.readUTF();
+        switch (type)
+        {
+            case UPDATED:
+                listener.sessionUpdated(session, in.readLong());
+                break;
+
+            case DATA:
+                String key = in.readUTF();
+                listener.dataUpdated(session, key, deserialize(readData(in), allowed));
+                break;
+
+            case REMOVED:
+                listener.sessionRemoved(session);
+                break;
+
+            default:
+                throw new IOException("Invalid record type " + type);
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Reads the serialized data of a DATA record.
+     *
+     * @param in The stream to read from, positioned after the key.
+     * @return The (possibly null) serialized data.
+     * @throws IOException If the data could not be read.
+     */
+    static byte[] readData(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0) return null;
+
+        byte[] serialized = new byte[length];
+        in.readFully(serialized);
+        return serialized;
+    }
+}
@@ -0,0 +1,546 @@
+/**************************************************************************
+ *
+ * Gluewine Session Store Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.sessions_store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+import org.gluewine.core.Glue;
+import org.gluewine.sessions.SessionStore;
+
+/**
+ * SessionStore that keeps a journal of all changes in a memory mapped file, so that
+ * sessions survive a restart. Writing a change is a copy into the mapped region; the
+ * operating system takes care of writing it to disk.
+ *
+ * <p>Changes are queued and written by a single thread, so that requests never wait
+ * for the journal, unless the queue is full.
+ *
+ * <p>When the store is opened, the journal is replayed and rewritten so that it only
+ * contains the current state of every session. The same happens, on the writing thread,
+ * when the mapped region is full. The region is enlarged if it is still more than half full afterwards.
+ *
+ * <p>The following properties can be specified in sessionstore.properties:
+ * <ul>
+ * <li>mapped.file: the journal file, defaults to sessions.dat.</li>
+ * <li>mapped.size: the initial size of the mapped region in bytes, defaults to 16MB.</li>
+ * <li>mapped.sync: if true, the changes are forced to disk as soon as they are written,
+ *     defaults to false.</li>
+ * <li>mapped.queuesize: the maximum number of queued changes, defaults to 10000.</li>
+ * <li>allowed.classes: the packages (ending with *) and classes, other than those of
+ *     java.lang, java.util and java.math, that can be restored.</li>
+ * </ul>
+ *
+ * Data that is not serializable is not stored.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public class MappedSessionStore implements SessionStore
+{
+    // ===========================================================================
+    /**
+     * The state of a session read from the journal.
+     */
+    private static final class StoredSession
+    {
+        /**
+         * The timestamp of the last access.
+         */
+        private long lastAccess;
+
+        /**
+         * The serialized data indexed on their key.
+         */
+        private final Map<String, byte[]> data = new LinkedHashMap<String, byte[]>();
+    }
+
+    /**
+     * The default size of the mapped region.
+     */
+    private static final int DEFAULT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Queued to stop the writing thread.
+     */
+    private static final byte[] CLOSE = new byte[0];
+
+    /**
+     * The property file to use.
+     */
+    @Glue(properties = "sessionstore.properties", optional = true)
+    private Properties properties;
+
+    /**
+     * The journal file.
+     */
+    private File file = null;
+
+    /**
+     * The mapped region of the journal. Null if the store is closed. Only used by the
+     * writing thread once the store is open.
+     */
+    private MappedByteBuffer buffer = null;
+
+    /**
+     * The changes to write. Null if the store is closed.
+     */
+    private volatile BlockingQueue<byte[]> queue = null;
+
+    /**
+     * The thread writing the changes.
+     */
+    private Thread writer = null;
+
+    /**
+     * The initial size of the mapped region.
+     */
+    private int initialSize = DEFAULT_SIZE;
+
+    /**
+     * Flag indicating that every change must be forced to disk.
+     */
+    private boolean sync = false;
+
+    /**
+     * The logger instance.
+     */
+    private Logger logger = Logger.getLogger(getClass());
+
+    // ===========================================================================
+    @Override
+    public synchronized void open(Listener listener)
+    {
+        file = new File(properties.getProperty("mapped.file", "sessions.dat"));
+        initialSize = Integer.parseInt(properties.getProperty("mapped.size", Integer.toString(DEFAULT_SIZE)));
+        sync = Boolean.parseBoolean(properties.getProperty("mapped.sync", "false"));
+        List<String> allowed = DeltaCodec.allowedClasses(properties);
+
+        try
+        {
+            Map<String, StoredSession> stored = read();
+            for (Entry<String, StoredSession> e : stored.entrySet())
+            {
+                listener.sessionUpdated(e.getKey(), e.getValue().lastAccess);
+                for (Entry<String, byte[]> d : e.getValue().data.entrySet())
+                {
+                    try
+                    {
+                        listener.dataUpdated(e.getKey(), d.getKey(), DeltaCodec.deserialize(d.getValue(), allowed));
+                    }
+                    catch (ClassNotFoundException ex)
+                    {
+                        logger.warn("Could not restore data " + d.getKey() + " of session " + e.getKey(), ex);
+                    }
+                    catch (IOException ex)
+                    {
+                        logger.warn("Could not restore data " + d.getKey() + " of session " + e.getKey(), ex);
+                    }
+                }
+            }
+
+            if (!stored.isEmpty()) logger.info("Restored " + stored.size() + " sessions from " + file.getAbsolutePath());
+            rewrite(stored, initialSize);
+
+            final BlockingQueue<byte[]> q = new LinkedBlockingQueue<byte[]>(Integer.parseInt(properties.getProperty("mapped.queuesize", "10000")));
+            writer = new Thread("Session journal " + file.getName())
+            {
+                @Override
+                public void run()
+                {
+                    write(q);
+                }
+            };
+            writer.setDaemon(true);
+            writer.start();
+            queue = q;
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not open session store " + file.getAbsolutePath(), e);
+            buffer = null;
+        }
+    }
+
+    // ===========================================================================
+    @Override
+    public synchronized void close()
+    {
+        BlockingQueue<byte[]> q = queue;
+        if (q == null) return;
+
+        queue = null;
+        boolean interrupted = false;
+        while (writer.isAlive())
+        {
+            try
+            {
+                q.put(CLOSE);
+                writer.join();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        writer = null;
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // ===========================================================================
+    @Override
+    public void sessionUpdated(String session, long lastAccess)
+    {
+        append(DeltaCodec.sessionUpdated(session, lastAccess));
+    }
+
+    // ===========================================================================
+    @Override
+    public void dataUpdated(String session, String key, Object data)
+    {
+        byte[] record = null;
+        try
+        {
+            record = DeltaCodec.dataUpdated(session, key, data);
+        }
+        catch (IOException e)
+        {
+            // Make sure that a previously stored value is not restored.
+            logger.debug("Data " + key + " of session " + session + " is not serializable", e);
+            record = DeltaCodec.dataRecord(session, key, null);
+        }
+        append(record);
+    }
+
+    // ===========================================================================
+    @Override
+    public void sessionRemoved(String session)
+    {
+        append(DeltaCodec.sessionRemoved(session));
+    }
+
+    // ===========================================================================
+    /**
+     * Queues the given record, waiting if the queue is full.
+     *
+     * @param record The record to append.
+     */
+    private void append(byte[] record)
+    {
+        BlockingQueue<byte[]> q = queue;
+        if (q == null) return;
+
+        try
+        {
+            q.put(record);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Writes the queued records until the store is closed. The records queued at
+     * the same time are written together, and forced to disk at once if required.
+     * If the journal could not be written, the records are discarded so that
+     * requests are not blocked.
+     *
+     * @param q The queue to take the records from.
+     */
+    private void write(BlockingQueue<byte[]> q)
+    {
+        List<byte[]> records = new ArrayList<byte[]>();
+        while (true)
+        {
+            try
+            {
+                records.add(q.take());
+            }
+            catch (InterruptedException e)
+            {
+                records.add(CLOSE);
+            }
+            q.drainTo(records);
+
+            for (byte[] record : records)
+            {
+                if (record == CLOSE)
+                {
+                    if (buffer != null) buffer.force();
+                    buffer = null;
+                    return;
+                }
+                write(record);
+            }
+            records.clear();
+
+            try
+            {
+                if (sync && buffer != null) buffer.force();
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Could not force session store " + file.getAbsolutePath() + " to disk", e);
+            }
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Appends the given record to the journal. Every record is preceded by its length,
+     * and the journal is terminated by a length of 0. The length is written after
+     * the record, so that a partially written record is never replayed.
+     *
+     * @param record The record to append.
+     */
+    private void write(byte[] record)
+    {
+        if (buffer == null) return;
+
+        try
+        {
+            if (buffer.remaining() < record.length + 8)
+            {
+                compact();
+                if (buffer.remaining() < record.length + 8) remap(buffer.capacity() * 2 + record.length);
+            }
+
+            int pos = buffer.position();
+            buffer.position(pos + 4);
+            buffer.put(record);
+            buffer.putInt(pos + 4 + record.length, 0);
+            buffer.putInt(pos, record.length);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            logger.error("Could not write to session store " + file.getAbsolutePath() + ", the store is closed.", e);
+            buffer = null;
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Rewrites the journal so that it only contains the current state.
+     *
+     * @throws IOException If the journal could not be rewritten.
+     */
+    private void compact() throws IOException
+    {
+        buffer.force();
+        int capacity = buffer.capacity();
+        buffer = null;
+        rewrite(read(), capacity);
+    }
+
+    // ===========================================================================
+    /**
+     * Maps the journal using the given size, keeping the current position.
+     *
+     * @param size The new size.
+     * @throws IOException If the file could not be mapped.
+     */
+    private void remap(int size) throws IOException
+    {
+        int pos = buffer.position();
+        buffer.force();
+        map(size, pos);
+    }
+
+    // ===========================================================================
+    /**
+     * Maps the journal.
+     *
+     * @param size The size of the mapped region.
+     * @param pos The position to append the next record at.
+     * @throws IOException If the file could not be mapped.
+     */
+    private void map(int size, int pos) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            // The mapping stays valid after the file has been closed.
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.position(pos);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Replays the journal and returns the current state of all sessions.
+     *
+     * @return The sessions indexed on their id.
+     * @throws IOException If the journal could not be read.
+     */
+    private Map<String, StoredSession> read() throws IOException
+    {
+        Map<String, StoredSession> stored = new LinkedHashMap<String, StoredSession>();
+        if (!file.exists()) return stored;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            while (true)
+            {
+                int length = in.readInt();
+                if (length <= 0) break;
+
+                byte[] record = new byte[length];
+                in.readFully(record);
+                apply(stored, record);
+            }
+        }
+        catch (EOFException e)
+        {
+            // The end of the journal has been reached.
+            logger.trace("End of journal " + file.getAbsolutePath());
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return stored;
+    }
+
+    // ===========================================================================
+    /**
+     * Applies the given record on the stored sessions.
+     *
+     * @param stored The sessions to update.
+     * @param record The record to apply.
+     * @throws IOException If the record is invalid.
+     */
+    private static void apply(Map<String, StoredSession> stored, byte[] record) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        String id = in.readUTF();
+        StoredSession session = stored.get(id);
+        switch (type)
+        {
+            case DeltaCodec.UPDATED:
+                if (session == null)
+                {
+                    session = new StoredSession();
+                    stored.put(id, session);
+                }
+                session.lastAccess = Math.max(session.lastAccess, in.readLong());
+                break;
+
+            case DeltaCodec.DATA:
+                String key = in.readUTF();
+                byte[] data = DeltaCodec.readData(in);
+                if (session != null)
+                {
+                    if (data != null) session.data.put(key, data);
+                    else session.data.remove(key);
+                }
+                break;
+
+            case DeltaCodec.REMOVED:
+                stored.remove(id);
+                break;
+
+            default:
+                throw new IOException("Invalid record type " + type);
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Writes the given sessions to a new journal, replaces the current journal with it
+     * and maps it. The new journal is mapped with the given size, or twice the size of
+     * its content if that is larger.
+     *
+     * @param stored The sessions to write.
+     * @param size The minimum size of the mapped region.
+     * @throws IOException If the journal could not be written.
+     */
+    private void rewrite(Map<String, StoredSession> stored, int size) throws IOException
+    {
+        List<byte[]> records = new ArrayList<byte[]>();
+        int length = 0;
+        for (Entry<String, StoredSession> e : stored.entrySet())
+        {
+            byte[] record = DeltaCodec.sessionUpdated(e.getKey(), e.getValue().lastAccess);
+            records.add(record);
+            length += record.length + 4;
+            for (Entry<String, byte[]> d : e.getValue().data.entrySet())
+            {
+                record = DeltaCodec.dataRecord(e.getKey(), d.getKey(), d.getValue());
+                records.add(record);
+                length += record.length + 4;
+            }
+        }
+
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        FileOutputStream fout = new FileOutputStream(tmp);
+        try
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout));
+            for (byte[] record : records)
+            {
+                out.writeInt(record.length);
+                out.write(record);
+            }
+            out.writeInt(0);
+            out.flush();
+            fout.getFD().sync();
+        }
+        finally
+        {
+            fout.close();
+        }
+
+        if (!tmp.renameTo(file))
+        {
+            if (!file.delete() || !tmp.renameTo(file))
+                throw new IOException("Could not replace " + file.getAbsolutePath());
+        }
+
+        map(Math.max(size, length * 2 + 8), length);
+    }
+}
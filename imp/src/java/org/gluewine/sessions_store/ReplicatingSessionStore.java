@@ -0,0 +1,618 @@
+/**************************************************************************
+ *
+ * Gluewine Session Store Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.sessions_store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+import org.gluewine.core.Glue;
+import org.gluewine.sessions.SessionStore;
+
+/**
+ * SessionStore that ships all changes to the other nodes of a cluster, and applies
+ * the changes it receives from them.
+ *
+ * <p>Every node listens on a port, and sends its own changes to all configured peers.
+ * Changes are queued per peer and sent by a dedicated thread, so that a slow or
+ * unreachable peer never delays a request. If the queue of a peer is full, changes are
+ * dropped. Replication is therefore best effort: a node that was down misses the changes
+ * made in the meantime, unless it restores them from a MappedSessionStore.
+ *
+ * <p>Only connections from the configured peers are accepted, as the received data is
+ * deserialized. In addition, all nodes share a secret: when a peer connects, the node
+ * sends it a random challenge, and every record the peer sends is followed by an
+ * HMAC-SHA256 of the challenge, the sequence number of the record and the record
+ * itself. The connection is closed on the first record with an invalid HMAC, so that
+ * records can neither be forged nor replayed. Received data is further restricted to
+ * the classes allowed by the DeltaCodec.
+ *
+ * <p>The following properties can be specified in sessionstore.properties:
+ * <ul>
+ * <li>replication.port: the port to listen on. Replication is disabled if not specified.</li>
+ * <li>replication.peers: comma separated list of host:port of the other nodes.</li>
+ * <li>replication.secret: the secret shared by all nodes. Replication is disabled if not specified.</li>
+ * <li>replication.queuesize: the maximum number of changes queued per peer, defaults to 10000.</li>
+ * <li>replication.retry: the delay in milliseconds before reconnecting to a peer, defaults to 5000.</li>
+ * <li>allowed.classes: the packages (ending with *) and classes, other than those of
+ *     java.lang, java.util and java.math, that can be received.</li>
+ * </ul>
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public class ReplicatingSessionStore implements SessionStore
+{
+    // ===========================================================================
+    /**
+     * Sends the queued changes to one peer.
+     */
+    private final class Peer extends Thread
+    {
+        /**
+         * The host of the peer.
+         */
+        private final String host;
+
+        /**
+         * The port of the peer.
+         */
+        private final int port;
+
+        /**
+         * The changes to send.
+         */
+        private final BlockingQueue<byte[]> queue;
+
+        /**
+         * The number of changes that have been dropped.
+         */
+        private final AtomicLong dropped = new AtomicLong();
+
+        /**
+         * The current connection.
+         */
+        private volatile Socket socket = null;
+
+        // ===========================================================================
+        /**
+         * Creates an instance.
+         *
+         * @param host The host of the peer.
+         * @param port The port of the peer.
+         * @param queueSize The maximum number of queued changes.
+         */
+        Peer(String host, int port, int queueSize)
+        {
+            super("Session replication to " + host + ":" + port);
+            setDaemon(true);
+            this.host = host;
+            this.port = port;
+            this.queue = new LinkedBlockingQueue<byte[]>(queueSize);
+        }
+
+        // ===========================================================================
+        /**
+         * Queues the given change.
+         *
+         * @param record The change to send.
+         */
+        void send(byte[] record)
+        {
+            if (!queue.offer(record) && dropped.incrementAndGet() % 1000 == 1)
+                logger.warn("Replication queue of " + getName() + " is full, " + dropped.get() + " changes dropped");
+        }
+
+        // ===========================================================================
+        @Override
+        public void run()
+        {
+            byte[] record = null;
+            DataOutputStream out = null;
+            Mac mac = null;
+            byte[] challenge = new byte[CHALLENGE];
+            long sequence = 0;
+            while (running)
+            {
+                try
+                {
+                    if (record == null) record = queue.take();
+
+                    if (out == null)
+                    {
+                        socket = new Socket();
+                        socket.connect(new InetSocketAddress(host, port), retry);
+                        socket.setSoTimeout(retry);
+                        new DataInputStream(socket.getInputStream()).readFully(challenge);
+                        socket.setSoTimeout(0);
+                        if (mac == null) mac = createMac();
+                        sequence = 0;
+                        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                        logger.info("Replicating sessions to " + host + ":" + port);
+                    }
+
+                    out.writeInt(record.length);
+                    out.write(record);
+                    out.write(sign(mac, challenge, sequence++, record));
+                    record = null;
+                    if (queue.isEmpty()) out.flush();
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+                catch (GeneralSecurityException e)
+                {
+                    logger.error("Could not sign replicated sessions, replication to " + host + ":" + port + " stopped", e);
+                    break;
+                }
+                catch (IOException e)
+                {
+                    if (!running) break;
+                    logger.warn("Could not replicate sessions to " + host + ":" + port + ": " + e.getMessage());
+                    closeSocket();
+                    out = null;
+                    try
+                    {
+                        Thread.sleep(retry);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        break;
+                    }
+                }
+            }
+            closeSocket();
+        }
+
+        // ===========================================================================
+        /**
+         * Closes the current connection, if any.
+         */
+        void closeSocket()
+        {
+            Socket s = socket;
+            socket = null;
+            if (s != null)
+            {
+                try
+                {
+                    s.close();
+                }
+                catch (IOException e)
+                {
+                    logger.debug("Could not close connection to " + host + ":" + port, e);
+                }
+            }
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Reads the changes sent by one peer.
+     */
+    private final class Receiver extends Thread
+    {
+        /**
+         * The connection to read from.
+         */
+        private final Socket socket;
+
+        // ===========================================================================
+        /**
+         * Creates an instance.
+         *
+         * @param socket The connection to read from.
+         */
+        Receiver(Socket socket)
+        {
+            super("Session replication from " + socket.getRemoteSocketAddress());
+            setDaemon(true);
+            this.socket = socket;
+        }
+
+        // ===========================================================================
+        @Override
+        public void run()
+        {
+            try
+            {
+                Mac mac = createMac();
+                byte[] challenge = new byte[CHALLENGE];
+                random.nextBytes(challenge);
+                socket.getOutputStream().write(challenge);
+                socket.getOutputStream().flush();
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                byte[] signature = new byte[mac.getMacLength()];
+                long sequence = 0;
+                while (running)
+                {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD) throw new IOException("Invalid record length " + length);
+
+                    byte[] record = new byte[length];
+                    in.readFully(record);
+                    in.readFully(signature);
+                    if (!MessageDigest.isEqual(signature, sign(mac, challenge, sequence++, record)))
+                        throw new IOException("Invalid record signature");
+
+                    Listener l = listener;
+                    if (l == null) break;
+                    try
+                    {
+                        DeltaCodec.decode(record, l, allowed);
+                    }
+                    catch (ClassNotFoundException | InvalidClassException e)
+                    {
+                        logger.warn("Could not apply replicated session data", e);
+                    }
+                }
+            }
+            catch (EOFException e)
+            {
+                logger.info("Peer " + socket.getRemoteSocketAddress() + " disconnected");
+            }
+            catch (IOException e)
+            {
+                if (running) logger.warn("Lost connection with peer " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+            }
+            catch (GeneralSecurityException e)
+            {
+                logger.error("Could not verify replicated sessions", e);
+            }
+            finally
+            {
+                receivers.remove(this);
+                close(socket);
+            }
+        }
+    }
+
+    /**
+     * The maximum length of a received record.
+     */
+    private static final int MAX_RECORD = 16 * 1024 * 1024;
+
+    /**
+     * The length of the challenge sent to connecting peers.
+     */
+    private static final int CHALLENGE = 16;
+
+    /**
+     * The algorithm used to sign the records.
+     */
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * The generator of the challenges.
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * The property file to use.
+     */
+    @Glue(properties = "sessionstore.properties", optional = true)
+    private Properties properties;
+
+    /**
+     * The listener to report received changes to.
+     */
+    private volatile Listener listener = null;
+
+    /**
+     * The peers to send changes to.
+     */
+    private final List<Peer> peers = new CopyOnWriteArrayList<Peer>();
+
+    /**
+     * The threads reading changes from peers.
+     */
+    private final Set<Receiver> receivers = Collections.synchronizedSet(new HashSet<Receiver>());
+
+    /**
+     * The addresses of the peers, used to validate incoming connections.
+     */
+    private final Set<InetAddress> peerAddresses = new HashSet<InetAddress>();
+
+    /**
+     * The server socket accepting connections from peers.
+     */
+    private ServerSocket server = null;
+
+    /**
+     * Flag indicating that the store is open.
+     */
+    private volatile boolean running = false;
+
+    /**
+     * The delay in milliseconds before reconnecting to a peer.
+     */
+    private int retry = 5000;
+
+    /**
+     * The key used to sign the records.
+     */
+    private SecretKeySpec key = null;
+
+    /**
+     * The packages and classes that can be received.
+     */
+    private List<String> allowed = null;
+
+    /**
+     * The logger instance.
+     */
+    private Logger logger = Logger.getLogger(getClass());
+
+    // ===========================================================================
+    @Override
+    public synchronized void open(Listener l)
+    {
+        String port = properties.getProperty("replication.port");
+        if (port == null || port.trim().length() == 0)
+        {
+            logger.info("No replication.port specified, sessions are not replicated.");
+            return;
+        }
+
+        String secret = properties.getProperty("replication.secret");
+        if (secret == null || secret.length() == 0)
+        {
+            logger.error("No replication.secret specified, sessions are not replicated.");
+            return;
+        }
+
+        key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        allowed = DeltaCodec.allowedClasses(properties);
+        this.listener = l;
+        retry = Integer.parseInt(properties.getProperty("replication.retry", "5000"));
+        int queueSize = Integer.parseInt(properties.getProperty("replication.queuesize", "10000"));
+        running = true;
+
+        for (String peer : properties.getProperty("replication.peers", "").split(","))
+        {
+            peer = peer.trim();
+            if (peer.length() == 0) continue;
+
+            int i = peer.lastIndexOf(':');
+            if (i < 0) throw new IllegalArgumentException("Invalid peer " + peer + ", expected host:port");
+            String host = peer.substring(0, i);
+            try
+            {
+                for (InetAddress address : InetAddress.getAllByName(host))
+                    peerAddresses.add(address);
+            }
+            catch (UnknownHostException e)
+            {
+                logger.warn("Could not resolve peer " + host, e);
+            }
+
+            Peer p = new Peer(host, Integer.parseInt(peer.substring(i + 1)), queueSize);
+            peers.add(p);
+            p.start();
+        }
+
+        try
+        {
+            server = new ServerSocket(Integer.parseInt(port.trim()));
+            Thread acceptor = new Thread("Session replication server on port " + port.trim())
+            {
+                @Override
+                public void run()
+                {
+                    accept();
+                }
+            };
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not listen on port " + port + ", replicated sessions will not be received.", e);
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Accepts connections from peers until the store is closed.
+     */
+    private void accept()
+    {
+        ServerSocket ss = server;
+        while (running && ss != null)
+        {
+            try
+            {
+                Socket socket = ss.accept();
+                if (!peerAddresses.contains(socket.getInetAddress()))
+                {
+                    logger.warn("Refused replication connection from " + socket.getRemoteSocketAddress());
+                    close(socket);
+                    continue;
+                }
+
+                Receiver receiver = new Receiver(socket);
+                receivers.add(receiver);
+                receiver.start();
+            }
+            catch (IOException e)
+            {
+                if (running) logger.warn("Could not accept replication connection", e);
+            }
+        }
+    }
+
+    // ===========================================================================
+    @Override
+    public synchronized void close()
+    {
+        running = false;
+        listener = null;
+
+        if (server != null)
+        {
+            try
+            {
+                server.close();
+            }
+            catch (IOException e)
+            {
+                logger.debug("Could not close the replication server", e);
+            }
+            server = null;
+        }
+
+        for (Peer p : peers)
+        {
+            p.interrupt();
+            p.closeSocket();
+        }
+        peers.clear();
+
+        synchronized (receivers)
+        {
+            for (Receiver r : receivers)
+                close(r.socket);
+        }
+        peerAddresses.clear();
+    }
+
+    // ===========================================================================
+    /**
+     * Creates a MAC initialized with the shared secret. A MAC is not thread safe, so
+     * every connection uses its own instance.
+     *
+     * @return The MAC.
+     * @throws GeneralSecurityException If the MAC could not be created.
+     */
+    private Mac createMac() throws GeneralSecurityException
+    {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(key);
+        return mac;
+    }
+
+    // ===========================================================================
+    /**
+     * Computes the signature of a record.
+     *
+     * @param mac The MAC to use.
+     * @param challenge The challenge of the connection.
+     * @param sequence The sequence number of the record on the connection.
+     * @param record The record.
+     * @return The signature.
+     */
+    private static byte[] sign(Mac mac, byte[] challenge, long sequence, byte[] record)
+    {
+        mac.update(challenge);
+        for (int i = 56; i >= 0; i -= 8)
+            mac.update((byte) (sequence >>> i));
+        mac.update(record);
+        return mac.doFinal();
+    }
+
+    // ===========================================================================
+    /**
+     * Closes the given socket, ignoring any exception.
+     *
+     * @param socket The socket to close.
+     */
+    private void close(Socket socket)
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (IOException e)
+        {
+            logger.debug("Could not close " + socket, e);
+        }
+    }
+
+    // ===========================================================================
+    /**
+     * Queues the given change for all peers. This never blocks, as the peers are
+     * copied on write and their queues drop changes when full.
+     *
+     * @param record The change to send.
+     */
+    private void send(byte[] record)
+    {
+        for (Peer p : peers)
+            p.send(record);
+    }
+
+    // ===========================================================================
+    @Override
+    public void sessionUpdated(String session, long lastAccess)
+    {
+        if (running) send(DeltaCodec.sessionUpdated(session, lastAccess));
+    }
+
+    // ===========================================================================
+    @Override
+    public void dataUpdated(String session, String key, Object data)
+    {
+        if (!running) return;
+
+        try
+        {
+            send(DeltaCodec.dataUpdated(session, key, data));
+        }
+        catch (IOException e)
+        {
+            logger.debug("Data " + key + " of session " + session + " is not serializable", e);
+            send(DeltaCodec.dataRecord(session, key, null));
+        }
+    }
+
+    // ===========================================================================
+    @Override
+    public void sessionRemoved(String session)
+    {
+        if (running) send(DeltaCodec.sessionRemoved(session));
+    }
+}
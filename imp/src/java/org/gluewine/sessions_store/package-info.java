@@ -0,0 +1,5 @@
+/**
+ * Contains SessionStores persisting sessions in a memory mapped file, and replicating
+ * them to other nodes.
+ */
+package org.gluewine.sessions_store;
@@ -0,0 +1,69 @@
+/**************************************************************************
+ *
+ * Gluewine XStream Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.xstream;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Provides configured XStream instances, with all converters of the registered
+ * XStreamConverterProviders. Instances are pooled: they are borrowed for the
+ * duration of a request and given back afterwards, so that they are reused by
+ * the next request instead of being rebuilt.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public interface XStreamFactory
+{
+    // ===========================================================================
+    /**
+     * Borrows an XStream instance from the pool, creating a new one if the pool
+     * is empty. The instance must be given back with releaseXStream() once the
+     * caller is done with it.
+     *
+     * @return The XStream instance.
+     */
+    XStream borrowXStream();
+
+    // ===========================================================================
+    /**
+     * Gives back an instance obtained from borrowXStream(). It is discarded if the
+     * pool is full, or if the converters have changed since it was created.
+     *
+     * @param stream The instance to give back.
+     */
+    void releaseXStream(XStream stream);
+
+    // ===========================================================================
+    /**
+     * Registers a class that is likely to be serialized. The mappings and converters
+     * of these classes are resolved when a new XStream instance is created.
+     *
+     * @param cl The class to register.
+     */
+    void registerClass(Class<?> cl);
+
+    // ===========================================================================
+    /**
+     * Deregisters a class.
+     *
+     * @param cl The class to deregister.
+     */
+    void unregisterClass(Class<?> cl);
+}
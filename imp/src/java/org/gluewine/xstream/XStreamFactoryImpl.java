@@ -0,0 +1,339 @@
+/**************************************************************************
+ *
+ * Gluewine XStream Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.xstream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+import org.gluewine.core.Glue;
+import org.gluewine.core.RepositoryListener;
+import org.gluewine.core.RunOnActivate;
+import org.gluewine.launcher.CodeSource;
+import org.gluewine.launcher.CodeSourceListener;
+import org.gluewine.launcher.Launcher;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.StaxDriver;
+
+/**
+ * Default implementation of the XStreamFactory.
+ *
+ * <p>The registered XStreamProvider and XStreamConverterProviders are kept in an
+ * immutable configuration. Whenever one of them changes, a new configuration is
+ * created and swapped in as a whole. Every configuration has its own bounded pool
+ * of idle instances; instances of a replaced configuration are discarded when they
+ * are given back. The maximum number of idle instances is set with the 'maxidle'
+ * property in xstream.properties.
+ *
+ * <p>New instances are warmed up with the entities of all code sources and the
+ * classes registered through registerClass().
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public class XStreamFactoryImpl implements XStreamFactory, RepositoryListener<Object>, CodeSourceListener
+{
+    // ===========================================================================
+    /**
+     * Immutable snapshot of everything needed to create an XStream.
+     */
+    private static final class Configuration
+    {
+        /**
+         * The (possibly null) provider of the XStream.
+         */
+        private final XStreamProvider provider;
+
+        /**
+         * The converter providers, in registration order.
+         */
+        private final List<XStreamConverterProvider> providers;
+
+        /**
+         * The idle instances created from this configuration.
+         */
+        private final BlockingQueue<XStream> idle;
+
+        /**
+         * The instances created from this configuration. Weak, as borrowed instances
+         * are not necessarily given back.
+         */
+        private final Set<XStream> created = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<XStream, Boolean>()));
+
+        /**
+         * Creates an instance.
+         *
+         * @param provider The XStream provider.
+         * @param providers The converter providers.
+         * @param maxIdle The maximum number of idle instances.
+         */
+        private Configuration(XStreamProvider provider, List<XStreamConverterProvider> providers, int maxIdle)
+        {
+            this.provider = provider;
+            this.providers = providers;
+            this.idle = new ArrayBlockingQueue<XStream>(Math.max(1, maxIdle));
+        }
+    }
+
+    /**
+     * The current configuration.
+     */
+    private volatile Configuration configuration = null;
+
+    /**
+     * The properties.
+     */
+    @Glue(properties = "xstream.properties", optional = true)
+    private Properties properties = null;
+
+    /**
+     * The registered XStream provider.
+     */
+    private XStreamProvider provider = null;
+
+    /**
+     * The registered converter providers.
+     */
+    private Set<XStreamConverterProvider> providers = new LinkedHashSet<XStreamConverterProvider>();
+
+    /**
+     * The classes registered through registerClass().
+     */
+    private Set<Class<?>> classes = new LinkedHashSet<Class<?>>();
+
+    /**
+     * The entities of the code sources, indexed on their code source.
+     */
+    private Map<CodeSource, List<Class<?>>> entities = new HashMap<CodeSource, List<Class<?>>>();
+
+    /**
+     * The classes to warm up new instances with.
+     */
+    private volatile List<Class<?>> warmup = new ArrayList<Class<?>>(0);
+
+    /**
+     * The logger instance to use.
+     */
+    private Logger logger = Logger.getLogger(getClass());
+
+    // ===========================================================================
+    /**
+     * Creates an instance.
+     */
+    public XStreamFactoryImpl()
+    {
+        codeSourceAdded(Launcher.getInstance().getSources());
+        reconfigure();
+    }
+
+    // ===========================================================================
+    /**
+     * Applies the pool size of the properties, which are only available once glued.
+     */
+    @RunOnActivate
+    public void initialize()
+    {
+        reconfigure();
+    }
+
+    // ===========================================================================
+    @Override
+    public XStream borrowXStream()
+    {
+        Configuration current = configuration;
+        XStream stream = current.idle.poll();
+        if (stream == null)
+        {
+            stream = createXStream(current);
+            current.created.add(stream);
+        }
+        return stream;
+    }
+
+    // ===========================================================================
+    @Override
+    public void releaseXStream(XStream stream)
+    {
+        Configuration current = configuration;
+        if (stream != null && current.created.contains(stream)) current.idle.offer(stream);
+    }
+
+    // ===========================================================================
+    /**
+     * Creates a new XStream from the given configuration and warms it up.
+     *
+     * @param config The configuration to use.
+     * @return The new XStream.
+     */
+    private XStream createXStream(Configuration config)
+    {
+        XStream stream = null;
+        if (config.provider != null) stream = config.provider.getXStream();
+        else stream = new XStream(new StaxDriver());
+
+        for (XStreamConverterProvider prov : config.providers)
+            prov.registerConverters(stream);
+
+        for (Class<?> cl : warmup)
+        {
+            try
+            {
+                stream.getMapper().serializedClass(cl);
+                stream.getConverterLookup().lookupConverterForType(cl);
+            }
+            catch (Throwable e)
+            {
+                // It will be resolved (or fail) when it is actually used.
+                if (logger.isTraceEnabled()) logger.trace("Could not warm up " + cl.getName() + ": " + e.getMessage());
+            }
+        }
+
+        return stream;
+    }
+
+    // ===========================================================================
+    /**
+     * Replaces the current configuration, and with it the pool of idle instances.
+     */
+    private synchronized void reconfigure()
+    {
+        int maxIdle = Runtime.getRuntime().availableProcessors() * 2;
+        if (properties != null) maxIdle = Integer.parseInt(properties.getProperty("maxidle", Integer.toString(maxIdle)));
+        configuration = new Configuration(provider, new ArrayList<XStreamConverterProvider>(providers), maxIdle);
+    }
+
+    // ===========================================================================
+    /**
+     * Rebuilds the list of classes used to warm up new instances.
+     */
+    private synchronized void updateWarmup()
+    {
+        List<Class<?>> l = new ArrayList<Class<?>>(classes);
+        for (List<Class<?>> ents : entities.values())
+            l.addAll(ents);
+        warmup = l;
+    }
+
+    // ===========================================================================
+    @Override
+    public void registered(Object t)
+    {
+        boolean changed = false;
+        synchronized (this)
+        {
+            if (t instanceof XStreamProvider)
+            {
+                provider = (XStreamProvider) t;
+                changed = true;
+            }
+
+            if (t instanceof XStreamConverterProvider)
+                changed |= providers.add((XStreamConverterProvider) t);
+        }
+
+        if (changed) reconfigure();
+    }
+
+    // ===========================================================================
+    @Override
+    public void unregistered(Object t)
+    {
+        boolean changed = false;
+        synchronized (this)
+        {
+            if (t == provider)
+            {
+                provider = null;
+                changed = true;
+            }
+
+            if (t instanceof XStreamConverterProvider)
+                changed |= providers.remove(t);
+        }
+
+        if (changed) reconfigure();
+    }
+
+    // ===========================================================================
+    @Override
+    public synchronized void registerClass(Class<?> cl)
+    {
+        if (classes.add(cl)) updateWarmup();
+    }
+
+    // ===========================================================================
+    @Override
+    public synchronized void unregisterClass(Class<?> cl)
+    {
+        if (classes.remove(cl)) updateWarmup();
+    }
+
+    // ===========================================================================
+    @Override
+    public void codeSourceAdded(List<CodeSource> sources)
+    {
+        synchronized (this)
+        {
+            for (CodeSource source : sources)
+            {
+                List<Class<?>> l = new ArrayList<Class<?>>();
+                for (String entity : source.getEntities())
+                {
+                    try
+                    {
+                        l.add(source.getSourceClassLoader().loadClass(entity));
+                    }
+                    catch (Throwable e)
+                    {
+                        logger.warn("Could not load entity " + entity + ": " + e.getMessage());
+                    }
+                }
+                if (!l.isEmpty()) entities.put(source, l);
+            }
+            updateWarmup();
+        }
+    }
+
+    // ===========================================================================
+    @Override
+    public void codeSourceRemoved(List<CodeSource> sources)
+    {
+        boolean changed = false;
+        synchronized (this)
+        {
+            for (CodeSource source : sources)
+                changed |= entities.remove(source) != null;
+
+            if (changed) updateWarmup();
+        }
+
+        // The existing instances may hold on to the classes of the removed sources.
+        if (changed) reconfigure();
+    }
+}
@@ -0,0 +1,40 @@
+/**************************************************************************
+ *
+ * Gluewine XStream Module
+ *
+ * Copyright (C) 2013 FKS bvba               http://www.fks.be/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ***************************************************************************/
+package org.gluewine.xstream;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Defines a class that provides the XStream instances to be used, instead of
+ * the default one.
+ *
+ * @author fks/Serge de Schaetzen
+ *
+ */
+public interface XStreamProvider
+{
+    // ===========================================================================
+    /**
+     * Returns a new XStream instance. This method is invoked for every instance
+     * the XStreamFactory creates.
+     *
+     * @return The XStream instance.
+     */
+    XStream getXStream();
+}
@@ -0,0 +1,4 @@
+/**
+ * Provides pooled, configured XStream instances to the bundles serializing with XStream.
+ */
+package org.gluewine.xstream;